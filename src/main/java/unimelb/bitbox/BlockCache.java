@@ -0,0 +1,216 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the most recently read blocks of files in memory. When a change is broadcast, every peer asks for the same
+ * blocks at about the same time; the first request reads a block from disk and the others are served from memory.
+ * Blocks are keyed by the md5 of the file, so a cached block is right for as long as anyone asks for that content.
+ * Several requests for a block that is not cached yet wait for one read instead of each reading it.
+ */
+public class BlockCache {
+
+    private static Logger log = Logger.getLogger(BlockCache.class.getName());
+
+    // the most bytes kept
+    private static final long CAPACITY = Long.parseLong(Configuration.getConfigurationValue("blockCacheSize", "33554432"));
+    // whether blocks are kept outside of the java heap
+    private static final boolean OFF_HEAP =
+            Boolean.parseBoolean(Configuration.getConfigurationValue("blockCacheOffHeap", "false"));
+    // how many reads between statistics
+    private static final long REPORT_INTERVAL = 1000;
+
+    // least recently used first
+    private static final LinkedHashMap<String, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private static final HashMap<String, Read> reading = new HashMap<>();
+    private static long size;
+    private static long hits;
+    private static long misses;
+
+    /**
+     * A read from disk that other requests for the same block wait for.
+     */
+    private static class Read {
+        private boolean done;
+        private ByteBuffer block;
+    }
+
+    /**
+     * Read a block of a file, from memory if it is cached.
+     * @param fileSystemManager the file system manager to read from on a miss
+     * @param md5 the md5 of the file
+     * @param position the position of the block
+     * @param length the length of the block
+     * @return the bytes, in a buffer of the caller's own, null if there is no file with that content
+     * @throws IOException if there were any problems accessing the file system
+     * @throws NoSuchAlgorithmException if the MD5 hash algorithm is unavailable
+     */
+    public static ByteBuffer read(FileSystemManager fileSystemManager, String md5, long position, long length)
+            throws IOException, NoSuchAlgorithmException {
+        if (CAPACITY <= 0) {
+            return fileSystemManager.readSnapshot(md5, position, length);
+        }
+        String key = md5 + ":" + position + ":" + length;
+        Read read;
+        boolean reader = false;
+        synchronized (BlockCache.class) {
+            ByteBuffer block = blocks.get(key);
+            count(block != null);
+            if (block != null) {
+                return copy(block);
+            }
+            read = reading.get(key);
+            if (read == null) {
+                read = new Read();
+                reading.put(key, read);
+                reader = true;
+            }
+        }
+        if (!reader) {
+            // another request is reading the block
+            synchronized (read) {
+                while (!read.done) {
+                    try {
+                        read.wait();
+                    } catch (InterruptedException e) {
+                        return fileSystemManager.readSnapshot(md5, position, length);
+                    }
+                }
+            }
+            return read.block == null ? fileSystemManager.readSnapshot(md5, position, length) : copy(read.block);
+        }
+        return load(fileSystemManager, md5, position, length, key, read);
+    }
+
+    /**
+     * Read a block of a file into memory, unless it is cached or being read already. Reads ahead of the requests are
+     * not counted in the statistics.
+     * @param fileSystemManager the file system manager to read from
+     * @param md5 the md5 of the file
+     * @param position the position of the block
+     * @param length the length of the block
+     * @throws IOException if there were any problems accessing the file system
+     * @throws NoSuchAlgorithmException if the MD5 hash algorithm is unavailable
+     */
+    public static void prefetch(FileSystemManager fileSystemManager, String md5, long position, long length)
+            throws IOException, NoSuchAlgorithmException {
+        if (CAPACITY <= 0) {
+            return;
+        }
+        String key = md5 + ":" + position + ":" + length;
+        Read read = new Read();
+        synchronized (BlockCache.class) {
+            if (blocks.containsKey(key) || reading.containsKey(key)) {
+                return;
+            }
+            reading.put(key, read);
+        }
+        load(fileSystemManager, md5, position, length, key, read);
+    }
+
+    /**
+     * Check whether a block is in memory, without touching it.
+     * @param md5 the md5 of the file
+     * @param position the position of the block
+     * @param length the length of the block
+     * @return true if the block is cached or being read
+     */
+    public static synchronized boolean isCached(String md5, long position, long length) {
+        String key = md5 + ":" + position + ":" + length;
+        return blocks.containsKey(key) || reading.containsKey(key);
+    }
+
+    // read a block from disk for the requests waiting on read
+    private static ByteBuffer load(FileSystemManager fileSystemManager, String md5, long position, long length,
+                                   String key, Read read) throws IOException, NoSuchAlgorithmException {
+        ByteBuffer block = null;
+        try {
+            ByteBuffer bytes = fileSystemManager.readSnapshot(md5, position, length);
+            if (bytes != null) {
+                block = OFF_HEAP ? ByteBuffer.allocateDirect(bytes.capacity()) : ByteBuffer.allocate(bytes.capacity());
+                block.put(bytes.array());
+                block.flip();
+                synchronized (BlockCache.class) {
+                    put(key, block);
+                }
+            }
+            return bytes;
+        } finally {
+            synchronized (BlockCache.class) {
+                reading.remove(key);
+            }
+            synchronized (read) {
+                read.block = block;
+                read.done = true;
+                read.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get the share of reads served from memory.
+     * @return the hit ratio, 0 if there has been no read
+     */
+    public static synchronized double getHitRatio() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Get the statistics of the cache.
+     * @return the hits, misses and bytes kept
+     */
+    public static synchronized String getStatistics() {
+        return hits + " hits, " + misses + " misses (" + Math.round(getHitRatio() * 100) + "% hits), " + size +
+                " of " + CAPACITY + " bytes used";
+    }
+
+    private static void count(boolean hit) {
+        if (hit) {
+            hits++;
+        }
+        else {
+            misses++;
+        }
+        if ((hits + misses) % REPORT_INTERVAL == 0) {
+            log.fine("Block cache: " + getStatistics());
+        }
+    }
+
+    private static void put(String key, ByteBuffer block) {
+        if (block.capacity() > CAPACITY) {
+            return;
+        }
+        ByteBuffer old = blocks.put(key, block);
+        if (old != null) {
+            size -= old.capacity();
+        }
+        size += block.capacity();
+        Iterator<ByteBuffer> eldest = blocks.values().iterator();
+        while (size > CAPACITY) {
+            size -= eldest.next().capacity();
+            eldest.remove();
+        }
+    }
+
+    // a heap copy that the caller may change
+    private static ByteBuffer copy(ByteBuffer block) {
+        byte[] bytes = new byte[block.remaining()];
+        block.duplicate().get(bytes);
+        ByteBuffer copy = ByteBuffer.wrap(bytes);
+        copy.position(bytes.length);
+        return copy;
+    }
+
+    // private constructor to prevent initialization
+    private BlockCache() {
+    }
+}
@@ -0,0 +1,62 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.Configuration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums of the blocks of files sent to peers. The checksums of the most recently sent blocks are kept, so that
+ * blocks of hot files, asked for by several peers, are only summed once.
+ */
+public class BlockChecksums {
+
+    // the most checksums kept
+    private static final int CACHE_SIZE =
+            Integer.parseInt(Configuration.getConfigurationValue("checksumCacheSize", "4096"));
+
+    private static final LinkedHashMap<String, Long> cache = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Get the checksum of a block of a file.
+     * @param md5 the md5 of the file
+     * @param position the position of the block
+     * @param bytes the bytes of the block, summed if the checksum is not kept
+     * @return the crc32 of the block
+     */
+    public static long get(String md5, long position, byte[] bytes) {
+        String key = md5 + ":" + position + ":" + bytes.length;
+        synchronized (cache) {
+            Long checksum = cache.get(key);
+            if (checksum != null) {
+                return checksum;
+            }
+        }
+        long checksum = checksum(bytes);
+        synchronized (cache) {
+            cache.put(key, checksum);
+        }
+        return checksum;
+    }
+
+    /**
+     * Sum the bytes of a block.
+     * @param bytes the bytes
+     * @return the crc32 of the bytes
+     */
+    public static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    // private constructor to prevent initialization
+    private BlockChecksums() {
+    }
+}
@@ -1,6 +1,7 @@
 package unimelb.bitbox;
 
 import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.util.FileSystemManager;
 
 import java.io.BufferedWriter;
 import java.util.ArrayList;
@@ -11,4 +12,8 @@ public interface CommunicationModule {
     void initHandshake(ConnectedPeer p, BufferedWriter out, String secretKey);
     void initHandshake(ConnectedPeer p);
     void broadcast(Protocol protocol);
+    void broadcast(Protocol protocol, String origin);
+    void broadcast(ArrayList<Protocol> protocols, String origin);
+    void broadcastMove(FileSystemManager.FileSystemEvent event);
+    void broadcastSubtreeDelete(FileSystemManager.FileSystemEvent event);
 }
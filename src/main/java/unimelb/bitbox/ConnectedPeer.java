@@ -65,6 +65,15 @@ public class ConnectedPeer extends Object {
         }
     }
 
+    /**
+     * The peer as host:port, the inverse of {@link #convertConnectedPeer(String)}.
+     * @return the string
+     */
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(host, port);
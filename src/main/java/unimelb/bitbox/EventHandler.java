@@ -3,6 +3,9 @@ package unimelb.bitbox;
 import unimelb.bitbox.protocol.*;
 import unimelb.bitbox.util.FileSystemManager;
 
+import java.util.ArrayList;
+import java.util.Collections;
+
 /**
  * Class that helps to convert file system event into corresponding protocol.
  */
@@ -14,14 +17,98 @@ public class EventHandler {
                 return new DirectoryCreateRequest(event.pathName);
             case DIRECTORY_DELETE:
                 return new DirectoryDeleteRequest(event.pathName);
+            case DIRECTORY_MOVE:
+                return new DirectoryMoveRequest(event.pathName, event.oldPathName);
             case FILE_CREATE:
                 return new FileCreateRequest(event.fileDescriptor.toDoc(), event.pathName);
             case FILE_DELETE:
                 return new FileDeleteRequest(event.fileDescriptor.toDoc(), event.pathName);
             case FILE_MODIFY:
                 return new FileModifyRequest(event.fileDescriptor.toDoc(), event.pathName);
+            case FILE_APPEND:
+                // peers that do not know of appends load the whole file
+                return new FileModifyRequest(event.fileDescriptor.toDoc(), event.pathName, event.prefix.toDoc());
+            case FILE_MOVE:
+                return new FileMoveRequest(event.fileDescriptor.toDoc(), event.pathName, event.oldPathName);
+            case SUBTREE_DELETE:
+                return new SubtreeDeleteRequest(event.pathName, event.digest);
             default:
                 return null;
         }
     }
+
+    /**
+     * Convert a file system event into the protocols for a peer.
+     * @param fileSystemManager The file system manager the event comes from.
+     * @param event The event.
+     * @param moves Whether the peer handles move requests, see {@link SyncMarks#FEATURE_MOVE}.
+     * @param subtrees Whether the peer handles subtree delete requests, see {@link SyncMarks#FEATURE_SUBTREE}.
+     * @return The protocols, more than one for a move or subtree delete event if the peer does not handle its
+     * request.
+     */
+    public static ArrayList<Protocol> handleEvent(FileSystemManager fileSystemManager,
+                                                  FileSystemManager.FileSystemEvent event, boolean moves,
+                                                  boolean subtrees){
+        if (!moves && event.oldPathName != null){
+            return expandMove(fileSystemManager, event);
+        }
+        if (!subtrees && event.event == FileSystemManager.EVENT.SUBTREE_DELETE){
+            return expandSubtreeDelete(event);
+        }
+        ArrayList<Protocol> protocols = new ArrayList<>();
+        protocols.add(handleEvent(event));
+        return protocols;
+    }
+
+    /**
+     * Convert a move event into the requests that make the same change on a peer that does not handle move
+     * requests: creating the file or directory at its new path, then deleting it at its old one. The peer copies
+     * the files it already has instead of loading them.
+     * @param fileSystemManager The file system manager the event comes from.
+     * @param event The move event.
+     * @return The create requests followed by the delete requests.
+     */
+    public static ArrayList<Protocol> expandMove(FileSystemManager fileSystemManager,
+                                                 FileSystemManager.FileSystemEvent event){
+        ArrayList<Protocol> protocols = new ArrayList<>();
+        if (event.event == FileSystemManager.EVENT.FILE_MOVE){
+            protocols.add(new FileCreateRequest(event.fileDescriptor.toDoc(), event.pathName));
+            protocols.add(new FileDeleteRequest(event.fileDescriptor.toDoc(), event.oldPathName));
+            return protocols;
+        }
+        // the directory as it is now, deleted from its old place deepest first
+        ArrayList<Protocol> files = new ArrayList<>();
+        ArrayList<Protocol> directories = new ArrayList<>();
+        for (FileSystemManager.FileSystemEvent e : fileSystemManager.generateSyncEvents(event.pathName)){
+            protocols.add(handleEvent(e));
+            String oldPathName = event.oldPathName + e.pathName.substring(event.pathName.length());
+            if (e.event == FileSystemManager.EVENT.FILE_CREATE){
+                files.add(new FileDeleteRequest(e.fileDescriptor.toDoc(), oldPathName));
+            }
+            else {
+                directories.add(new DirectoryDeleteRequest(oldPathName));
+            }
+        }
+        if (directories.isEmpty()){
+            directories.add(new DirectoryDeleteRequest(event.oldPathName));
+        }
+        Collections.reverse(directories);
+        protocols.addAll(files);
+        protocols.addAll(directories);
+        return protocols;
+    }
+
+    /**
+     * Convert a subtree delete event into the requests that make the same change on a peer that does not handle
+     * subtree delete requests: a delete for every file and directory in it, deepest first.
+     * @param event The subtree delete event.
+     * @return The delete requests.
+     */
+    public static ArrayList<Protocol> expandSubtreeDelete(FileSystemManager.FileSystemEvent event){
+        ArrayList<Protocol> protocols = new ArrayList<>();
+        for (FileSystemManager.FileSystemEvent e : event.removed){
+            protocols.add(handleEvent(e));
+        }
+        return protocols;
+    }
 }
@@ -0,0 +1,107 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.protocol.FileBundle;
+import unimelb.bitbox.protocol.FileCreateRequest;
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Packs the creates of small files into bundles. A small file costs a file create request, a file create response,
+ * a file bytes request and a file bytes response, each waited for in turn, while the file itself is only a few
+ * bytes; a bundle carries many such files with their contents in one message, and the peer creates them all at once.
+ * Files larger than bundleFileSize, and files that cannot be read, are still sent file create requests.
+ */
+public class FileBundles {
+
+    // files up to this size are bundled
+    private static final long MAX_FILE_SIZE =
+            Long.parseLong(Configuration.getConfigurationValue("bundleFileSize", "16384"));
+    // the most content bytes in one bundle
+    private static final long MAX_BUNDLE_SIZE =
+            Long.parseLong(Configuration.getConfigurationValue("bundleSize", "262144"));
+
+    /**
+     * Check whether a protocol is the create of a file small enough to be bundled.
+     * @param protocol the protocol
+     * @return true if the protocol is a file create request for a small file
+     */
+    public static boolean isBundled(Protocol protocol) {
+        return protocol instanceof FileCreateRequest &&
+                ((FileCreateRequest) protocol).fileDescriptor.getLong("fileSize") <= MAX_FILE_SIZE;
+    }
+
+    /**
+     * Replace the creates of small files by bundles. Each run of consecutive creates of small files becomes as few
+     * bundles as their sizes allow, so the order of the other protocols is kept.
+     * @param fileSystemManager the file system manager to read the files from
+     * @param protocols the protocols to send, in order
+     * @return the protocols with the bundles, in order
+     */
+    public static ArrayList<Protocol> bundle(FileSystemManager fileSystemManager, List<Protocol> protocols) {
+        ArrayList<Protocol> bundled = new ArrayList<>();
+        ArrayList<Document> files = new ArrayList<>();
+        long size = 0;
+        for (Protocol p : protocols) {
+            Document file = isBundled(p) && MAX_BUNDLE_SIZE > 0 ? read(fileSystemManager, (FileCreateRequest) p) : null;
+            if (file == null) {
+                flush(bundled, files);
+                files = new ArrayList<>();
+                size = 0;
+                bundled.add(p);
+                continue;
+            }
+            long fileSize = ((FileCreateRequest) p).fileDescriptor.getLong("fileSize");
+            if (!files.isEmpty() && size + fileSize > MAX_BUNDLE_SIZE) {
+                flush(bundled, files);
+                files = new ArrayList<>();
+                size = 0;
+            }
+            files.add(file);
+            size += fileSize;
+        }
+        flush(bundled, files);
+        return bundled;
+    }
+
+    // read a small file for a bundle, null if it has changed or gone since the create was made
+    private static Document read(FileSystemManager fileSystemManager, FileCreateRequest request) {
+        try {
+            ByteBuffer bytes = fileSystemManager.readFile(request.fileDescriptor.getString("md5"), 0,
+                    request.fileDescriptor.getLong("fileSize"));
+            if (bytes == null) {
+                return null;
+            }
+            Document file = new Document();
+            file.append("pathName", request.pathName);
+            file.append("fileDescriptor", request.fileDescriptor);
+            file.append("content", Base64.getEncoder().encodeToString(bytes.array()));
+            return file;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    // add the files read so far, a single file as a plain create
+    private static void flush(ArrayList<Protocol> bundled, ArrayList<Document> files) {
+        if (files.size() == 1) {
+            Document file = files.get(0);
+            bundled.add(new FileCreateRequest((Document) file.get("fileDescriptor"), file.getString("pathName")));
+        }
+        else if (files.size() > 1) {
+            bundled.add(new FileBundle(files));
+        }
+    }
+
+    // private constructor to prevent initialization
+    private FileBundles() {
+    }
+}
@@ -0,0 +1,469 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.protocol.Fragment;
+import unimelb.bitbox.protocol.FragmentNack;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The FragmentManager class splits messages that are too large for one datagram into fragments, and reassembles
+ * the fragments received from a peer. Fragments that have been sent are kept for a while, so that a peer missing
+ * some of them can ask for those fragments only. Memory used for both directions is bounded, and incomplete
+ * messages are dropped after a timeout.
+ * <br/>
+ * When forward error correction is enabled, every group of data fragments is followed by parity fragments, so that
+ * the receiver can rebuild lost fragments without asking for them. The number of parity fragments per group follows
+ * the loss rate observed from the peer's negative acknowledgements.
+ */
+public class FragmentManager {
+
+    // the number of completed message ids remembered, so that late fragments are ignored
+    private static final int COMPLETED_HISTORY = 256;
+    // the sent fragment count after which the loss statistics are halved
+    private static final long LOSS_WINDOW = 4096;
+    // bytes of memory counted for an array or object besides its contents, and for a reference to it
+    private static final int ARRAY_OVERHEAD = 16;
+    private static final int OBJECT_OVERHEAD = 64;
+    private static final int REFERENCE_SIZE = 8;
+
+    private final int fragmentSize;
+    private final long maxPendingBytes;
+    private final long nackInterval;
+    private final long timeout;
+    // upper bound on the number of fragments a single message can be split into
+    private final int maxFragments;
+    // data fragments per parity group, 0 if forward error correction is disabled
+    private final int fecGroupSize;
+
+    private long nextMessageId;
+    private final HashMap<Long, SentMessage> sentMessages;
+    private final HashMap<Long, PartialMessage> receivedMessages;
+    private final LinkedHashMap<Long, Boolean> completedMessages;
+    private long sentBytes;
+    private long receivedBytes;
+    private long fragmentsSent;
+    private long fragmentsLost;
+
+    /**
+     * Constructor.
+     * @param fragmentSize the maximum number of message bytes carried by one fragment
+     * @param maxPendingBytes the maximum number of bytes of memory used for sent and for partially received messages
+     * @param nackInterval how long a partial message may be idle before missing fragments are asked for
+     * @param timeout how long a sent or partial message is kept before it is dropped
+     * @param fecGroupSize data fragments per parity group, 0 to disable forward error correction
+     */
+    public FragmentManager(int fragmentSize, long maxPendingBytes, long nackInterval, long timeout, int fecGroupSize) {
+        this.fragmentSize = fragmentSize;
+        this.maxPendingBytes = maxPendingBytes;
+        this.nackInterval = nackInterval;
+        this.timeout = timeout;
+        this.fecGroupSize = fecGroupSize;
+        this.maxFragments = (int) Math.max(1, maxPendingBytes / (fragmentSize + ARRAY_OVERHEAD + REFERENCE_SIZE));
+        this.nextMessageId = new Random().nextInt() & 0x7fffffffL;
+        this.sentMessages = new HashMap<>();
+        this.receivedMessages = new HashMap<>();
+        this.completedMessages = new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > COMPLETED_HISTORY;
+            }
+        };
+    }
+
+    /**
+     * Check whether a message needs to be fragmented.
+     * @param message the encoded message
+     * @return true if the message is larger than one fragment
+     */
+    public boolean needFragment(byte[] message) {
+        return message.length > fragmentSize;
+    }
+
+    /**
+     * Get the loss rate observed from the peer's negative acknowledgements.
+     * @return the fraction of sent fragments reported missing
+     */
+    public synchronized double getLossRate() {
+        return fragmentsSent == 0 ? 0 : (double) fragmentsLost / fragmentsSent;
+    }
+
+    /**
+     * Split a message into fragments and remember them in case some have to be resent. Parity fragments are
+     * added after each group if forward error correction is enabled.
+     * @param message the encoded message
+     * @return the fragments, in sending order
+     */
+    public synchronized ArrayList<Fragment> split(byte[] message) {
+        long messageId = nextMessageId++;
+        int total = (message.length + fragmentSize - 1) / fragmentSize;
+        int parityCount = getParityCount();
+        int groupSize = fecGroupSize > 0 ? fecGroupSize : total;
+        ArrayList<Fragment> fragments = new ArrayList<>();
+        for (int group = 0; group * groupSize < total; group++) {
+            int first = group * groupSize;
+            int last = Math.min(total, first + groupSize);
+            for (int i = first; i < last; i++) {
+                int from = i * fragmentSize;
+                int to = Math.min(message.length, from + fragmentSize);
+                fragments.add(new Fragment(messageId, i, total,
+                        Base64.getEncoder().encodeToString(Arrays.copyOfRange(message, from, to))));
+            }
+            if (parityCount > 0 && total > 1) {
+                fragments.addAll(parity(message, messageId, total, group, first, last, parityCount));
+            }
+        }
+        fragmentsSent += fragments.size();
+        if (fragmentsSent > LOSS_WINDOW) {
+            fragmentsSent /= 2;
+            fragmentsLost /= 2;
+        }
+        // the fragments are kept as encoded strings of two bytes per character
+        long memory = OBJECT_OVERHEAD + ARRAY_OVERHEAD + (long) REFERENCE_SIZE * fragments.size();
+        for (Fragment f : fragments) {
+            memory += OBJECT_OVERHEAD + ARRAY_OVERHEAD + 2L * f.data.length();
+        }
+        // make room for the new message by forgetting the oldest ones
+        while (sentBytes + memory > maxPendingBytes && !sentMessages.isEmpty()) {
+            dropOldestSent();
+        }
+        if (memory <= maxPendingBytes) {
+            sentMessages.put(messageId, new SentMessage(fragments, memory));
+            sentBytes += memory;
+        }
+        return fragments;
+    }
+
+    /**
+     * Choose the number of parity fragments per group from the observed loss rate, twice the expected
+     * number of lost fragments per group and at least one.
+     * @return the number of parity fragments per group, 0 if forward error correction is disabled
+     */
+    private int getParityCount() {
+        if (fecGroupSize <= 0) {
+            return 0;
+        }
+        int parityCount = (int) Math.ceil(2 * fecGroupSize * getLossRate());
+        return Math.max(1, Math.min(parityCount, Math.max(1, fecGroupSize / 2)));
+    }
+
+    /**
+     * Compute the parity fragments of one group.
+     * @param message the encoded message
+     * @param messageId the message id
+     * @param total the number of data fragments of the message
+     * @param group the group number
+     * @param first the index of the first data fragment of the group
+     * @param last the index after the last data fragment of the group
+     * @param parityCount the number of parity fragments per group
+     * @return the parity fragments
+     */
+    private ArrayList<Fragment> parity(byte[] message, long messageId, int total, int group, int first, int last,
+                                       int parityCount) {
+        ArrayList<Fragment> fragments = new ArrayList<>();
+        for (int r = 0; r < parityCount; r++) {
+            byte[] parity = new byte[fragmentSize];
+            long lengthXor = 0;
+            for (int i = first; i < last; i++) {
+                if (i % parityCount != r) {
+                    continue;
+                }
+                int from = i * fragmentSize;
+                int to = Math.min(message.length, from + fragmentSize);
+                for (int b = from; b < to; b++) {
+                    parity[b - from] ^= message[b];
+                }
+                lengthXor ^= to - from;
+            }
+            fragments.add(new Fragment(messageId, total + group * parityCount + r, total,
+                    Base64.getEncoder().encodeToString(parity), fecGroupSize, parityCount, lengthXor));
+        }
+        return fragments;
+    }
+
+    /**
+     * Add a received fragment.
+     * @param fragment the received fragment
+     * @return the complete message if this fragment was the last missing one, otherwise null
+     */
+    public synchronized String receive(Fragment fragment) {
+        if (fragment.total > maxFragments) {
+            System.out.println("Drop fragment of oversized message: " + fragment.messageId + "\n");
+            return null;
+        }
+        // late or duplicated fragment of a message already complete
+        if (completedMessages.containsKey(fragment.messageId)) {
+            return null;
+        }
+        PartialMessage partial = receivedMessages.get(fragment.messageId);
+        if (partial == null) {
+            // the array of parts is allocated for the whole message at once
+            long memory = OBJECT_OVERHEAD + ARRAY_OVERHEAD + (long) REFERENCE_SIZE * fragment.total;
+            makeRoom(fragment.messageId, memory);
+            partial = new PartialMessage(fragment.total);
+            partial.memory = memory;
+            receivedBytes += memory;
+            receivedMessages.put(fragment.messageId, partial);
+        }
+        else if (partial.parts.length != fragment.total) {
+            return null;
+        }
+        byte[] part;
+        try {
+            part = Base64.getDecoder().decode(fragment.data);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (fragment.isParity()) {
+            if (partial.parity.containsKey(fragment.index) || part.length > maxPendingBytes) {
+                return null;
+            }
+            // with the map entries holding it and its length
+            long memory = 2 * OBJECT_OVERHEAD + ARRAY_OVERHEAD + part.length;
+            makeRoom(fragment.messageId, memory);
+            partial.groupSize = fragment.groupSize;
+            partial.parityCount = fragment.parityCount;
+            partial.parity.put(fragment.index, part);
+            partial.parityLength.put(fragment.index, fragment.lengthXor);
+            partial.memory += memory;
+            receivedBytes += memory;
+            int key = fragment.index - fragment.total;
+            recover(partial, key / fragment.parityCount, key % fragment.parityCount);
+        }
+        else {
+            if (partial.parts[fragment.index] != null) {
+                return null;
+            }
+            makeRoom(fragment.messageId, ARRAY_OVERHEAD + part.length);
+            addPart(partial, fragment.index, part);
+            if (partial.parityCount > 0) {
+                recover(partial, fragment.index / partial.groupSize, fragment.index % partial.parityCount);
+            }
+        }
+        partial.lastUpdate = (new Date()).getTime();
+
+        if (partial.received < partial.parts.length) {
+            return null;
+        }
+        receivedMessages.remove(fragment.messageId);
+        completedMessages.put(fragment.messageId, true);
+        receivedBytes -= partial.memory;
+        byte[] message = new byte[(int) partial.size];
+        int offset = 0;
+        for (byte[] p : partial.parts) {
+            System.arraycopy(p, 0, message, offset, p.length);
+            offset += p.length;
+        }
+        return new String(message, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Store a data fragment of a partial message.
+     * @param partial the partial message
+     * @param index the fragment index
+     * @param part the fragment content
+     */
+    private void addPart(PartialMessage partial, int index, byte[] part) {
+        partial.parts[index] = part;
+        partial.received++;
+        partial.size += part.length;
+        partial.memory += ARRAY_OVERHEAD + part.length;
+        receivedBytes += ARRAY_OVERHEAD + part.length;
+    }
+
+    /**
+     * Rebuild the missing data fragment protected by one parity fragment, if exactly one is missing.
+     * @param partial the partial message
+     * @param group the group number
+     * @param r the parity number within the group
+     */
+    private void recover(PartialMessage partial, int group, int r) {
+        int key = partial.parts.length + group * partial.parityCount + r;
+        byte[] parity = partial.parity.get(key);
+        if (parity == null) {
+            return;
+        }
+        int first = group * partial.groupSize;
+        int last = Math.min(partial.parts.length, first + partial.groupSize);
+        int missing = -1;
+        for (int i = first; i < last; i++) {
+            if (i % partial.parityCount == r && partial.parts[i] == null) {
+                if (missing >= 0) {
+                    return;
+                }
+                missing = i;
+            }
+        }
+        if (missing < 0) {
+            return;
+        }
+        byte[] rebuilt = Arrays.copyOf(parity, parity.length);
+        long length = partial.parityLength.get(key);
+        for (int i = first; i < last; i++) {
+            if (i % partial.parityCount == r && i != missing) {
+                byte[] p = partial.parts[i];
+                for (int b = 0; b < p.length && b < rebuilt.length; b++) {
+                    rebuilt[b] ^= p[b];
+                }
+                length ^= p.length;
+            }
+        }
+        if (length < 0 || length > rebuilt.length) {
+            return;
+        }
+        addPart(partial, missing, Arrays.copyOf(rebuilt, (int) length));
+    }
+
+    /**
+     * Keep the memory used by partial messages bounded, dropping the least recently updated ones.
+     * @param keep the message id that must not be dropped
+     * @param size the number of bytes about to be stored
+     */
+    private void makeRoom(long keep, long size) {
+        while (receivedBytes + size > maxPendingBytes && receivedMessages.size() > 1) {
+            dropOldestReceived(keep);
+        }
+    }
+
+    /**
+     * Find the fragments a peer asked to be resent.
+     * @param nack the negative acknowledgement from the peer
+     * @return the requested fragments that are still kept, possibly empty
+     */
+    public synchronized ArrayList<Fragment> getMissing(FragmentNack nack) {
+        ArrayList<Fragment> fragments = new ArrayList<>();
+        SentMessage sent = sentMessages.get(nack.messageId);
+        if (sent != null) {
+            for (Long index : nack.missing) {
+                for (Fragment f : sent.fragments) {
+                    if (f.index == index) {
+                        fragments.add(f);
+                        break;
+                    }
+                }
+            }
+            // only the first report of a message counts as loss
+            if (!sent.reported) {
+                sent.reported = true;
+                fragmentsLost += fragments.size();
+            }
+        }
+        return fragments;
+    }
+
+    /**
+     * Drop expired messages and ask for the missing fragments of stalled partial messages.
+     * @return the negative acknowledgements that need to be sent to the peer
+     */
+    public synchronized ArrayList<FragmentNack> scan() {
+        long currentTime = (new Date()).getTime();
+        ArrayList<FragmentNack> nacks = new ArrayList<>();
+
+        Iterator<SentMessage> sentIt = sentMessages.values().iterator();
+        while (sentIt.hasNext()) {
+            SentMessage sent = sentIt.next();
+            if (currentTime - sent.createdTime > timeout) {
+                sentBytes -= sent.size;
+                sentIt.remove();
+            }
+        }
+
+        Iterator<HashMap.Entry<Long, PartialMessage>> receivedIt = receivedMessages.entrySet().iterator();
+        while (receivedIt.hasNext()) {
+            HashMap.Entry<Long, PartialMessage> entry = receivedIt.next();
+            PartialMessage partial = entry.getValue();
+            if (currentTime - partial.lastUpdate > timeout) {
+                receivedBytes -= partial.memory;
+                receivedIt.remove();
+            }
+            else if (currentTime - partial.lastUpdate > nackInterval && currentTime - partial.lastNack > nackInterval) {
+                ArrayList<Long> missing = new ArrayList<>();
+                for (int i = 0; i < partial.parts.length; i++) {
+                    if (partial.parts[i] == null) {
+                        missing.add((long) i);
+                    }
+                }
+                partial.lastNack = currentTime;
+                nacks.add(new FragmentNack(entry.getKey(), missing));
+            }
+        }
+        return nacks;
+    }
+
+    /**
+     * Forget the oldest sent message.
+     */
+    private void dropOldestSent() {
+        Long oldest = null;
+        for (HashMap.Entry<Long, SentMessage> entry : sentMessages.entrySet()) {
+            if (oldest == null || entry.getValue().createdTime < sentMessages.get(oldest).createdTime) {
+                oldest = entry.getKey();
+            }
+        }
+        sentBytes -= sentMessages.remove(oldest).size;
+    }
+
+    /**
+     * Forget the least recently updated partial message other than the given one.
+     * @param keep the message id that must not be dropped
+     */
+    private void dropOldestReceived(long keep) {
+        Long oldest = null;
+        for (HashMap.Entry<Long, PartialMessage> entry : receivedMessages.entrySet()) {
+            if (entry.getKey() != keep && (oldest == null ||
+                    entry.getValue().lastUpdate < receivedMessages.get(oldest).lastUpdate)) {
+                oldest = entry.getKey();
+            }
+        }
+        if (oldest != null) {
+            receivedBytes -= receivedMessages.remove(oldest).memory;
+        }
+    }
+
+    /**
+     * A message that has been sent as fragments.
+     */
+    private class SentMessage {
+        private ArrayList<Fragment> fragments;
+        private long size; // bytes of memory used by the fragments
+        private long createdTime;
+        private boolean reported;
+
+        public SentMessage(ArrayList<Fragment> fragments, long size) {
+            this.fragments = fragments;
+            this.size = size;
+            this.createdTime = (new Date()).getTime();
+        }
+    }
+
+    /**
+     * A message of which only some fragments have been received.
+     */
+    private class PartialMessage {
+        private byte[][] parts;
+        private int received;
+        private long size; // bytes of data fragments
+        private long memory; // bytes of memory used, including the data and parity fragments
+        private long lastUpdate;
+        private long lastNack;
+        private int groupSize;
+        private int parityCount;
+        private HashMap<Integer, byte[]> parity;
+        private HashMap<Integer, Long> parityLength;
+
+        public PartialMessage(int total) {
+            this.parts = new byte[total][];
+            this.lastUpdate = (new Date()).getTime();
+            this.parity = new HashMap<>();
+            this.parityLength = new HashMap<>();
+        }
+    }
+}
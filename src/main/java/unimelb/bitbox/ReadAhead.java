@@ -0,0 +1,112 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads the next blocks of a file into the {@link BlockCache} before a peer asks for them. A peer downloading a file
+ * asks for its blocks one after another, so once a peer has asked for consecutive blocks, the blocks after the one
+ * asked for are read in the background while the block is on its way. The number of blocks read ahead doubles while
+ * the peer keeps finding them in the cache, up to readAheadBlocks, halves if they were evicted before the peer got to
+ * them, and drops to none when the peer jumps elsewhere in the file.
+ */
+public class ReadAhead {
+
+    // the most blocks read ahead for one peer and file
+    private static final int MAX_DEPTH = Integer.parseInt(Configuration.getConfigurationValue("readAheadBlocks", "8"));
+    // the most downloads followed at once
+    private static final int MAX_STREAMS = 256;
+
+    private static final ExecutorService readers = Executors.newFixedThreadPool(
+            Integer.parseInt(Configuration.getConfigurationValue("readAheadThreads", "2")), r -> {
+                Thread thread = new Thread(r, "ReadAhead");
+                thread.setDaemon(true);
+                // requests that are waited for come first
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+    // least recently used first
+    private static final LinkedHashMap<String, Stream> streams = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    /**
+     * The blocks of a file one peer is asking for.
+     */
+    private static class Stream {
+        private long next; // position of the block expected next
+        private long readTo; // end of the blocks read ahead
+        private int depth; // blocks to read ahead
+    }
+
+    /**
+     * Record that a peer has asked for a block of a file, and read the blocks it is expected to ask for next.
+     * @param fileSystemManager the file system manager to read from
+     * @param peer the peer
+     * @param md5 the md5 of the file
+     * @param position the position of the block
+     * @param length the length of the block
+     * @param fileSize the size of the file
+     * @param cached whether the block was in the block cache when it was asked for
+     */
+    public static void request(FileSystemManager fileSystemManager, String peer, String md5, long position,
+                               long length, long fileSize, boolean cached) {
+        if (MAX_DEPTH <= 0 || length <= 0) {
+            return;
+        }
+        long from;
+        long to;
+        synchronized (streams) {
+            String key = peer + ":" + md5;
+            Stream stream = streams.get(key);
+            if (stream == null) {
+                stream = new Stream();
+                streams.put(key, stream);
+            }
+            if (position != stream.next) {
+                stream.depth = 0;
+                stream.readTo = 0;
+            }
+            else if (position < stream.readTo && !cached) {
+                // read ahead too far, the block was evicted before it was asked for
+                stream.depth = Math.max(1, stream.depth / 2);
+            }
+            else {
+                stream.depth = Math.min(MAX_DEPTH, Math.max(1, stream.depth * 2));
+            }
+            stream.next = position + length;
+            if (stream.depth == 0) {
+                return;
+            }
+            from = Math.max(stream.readTo, stream.next);
+            to = Math.min(fileSize, stream.next + stream.depth * length);
+            stream.readTo = Math.max(stream.readTo, to);
+        }
+        for (long p = from; p < to; p += length) {
+            long blockPosition = p;
+            long blockLength = Math.min(length, fileSize - p);
+            readers.execute(() -> {
+                try {
+                    BlockCache.prefetch(fileSystemManager, md5, blockPosition, blockLength);
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    // the block is read again when it is asked for
+                }
+            });
+        }
+    }
+
+    // private constructor to prevent initialization
+    private ReadAhead() {
+    }
+}
@@ -7,20 +7,50 @@ import unimelb.bitbox.util.FileSystemManager;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
 
 public class RequestHandler {
 
+    // files at least this large are asked for their chunk list first
+    private static final long CHUNK_MIN_FILE_SIZE =
+            Long.parseLong(Configuration.getConfigurationValue("chunkMinFileSize", "65536"));
+
+    // the most bytes asked for at once from a peer, unless its messages can be larger than one datagram
+    public static final long DEFAULT_BLOCK_SIZE = 8192;
+
     private FileSystemManager fileSystemManager;
+    private String origin; // the peer the requests come from
+    private volatile long maxBlockSize = DEFAULT_BLOCK_SIZE; // the most bytes asked for at once from the peer
 
     /**
      * Constructor.
      * @param fileSystemManager The user's file system manager.
      */
     public RequestHandler(FileSystemManager fileSystemManager) {
+        this(fileSystemManager, null);
+    }
+
+    /**
+     * Constructor.
+     * @param fileSystemManager The user's file system manager.
+     * @param origin The peer the requests come from, given to the file system manager as the origin of the changes.
+     */
+    public RequestHandler(FileSystemManager fileSystemManager, String origin) {
         this.fileSystemManager = fileSystemManager;
+        this.origin = origin;
+    }
+
+    /**
+     * Set the most bytes asked for at once from the peer, which depends on what its messages can carry.
+     * @param maxBlockSize the largest block size
+     */
+    public void setMaxBlockSize(long maxBlockSize) {
+        this.maxBlockSize = maxBlockSize;
     }
 
     /**
@@ -64,6 +94,58 @@ public class RequestHandler {
             responses.add(directoryDeleteHelper.getResponse());
         }
 
+        else if (protocol instanceof SubtreeDeleteRequest) {
+            SubtreeDeleteHelper subtreeDeleteHelper =
+                    new SubtreeDeleteHelper(fileSystemManager, (SubtreeDeleteRequest) protocol);
+            if (subtreeDeleteHelper.checkName()) {
+                subtreeDeleteHelper.doOperation();
+            }
+            responses.add(subtreeDeleteHelper.getResponse());
+        }
+
+        else if (protocol instanceof DirectoryMoveRequest) {
+            DirectoryMoveHelper directoryMoveHelper =
+                    new DirectoryMoveHelper(fileSystemManager, (DirectoryMoveRequest) protocol);
+            if (directoryMoveHelper.checkName()) {
+                directoryMoveHelper.doOperation();
+            }
+            responses.add(directoryMoveHelper.getResponse());
+            if (directoryMoveHelper.getDigestResponse() != null) {
+                // let the peer send what the directory is missing instead
+                responses.add(directoryMoveHelper.getDigestResponse());
+            }
+        }
+
+        else if (protocol instanceof SubtreeDeleteResponse) {
+            SubtreeDeleteResponse response = (SubtreeDeleteResponse) protocol;
+            if (!response.status && response.message.equals(SubtreeDeleteHelper.CONTENT_DIFFERS)) {
+                // delete only what the peer has of the directory as it was here
+                FileSystemManager.FileSystemEvent event =
+                        fileSystemManager.findSubtreeDelete(response.pathName, response.digest);
+                if (event != null) {
+                    responses.addAll(EventHandler.expandSubtreeDelete(event));
+                }
+            }
+        }
+
+        // Directory digest
+        else if (protocol instanceof DirectoryDigestRequest) {
+            DirectoryDigestRequestHelper directoryDigestRequestHelper =
+                    new DirectoryDigestRequestHelper(fileSystemManager, (DirectoryDigestRequest) protocol);
+            if (directoryDigestRequestHelper.checkName()) {
+                directoryDigestRequestHelper.doOperation();
+            }
+            responses.add(directoryDigestRequestHelper.getResponse());
+        }
+
+        else if (protocol instanceof DirectoryDigestResponse) {
+            DirectoryDigestResponseHelper directoryDigestResponseHelper =
+                    new DirectoryDigestResponseHelper(fileSystemManager, (DirectoryDigestResponse) protocol);
+            if (directoryDigestResponseHelper.checkName()) {
+                responses.addAll(directoryDigestResponseHelper.doOperation());
+            }
+        }
+
         // File
         else if (protocol instanceof FileCreateRequest) {
 
@@ -72,7 +154,19 @@ public class RequestHandler {
             FileCreateHelper fileCreateHelper = new FileCreateHelper(fileSystemManager, pathName, fileDescriptor);
 
             if (fileCreateHelper.checkName()) {
-                fileCreateHelper.doOperation();
+                int admission = TransferManager.admit(pathName, fileDescriptor.getString("md5"),
+                        fileDescriptor.getLong("fileSize"), fileSystemManager, retry(requestStr, pathName));
+                if (admission > 0) {
+                    fileCreateHelper.doOperation();
+                    if (fileCreateHelper.isAttached()) {
+                        TransferManager.attach(pathName);
+                    }
+                    TransferManager.settle(pathName, fileCreateHelper.isFileBytesReqPending());
+                }
+                else {
+                    // too many files are loading
+                    fileCreateHelper.refuse(admission == 0 ? "file transfer queued" : "too many file transfers queued");
+                }
             }
             responses.add(fileCreateHelper.getResponse());
             if (fileCreateHelper.isFileBytesReqPending()) {
@@ -94,10 +188,28 @@ public class RequestHandler {
         else if (protocol instanceof FileModifyRequest) {
             String pathName = ((FileModifyRequest) protocol).pathName;
             Document fileDescriptor = ((FileModifyRequest) protocol).fileDescriptor;
-            FileModifyHelper fileModifyHelper = new FileModifyHelper(fileSystemManager, pathName, fileDescriptor);
+            FileModifyHelper fileModifyHelper = new FileModifyHelper(fileSystemManager, pathName, fileDescriptor,
+                    ((FileModifyRequest) protocol).prefix);
 
             if (fileModifyHelper.checkName()) {
-                fileModifyHelper.doOperation();
+                int admission = TransferManager.admit(pathName, fileDescriptor.getString("md5"),
+                        fileDescriptor.getLong("fileSize"), fileSystemManager, retry(requestStr, pathName));
+                if (admission > 0) {
+                    fileModifyHelper.doOperation();
+                    if (fileModifyHelper.isAttached()) {
+                        TransferManager.attach(pathName);
+                    }
+                    TransferManager.settle(pathName, fileModifyHelper.isFileBytesReqPending());
+                }
+                else {
+                    // too many files are loading
+                    fileModifyHelper.refuse(admission == 0 ? "file transfer queued" : "too many file transfers queued");
+                }
+            }
+            else if (fileModifyHelper.isPathMissing() && TransferManager.defer(pathName,
+                    fileDescriptor.getLong("fileSize"), retry(requestStr, pathName))) {
+                // the file is still loading an earlier version, which is modified once it has loaded
+                fileModifyHelper.refuse("file transfer queued");
             }
             responses.add(fileModifyHelper.getResponse());
             if (fileModifyHelper.isFileBytesReqPending()) {
@@ -105,6 +217,55 @@ public class RequestHandler {
             }
         }
 
+        else if (protocol instanceof FileMoveRequest) {
+            FileMoveHelper fileMoveHelper = new FileMoveHelper(fileSystemManager, (FileMoveRequest) protocol);
+            if (fileMoveHelper.checkName()) {
+                fileMoveHelper.doOperation();
+            }
+            responses.add(fileMoveHelper.getResponse());
+            if (fileMoveHelper.getFallbackRequest() != null) {
+                // load the file at its new path instead, without answering the request made up for it
+                for (Protocol p : handleRequest(fileMoveHelper.getFallbackRequest().toString())) {
+                    if (!(p instanceof FileCreateResponse) && !(p instanceof FileModifyResponse)) {
+                        responses.add(p);
+                    }
+                }
+            }
+        }
+
+        // File bundles
+        else if (protocol instanceof FileBundle) {
+            FileBundleHelper fileBundleHelper = new FileBundleHelper(fileSystemManager, (FileBundle) protocol);
+            fileBundleHelper.doOperation();
+            responses.add(fileBundleHelper.getResponse());
+            for (Protocol request : fileBundleHelper.getFallbackRequests()) {
+                // load the files not created as if they had been asked for one by one
+                for (Protocol p : handleRequest(request.toString())) {
+                    if (!(p instanceof FileCreateResponse) && !(p instanceof FileModifyResponse)) {
+                        responses.add(p);
+                    }
+                }
+            }
+        }
+
+        // File chunks
+        else if (protocol instanceof FileChunksRequest) {
+            FileChunksRequestHelper fileChunksRequestHelper =
+                    new FileChunksRequestHelper(fileSystemManager, (FileChunksRequest) protocol);
+            if (fileChunksRequestHelper.checkName()) {
+                fileChunksRequestHelper.doOperation();
+            }
+            responses.add(fileChunksRequestHelper.getResponse());
+        }
+
+        else if (protocol instanceof FileChunksResponse) {
+            FileChunksResponseHelper fileChunksResponseHelper =
+                    new FileChunksResponseHelper(fileSystemManager, (FileChunksResponse) protocol);
+            if (fileChunksResponseHelper.checkName() && fileChunksResponseHelper.doOperation()) {
+                responses.add(fileChunksResponseHelper.getResponse());
+            }
+        }
+
         // File bytes
         else if (protocol instanceof FileBytesRequest) {
             FileBytesRequestHelper fileBytesRequestHelper = new FileBytesRequestHelper(fileSystemManager, protocol);
@@ -131,6 +292,60 @@ public class RequestHandler {
     // Internals
     ////////////////////
 
+    /**
+     * Ask for the bytes of a file whose file loader has just been created. Large files are first asked for their
+     * chunk list, if the peer can give one, so that the chunks present locally are copied instead of transferred.
+     * @return the chunks request or the first file bytes request, null if no bytes are missing
+     */
+    private Protocol requestBytes(String pathName, Document fileDescriptor, long blockSize) {
+        if (fileDescriptor.getLong("fileSize") >= CHUNK_MIN_FILE_SIZE && Swarm.canListChunks(origin)) {
+            return new FileChunksRequest(fileDescriptor, pathName);
+        }
+        return startDownload(pathName, fileDescriptor, blockSize);
+    }
+
+    /**
+     * Start downloading a file whose file loader has just been created, skipping the blocks the file loader has kept
+     * from an earlier, interrupted download of the same content, or copied from local chunks.
+     * @return the first file bytes request, null if no bytes are missing
+     */
+    private Protocol startDownload(String pathName, Document fileDescriptor, long blockSize) {
+        Protocol request = Swarm.start(pathName, fileDescriptor, origin, blockSize,
+                fileSystemManager.getLoadedBlocks(pathName));
+        if (request == null) {
+            TransferManager.end(pathName);
+            try {
+                if (!fileSystemManager.checkWriteComplete(pathName)) {
+                    fileSystemManager.cancelFileLoader(pathName);
+                }
+            } catch (NoSuchAlgorithmException | IOException e) {
+                System.out.println("Problem in IO");
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Make a task that handles a queued create/modify request again once it is admitted, sending the file bytes
+     * or file chunks request it leads to.
+     */
+    private Runnable retry(String requestStr, String pathName) {
+        return () -> {
+            for (Protocol protocol : handleRequest(requestStr)) {
+                if ((protocol instanceof FileBytesRequest || protocol instanceof FileChunksRequest) &&
+                        !Swarm.send(origin, protocol)) {
+                    // the peer has gone in the meantime
+                    Swarm.abort(pathName);
+                    try {
+                        fileSystemManager.cancelFileLoader(pathName);
+                    } catch (IOException e) {
+                        System.out.println("Problem in IO");
+                    }
+                }
+            }
+        };
+    }
+
     /**
      * Following are internal helper classes that assist the requestHandler method.
      */
@@ -162,7 +377,7 @@ public class RequestHandler {
         }
 
         public void doOperation() {
-            if (fileSystemManager.makeDirectory(pathName)) {
+            if (fileSystemManager.makeDirectory(pathName, origin)) {
                 response = new DirectoryCreateResponse(pathName);
             }
             else {
@@ -200,7 +415,7 @@ public class RequestHandler {
         }
 
         public void doOperation() {
-            if (fileSystemManager.deleteDirectory(pathName)) {
+            if (fileSystemManager.deleteDirectory(pathName, origin)) {
                 response = new DirectoryDeleteResponse(pathName);
             }
             else {
@@ -212,6 +427,204 @@ public class RequestHandler {
         public Protocol getResponse() { return response; }
     }
 
+    private class SubtreeDeleteHelper {
+        private static final String CONTENT_DIFFERS = "directory content differs";
+        private FileSystemManager fileSystemManager;
+        private SubtreeDeleteRequest request;
+        private Protocol response;
+
+        public SubtreeDeleteHelper(FileSystemManager fileSystemManager, SubtreeDeleteRequest request) {
+            this.fileSystemManager = fileSystemManager;
+            this.request = request;
+        }
+
+        public Boolean checkName() {
+            if (!fileSystemManager.isSafePathName(request.pathName)) {
+                response = new SubtreeDeleteResponse(request.pathName, request.digest, "unsafe pathname given");
+                return false;
+            }
+            else if (!fileSystemManager.dirNameExists(request.pathName)) {
+                response = new SubtreeDeleteResponse(request.pathName, request.digest, "pathname does not exist");
+                return false;
+            }
+            else if (!request.digest.equals(fileSystemManager.getSubtreeDigest(request.pathName))) {
+                // something in it has changed here or not arrived yet, the peer sends the deletes one by one
+                response = new SubtreeDeleteResponse(request.pathName, request.digest, CONTENT_DIFFERS);
+                return false;
+            }
+            else return true;
+        }
+
+        public void doOperation() {
+            if (fileSystemManager.deleteSubtree(request.pathName, request.digest, origin)) {
+                response = new SubtreeDeleteResponse(request.pathName, request.digest);
+            }
+            else if (fileSystemManager.dirNameExists(request.pathName)) {
+                // some of it has changed here and was kept, the peer sends the deletes of the rest one by one
+                response = new SubtreeDeleteResponse(request.pathName, request.digest, CONTENT_DIFFERS);
+            }
+            else {
+                response = new SubtreeDeleteResponse(request.pathName, request.digest,
+                        "there was a problem deleting the directory");
+            }
+        }
+
+        public Protocol getResponse() { return response; }
+    }
+
+    private class DirectoryMoveHelper {
+        private FileSystemManager fileSystemManager;
+        private DirectoryMoveRequest request;
+        private Protocol response;
+        private Protocol digestResponse;
+
+        public DirectoryMoveHelper(FileSystemManager fileSystemManager, DirectoryMoveRequest request) {
+            this.fileSystemManager = fileSystemManager;
+            this.request = request;
+        }
+
+        public Boolean checkName() {
+            if (!fileSystemManager.isSafePathName(request.pathName) ||
+                    !fileSystemManager.isSafePathName(request.oldPathName)) {
+                response = new DirectoryMoveResponse(request.pathName, request.oldPathName, "unsafe pathname given");
+                return false;
+            }
+            else if (fileSystemManager.dirNameExists(request.pathName) &&
+                    !fileSystemManager.dirNameExists(request.oldPathName)) {
+                // moved already
+                response = new DirectoryMoveResponse(request.pathName, request.oldPathName, "pathname already exists");
+                return false;
+            }
+            else return true;
+        }
+
+        public void doOperation() {
+            if (fileSystemManager.moveDirectory(request.oldPathName, request.pathName, origin)) {
+                response = new DirectoryMoveResponse(request.pathName, request.oldPathName);
+            }
+            else {
+                // the directory here is not the one moved, compare it with the peer's
+                response = new DirectoryMoveResponse(request.pathName, request.oldPathName,
+                        "there was a problem moving the directory");
+                DirectoryDigestRequestHelper directoryDigestRequestHelper = new DirectoryDigestRequestHelper(
+                        fileSystemManager, new DirectoryDigestRequest(request.pathName, ""));
+                directoryDigestRequestHelper.doOperation();
+                digestResponse = directoryDigestRequestHelper.getResponse();
+            }
+        }
+
+        public Protocol getResponse() { return response; }
+
+        public Protocol getDigestResponse() { return digestResponse; }
+    }
+
+    // Helpers for directory digest comparison
+    private class DirectoryDigestRequestHelper {
+        private FileSystemManager fileSystemManager;
+        private DirectoryDigestRequest request;
+        private Protocol response;
+
+        public DirectoryDigestRequestHelper(FileSystemManager fileSystemManager, DirectoryDigestRequest request) {
+            this.fileSystemManager = fileSystemManager;
+            this.request = request;
+        }
+
+        public Boolean checkName() {
+            // the empty path name is the share directory
+            if (!request.pathName.isEmpty() && !fileSystemManager.isSafePathName(request.pathName)) {
+                response = new DirectoryDigestResponse(request.pathName, "", new ArrayList<>(),
+                        "unsafe pathname given");
+                return false;
+            }
+            else return true;
+        }
+
+        public void doOperation() {
+            String digest = fileSystemManager.getDirectoryDigest(request.pathName);
+            if (digest == null) {
+                response = new DirectoryDigestResponse(request.pathName, "", new ArrayList<>(),
+                        "pathname does not exist");
+            }
+            else if (digest.equals(request.digest)) {
+                response = new DirectoryDigestResponse(request.pathName, digest);
+            }
+            else {
+                ArrayList<Document> entries = new ArrayList<>();
+                ArrayList<FileSystemManager.DirectoryEntry> directoryEntries =
+                        fileSystemManager.getDirectoryEntries(request.pathName);
+                if (directoryEntries != null) {
+                    for (FileSystemManager.DirectoryEntry entry : directoryEntries) {
+                        entries.add(entry.toDoc());
+                    }
+                }
+                response = new DirectoryDigestResponse(request.pathName, digest, entries, "directory digest differs");
+            }
+        }
+
+        public Protocol getResponse() { return response; }
+    }
+
+    private class DirectoryDigestResponseHelper {
+        private FileSystemManager fileSystemManager;
+        private DirectoryDigestResponse response;
+
+        public DirectoryDigestResponseHelper(FileSystemManager fileSystemManager, DirectoryDigestResponse response) {
+            this.fileSystemManager = fileSystemManager;
+            this.response = response;
+        }
+
+        public Boolean checkName() {
+            // nothing to do if the peer has the same directory
+            return !response.status &&
+                    (response.pathName.isEmpty() || fileSystemManager.isSafePathName(response.pathName));
+        }
+
+        /**
+         * Compare my entries with the peer's, sending the files and directories it does not have and asking it to
+         * compare the sub directories that differ.
+         * @return The protocols to be sent to the peer.
+         */
+        public ArrayList<Protocol> doOperation() {
+            ArrayList<Protocol> requests = new ArrayList<>();
+            ArrayList<FileSystemManager.DirectoryEntry> entries = fileSystemManager.getDirectoryEntries(response.pathName);
+            if (entries == null) {
+                return requests;
+            }
+            // the peer does not have the directory at all
+            if (!response.pathName.isEmpty() && response.digest.isEmpty()) {
+                for (FileSystemManager.FileSystemEvent event : fileSystemManager.generateSyncEvents(response.pathName)) {
+                    requests.add(EventHandler.handleEvent(event));
+                }
+                return requests;
+            }
+            HashMap<String, Document> remoteEntries = new HashMap<>();
+            for (Document entry : response.entries) {
+                remoteEntries.put(entry.getString("name"), entry);
+            }
+            for (FileSystemManager.DirectoryEntry entry : entries) {
+                String pathName = response.pathName.isEmpty() ? entry.name :
+                        response.pathName + FileSystems.getDefault().getSeparator() + entry.name;
+                Document remote = remoteEntries.get(entry.name);
+                if (remote != null && remote.getString("digest").equals(entry.digest) &&
+                        remote.getBoolean("directory") == entry.directory) {
+                    continue;
+                }
+                if (!entry.directory) {
+                    requests.add(new FileCreateRequest(entry.fileDescriptor.toDoc(), pathName));
+                }
+                else if (remote != null && remote.getBoolean("directory")) {
+                    requests.add(new DirectoryDigestRequest(pathName, entry.digest));
+                }
+                else {
+                    for (FileSystemManager.FileSystemEvent event : fileSystemManager.generateSyncEvents(pathName)) {
+                        requests.add(EventHandler.handleEvent(event));
+                    }
+                }
+            }
+            return requests;
+        }
+    }
+
     // Helpers for file related operations
     private class FileCreateHelper {
         private FileSystemManager fileSystemManager;
@@ -222,6 +635,7 @@ public class RequestHandler {
         private Protocol fileBytesRequest;
         private Boolean fileBytesReqPending = false;
         private Boolean createModifyFl = false;
+        private boolean attached = false; // waiting for a transfer of the same content
 
         public FileCreateHelper(FileSystemManager fileSystemManager, String pathName, Document fileDescriptor) {
             this.fileSystemManager = fileSystemManager;
@@ -259,34 +673,33 @@ public class RequestHandler {
             long lastModified = fileDescriptor.getLong("lastModified");
             long fileSize = fileDescriptor.getLong("fileSize");
 
-            long position = 0;
-            long length;
-            long blockSize = Math.min(Long.parseLong(Configuration.getConfigurationValue("blockSize")), (long) 8192);
-
-            // Determine the length of data to be request
-            if (fileSize >= blockSize) {
-                length = blockSize;
-            } else {length = fileSize;}
+            long blockSize = Math.min(Long.parseLong(Configuration.getConfigurationValue("blockSize")), maxBlockSize);
 
             try{
                 if (!createModifyFl) {
-                    if (fileSystemManager.createFileLoader(pathName, md5, fileSize, lastModified)) {
+                    if (fileSystemManager.createFileLoader(pathName, md5, fileSize, lastModified, origin)) {
                         try{
-                            if (!fileSystemManager.checkShortcut(pathName)) {
-                                // no local copy exists; need to send File Bytes Request
-                                fileBytesRequest = new FileBytesRequest(fileDescriptor, pathName, position, length);
-                                fileBytesReqPending = true;
+                            if (!fileSystemManager.checkShortcut(pathName) &&
+                                    !(attached = fileSystemManager.attachTransfer(pathName))) {
+                                // no local copy exists or is loading; need to send File Bytes Request
+                                fileBytesRequest = requestBytes(pathName, fileDescriptor, blockSize);
+                                fileBytesReqPending = fileBytesRequest != null;
                             }
                             response = new FileCreateResponse(fileDescriptor, pathName);
                         }
                         catch (NoSuchAlgorithmException | IOException e) {
                             // do not know if local copy exists, so send File Bytes Request
                             System.out.println("Problem in IO");
-                            fileBytesRequest = new FileBytesRequest(fileDescriptor, pathName, position, length);
-                            fileBytesReqPending = true;
+                            fileBytesRequest = requestBytes(pathName, fileDescriptor, blockSize);
+                            fileBytesReqPending = fileBytesRequest != null;
                             response = new FileCreateResponse(fileDescriptor, pathName);
                         }
                     }
+                    else if ((fileBytesRequest = Swarm.join(pathName, md5, origin)) != null) {
+                        // the same content is loading from another peer; help with it
+                        fileBytesReqPending = true;
+                        response = new FileCreateResponse(fileDescriptor, pathName);
+                    }
                     else {
                         // fail to create file loader
                         message = "there was a problem creating the file";
@@ -294,22 +707,28 @@ public class RequestHandler {
                     }
                 }
                 else {
-                    if (fileSystemManager.modifyFileLoader(pathName, md5, lastModified)) {
+                    if (fileSystemManager.modifyFileLoader(pathName, md5, lastModified, origin)) {
                         try{
-                            if (!fileSystemManager.checkShortcut(pathName)) {
-                                // no local copy exists; need to send File Bytes Request
-                                fileBytesRequest = new FileBytesRequest(fileDescriptor, pathName, position, length);
-                                fileBytesReqPending = true;
+                            if (!fileSystemManager.checkShortcut(pathName) &&
+                                    !(attached = fileSystemManager.attachTransfer(pathName))) {
+                                // no local copy exists or is loading; need to send File Bytes Request
+                                fileBytesRequest = requestBytes(pathName, fileDescriptor, blockSize);
+                                fileBytesReqPending = fileBytesRequest != null;
                             }
                             response = new FileCreateResponse(fileDescriptor, pathName);
                         }
                         catch (NoSuchAlgorithmException | IOException e) {
                             // do not know if local copy exists, so send File Bytes Request
-                            fileBytesRequest = new FileBytesRequest(fileDescriptor, pathName, position, length);
-                            fileBytesReqPending = true;
+                            fileBytesRequest = requestBytes(pathName, fileDescriptor, blockSize);
+                            fileBytesReqPending = fileBytesRequest != null;
                             response = new FileCreateResponse(fileDescriptor, pathName);
                         }
                     }
+                    else if ((fileBytesRequest = Swarm.join(pathName, md5, origin)) != null) {
+                        // the same content is loading from another peer; help with it
+                        fileBytesReqPending = true;
+                        response = new FileCreateResponse(fileDescriptor, pathName);
+                    }
                     else {
                         // fail to modify file loader
                         message = "there was a problem creating the file";
@@ -323,12 +742,19 @@ public class RequestHandler {
             }
         }
 
+        public void refuse(String message) {
+            this.message = message;
+            response = new FileCreateResponse(fileDescriptor, pathName, message);
+        }
+
         public Protocol getResponse() { return response; }
 
         public Boolean isFileBytesReqPending() { return fileBytesReqPending; }
 
         public Protocol getFileBytesRequest() { return fileBytesRequest; }
 
+        public boolean isAttached() { return attached; }
+
     }
 
     private class FileDeleteHelper {
@@ -362,7 +788,7 @@ public class RequestHandler {
             String md5 = fileDescriptor.getString("md5");
             long lastModified = fileDescriptor.getLong("lastModified");
 
-            if (fileSystemManager.deleteFile(pathName, lastModified, md5)) {
+            if (fileSystemManager.deleteFile(pathName, lastModified, md5, origin)) {
                 response = new FileDeleteResponse(fileDescriptor, pathName);
             }
             else {
@@ -374,19 +800,132 @@ public class RequestHandler {
         public Protocol getResponse() { return response; }
     }
 
+    private class FileMoveHelper {
+        private FileSystemManager fileSystemManager;
+        private FileMoveRequest request;
+        private Protocol response;
+        private Protocol fallbackRequest;
+
+        public FileMoveHelper(FileSystemManager fileSystemManager, FileMoveRequest request) {
+            this.fileSystemManager = fileSystemManager;
+            this.request = request;
+        }
+
+        public Boolean checkName() {
+            if (!fileSystemManager.isSafePathName(request.pathName) ||
+                    !fileSystemManager.isSafePathName(request.oldPathName)) {
+                response = new FileMoveResponse(request.fileDescriptor, request.pathName, request.oldPathName,
+                        "unsafe pathname given");
+                return false;
+            }
+            else return true;
+        }
+
+        public void doOperation() {
+            String md5 = request.fileDescriptor.getString("md5");
+
+            if (fileSystemManager.fileNameExists(request.pathName, md5)) {
+                // moved already, only the old file may be left
+                if (fileSystemManager.fileNameExists(request.oldPathName, md5)) {
+                    fileSystemManager.deleteFile(request.oldPathName, request.fileDescriptor.getLong("lastModified"),
+                            md5, origin);
+                }
+                response = new FileMoveResponse(request.fileDescriptor, request.pathName, request.oldPathName);
+            }
+            else if (fileSystemManager.moveFile(request.oldPathName, request.pathName, md5, origin)) {
+                response = new FileMoveResponse(request.fileDescriptor, request.pathName, request.oldPathName);
+            }
+            else {
+                // the file here is not the one moved
+                response = new FileMoveResponse(request.fileDescriptor, request.pathName, request.oldPathName,
+                        "there was a problem moving the file, loading it instead");
+                if (fileSystemManager.fileNameExists(request.pathName)) {
+                    fallbackRequest = new FileModifyRequest(request.fileDescriptor, request.pathName);
+                }
+                else {
+                    fallbackRequest = new FileCreateRequest(request.fileDescriptor, request.pathName);
+                }
+            }
+        }
+
+        public Protocol getResponse() { return response; }
+
+        public Protocol getFallbackRequest() { return fallbackRequest; }
+    }
+
+    private class FileBundleHelper {
+        private FileSystemManager fileSystemManager;
+        private FileBundle bundle;
+        private Protocol response;
+        private ArrayList<Protocol> fallbackRequests = new ArrayList<>();
+
+        public FileBundleHelper(FileSystemManager fileSystemManager, FileBundle bundle) {
+            this.fileSystemManager = fileSystemManager;
+            this.bundle = bundle;
+        }
+
+        public void doOperation() {
+            ArrayList<FileSystemManager.FileContent> files = new ArrayList<>();
+            for (Document file : bundle.files) {
+                String pathName = file.getString("pathName");
+                Document fileDescriptor = (Document) file.get("fileDescriptor");
+                if (!fileSystemManager.isSafePathName(pathName)) {
+                    continue;
+                }
+                try {
+                    files.add(fileSystemManager.new FileContent(pathName, fileDescriptor.getString("md5"),
+                            fileDescriptor.getLong("lastModified"), Base64.getDecoder().decode(file.getString("content"))));
+                } catch (IllegalArgumentException e) {
+                    // not base64, loaded instead
+                }
+            }
+            HashSet<String> created = new HashSet<>();
+            try {
+                created.addAll(fileSystemManager.createFiles(files, origin));
+            } catch (NoSuchAlgorithmException e) {
+                System.out.println("MD5 algorithm not available");
+            }
+            for (Document file : bundle.files) {
+                String pathName = file.getString("pathName");
+                Document fileDescriptor = (Document) file.get("fileDescriptor");
+                if (created.contains(pathName) || !fileSystemManager.isSafePathName(pathName) ||
+                        fileSystemManager.fileNameExists(pathName, fileDescriptor.getString("md5"))) {
+                    continue;
+                }
+                if (fileSystemManager.fileNameExists(pathName)) {
+                    fallbackRequests.add(new FileModifyRequest(fileDescriptor, pathName));
+                }
+                else {
+                    fallbackRequests.add(new FileCreateRequest(fileDescriptor, pathName));
+                }
+            }
+            response = new FileBundleResponse(bundle.getPathNames(), "created " + created.size() + " of " +
+                    bundle.files.size() + " files", created.size() == bundle.files.size());
+        }
+
+        public Protocol getResponse() { return response; }
+
+        public ArrayList<Protocol> getFallbackRequests() { return fallbackRequests; }
+    }
+
     private class FileModifyHelper {
         private FileSystemManager fileSystemManager;
         private String pathName;
         private Document fileDescriptor;
+        private Document prefix;
         private String message;
         private Protocol response;
         private Boolean fileBytesReqPending = false;
         private Protocol fileBytesRequest;
+        private boolean pathMissing = false;
+        private boolean attached = false; // waiting for a transfer of the same content
 
-        public FileModifyHelper(FileSystemManager fileSystemManager, String pathName, Document fileDescriptor) {
+        public FileModifyHelper(FileSystemManager fileSystemManager, String pathName, Document fileDescriptor,
+                                Document prefix) {
             this.fileSystemManager = fileSystemManager;
             this.pathName = pathName;
             this.fileDescriptor = fileDescriptor;
+            this.prefix = prefix;
         }
 
         public Boolean checkName() {
@@ -407,6 +946,7 @@ public class RequestHandler {
                 // check file name only
                 message = "pathname does not exist";
                 response = new FileModifyResponse(fileDescriptor, pathName, message);
+                pathMissing = true;
                 return false;
             }
             else return true;
@@ -417,32 +957,36 @@ public class RequestHandler {
             long lastModified = fileDescriptor.getLong("lastModified");
             long fileSize = fileDescriptor.getLong("fileSize");
 
-            long position = 0;
-            long length;
-            long blockSize = Math.min(Long.parseLong(Configuration.getConfigurationValue("blockSize")), (long) 8192);
-
-            // Determine the length of data to be request
-            if (fileSize >= blockSize) {
-                length = blockSize;
-            } else {length = fileSize;}
+            long blockSize = Math.min(Long.parseLong(Configuration.getConfigurationValue("blockSize")), maxBlockSize);
 
             try{
-                if (fileSystemManager.modifyFileLoader(pathName, md5, lastModified)) {
+                // only the bytes appended to the file here need to be loaded
+                boolean appending = prefix != null && fileSystemManager.appendFileLoader(pathName, md5, fileSize,
+                        lastModified, prefix.getString("md5"), prefix.getLong("fileSize"), origin);
+                if (appending || fileSystemManager.modifyFileLoader(pathName, md5, fileSize, lastModified, origin)) {
                     try{
-                        if (!fileSystemManager.checkShortcut(pathName)) {
-                            // no local copy exists; need to send File Bytes Request
-                            fileBytesRequest = new FileBytesRequest(fileDescriptor, pathName, position, length);
-                            fileBytesReqPending = true;
+                        if (!fileSystemManager.checkShortcut(pathName) &&
+                                !(attached = fileSystemManager.attachTransfer(pathName))) {
+                            // no local copy exists or is loading; need to send File Bytes Request
+                            fileBytesRequest = appending ? startDownload(pathName, fileDescriptor, blockSize) :
+                                    requestBytes(pathName, fileDescriptor, blockSize);
+                            fileBytesReqPending = fileBytesRequest != null;
                         }
                         response = new FileModifyResponse(fileDescriptor, pathName);
                     }
                     catch (NoSuchAlgorithmException | IOException e) {
                         // do not know if local copy exists, so send File Bytes Request
-                        fileBytesRequest = new FileBytesRequest(fileDescriptor, pathName, position, length);
-                        fileBytesReqPending = true;
+                        fileBytesRequest = appending ? startDownload(pathName, fileDescriptor, blockSize) :
+                                requestBytes(pathName, fileDescriptor, blockSize);
+                        fileBytesReqPending = fileBytesRequest != null;
                         response = new FileModifyResponse(fileDescriptor, pathName);
                     }
                 }
+                else if ((fileBytesRequest = Swarm.join(pathName, md5, origin)) != null) {
+                    // the same content is loading from another peer; help with it
+                    fileBytesReqPending = true;
+                    response = new FileModifyResponse(fileDescriptor, pathName);
+                }
                 else {
                     // fail to modify file loader
                     message = "there was a problem modifying the file";
@@ -455,12 +999,114 @@ public class RequestHandler {
             }
         }
 
+        public void refuse(String message) {
+            this.message = message;
+            response = new FileModifyResponse(fileDescriptor, pathName, message);
+        }
+
         public Protocol getResponse() { return response; }
 
         public Boolean isFileBytesReqPending() { return fileBytesReqPending; }
 
         public Protocol getFileBytesRequest() { return fileBytesRequest; }
 
+        public boolean isPathMissing() { return pathMissing; }
+
+        public boolean isAttached() { return attached; }
+
+    }
+
+    // Helpers for file chunk lists
+    private class FileChunksRequestHelper {
+        private FileSystemManager fileSystemManager;
+        private FileChunksRequest request;
+        private Protocol response;
+
+        public FileChunksRequestHelper(FileSystemManager fileSystemManager, FileChunksRequest request) {
+            this.fileSystemManager = fileSystemManager;
+            this.request = request;
+        }
+
+        public Boolean checkName() {
+            if (!fileSystemManager.isSafePathName(request.pathName)) {
+                response = new FileChunksResponse(request.fileDescriptor, request.pathName, "unsafe pathname given");
+                return false;
+            }
+            return true;
+        }
+
+        public void doOperation() {
+            try {
+                ArrayList<FileSystemManager.Chunk> chunks =
+                        fileSystemManager.getChunks(request.fileDescriptor.getString("md5"));
+                if (chunks == null) {
+                    response = new FileChunksResponse(request.fileDescriptor, request.pathName,
+                            "file content not found");
+                    return;
+                }
+                ArrayList<Document> docs = new ArrayList<>();
+                for (FileSystemManager.Chunk chunk : chunks) {
+                    docs.add(chunk.toDoc());
+                }
+                response = new FileChunksResponse(request.fileDescriptor, request.pathName, docs);
+            }
+            catch (NoSuchAlgorithmException | IOException e) {
+                System.out.println("Problem in IO");
+                response = new FileChunksResponse(request.fileDescriptor, request.pathName, "unsuccessful read");
+            }
+        }
+
+        public Protocol getResponse() { return response; }
+    }
+
+    private class FileChunksResponseHelper {
+        private FileSystemManager fileSystemManager;
+        private FileChunksResponse chunksResponse;
+        private Protocol response;
+
+        public FileChunksResponseHelper(FileSystemManager fileSystemManager, FileChunksResponse chunksResponse) {
+            this.fileSystemManager = fileSystemManager;
+            this.chunksResponse = chunksResponse;
+        }
+
+        public Boolean checkName() {
+            return fileSystemManager.isSafePathName(chunksResponse.pathName);
+        }
+
+        /**
+         * Copy the chunks present locally into the file loader, then ask for the rest of the file.
+         * @return true if there is a file bytes request to send
+         */
+        public Boolean doOperation() {
+            String pathName = chunksResponse.pathName;
+            Document fileDescriptor = chunksResponse.fileDescriptor;
+            if (Swarm.isDownloading(pathName, fileDescriptor.getString("md5"))) {
+                // already asked for
+                return false;
+            }
+            if (chunksResponse.status) {
+                ArrayList<FileSystemManager.Chunk> chunks = new ArrayList<>();
+                long position = 0;
+                for (Document doc : chunksResponse.chunks) {
+                    long length = doc.getLong("length");
+                    chunks.add(fileSystemManager.new Chunk(doc.getString("hash"), position, length));
+                    position += length;
+                }
+                try {
+                    long copied = fileSystemManager.copyChunks(pathName, chunks);
+                    System.out.println("Copied " + copied + " of " + position + " bytes of " + pathName +
+                            " from local chunks");
+                }
+                catch (NoSuchAlgorithmException | IOException e) {
+                    System.out.println("Problem in IO");
+                }
+            }
+            long blockSize = Math.min(Long.parseLong(Configuration.getConfigurationValue("blockSize")), maxBlockSize);
+            response = startDownload(pathName, fileDescriptor, blockSize);
+            return response != null;
+        }
+
+        public Protocol getResponse() { return response; }
     }
 
     // Helper for file bytes reads and writes
@@ -499,10 +1145,18 @@ public class RequestHandler {
             String content = "";
 
             try {
-                ByteBuffer byteBuffer = fileSystemManager.readFile(md5, position, length);
+                boolean cached = BlockCache.isCached(md5, position, length);
+                ByteBuffer byteBuffer = BlockCache.read(fileSystemManager, md5, position, length);
+                ReadAhead.request(fileSystemManager, origin, md5, position, length, fileDescriptor.getLong("fileSize"),
+                        cached);
                 if (byteBuffer != null) {
-                    content = Base64.getEncoder().encodeToString(byteBuffer.array());
-                    response = new FileBytesResponse(fileDescriptor, pathName, position, length, content);
+                    byte[] bytes = byteBuffer.array();
+                    long checksum = BlockChecksums.get(md5, position, bytes);
+                    content = Base64.getEncoder().encodeToString(bytes);
+                    FileBytesResponse fileBytesResponse =
+                            new FileBytesResponse(fileDescriptor, pathName, position, length, content);
+                    fileBytesResponse.checksum = checksum;
+                    response = fileBytesResponse;
                 }
                 else {
                     String errorMsg = "unsuccessful read";
@@ -549,26 +1203,35 @@ public class RequestHandler {
                 String content = ((FileBytesResponse) protocol).content;
                 byte[] decodedContent = Base64.getDecoder().decode(content);
                 ByteBuffer src = ByteBuffer.wrap(decodedContent);
+                Long checksum = ((FileBytesResponse) protocol).checksum;
+
+                if (decodedContent.length != length ||
+                        (checksum != null && BlockChecksums.checksum(decodedContent) != checksum)) {
+                    // only this block is asked for again
+                    System.out.println("Block at " + position + " of " + pathName + " from " + origin +
+                            " does not match its checksum");
+                    if (Swarm.failed(pathName, fileDescriptor.getString("md5"), origin, position)) {
+                        try {
+                            fileSystemManager.cancelFileLoader(pathName);
+                        } catch (IOException exception) {
+                            System.out.println("Problem in IO");
+                        }
+                    }
+                    return false;
+                }
 
                 try {
                     if (fileSystemManager.writeFile(pathName, src, position)) {
+                        String md5 = fileDescriptor.getString("md5");
 
-                        long nextPosition = position + length;
-                        long nextLength;
-                        long fileSize = fileDescriptor.getLong("fileSize");
-                        long remainingFileSize = fileSize - (position + length);
-
-                        // Check if the complete file has been written; if not, send the next File Bytes Request
-                        if (remainingFileSize > 0) {
-                            long blockSize = Math.min(Long.parseLong(Configuration.getConfigurationValue("blockSize")), (long) 8192);
-                            if (remainingFileSize >= blockSize) {
-                                nextLength = blockSize;
-                            } else {
-                                nextLength = remainingFileSize;
-                            }
-                            response = new FileBytesRequest(fileDescriptor, pathName, nextPosition, nextLength);
+                        // ask the same peer for the next block no peer has been asked for yet
+                        Protocol next = Swarm.received(pathName, md5, origin, position, length);
+                        if (next != null) {
+                            response = next;
                             return true;
-                        } else {
+                        }
+                        // Check if every block of the file has been written
+                        if (Swarm.finish(pathName, md5)) {
                             try {
                                 // call checkWriteComplete to double check and properly close the file loader
                                 if (!fileSystemManager.checkWriteComplete(pathName)) {
@@ -581,7 +1244,10 @@ public class RequestHandler {
                                 return false;
                             }
                         }
+                        // other peers are still sending blocks
+                        return false;
                     } else {
+                        Swarm.abort(pathName);
                         try {
                             fileSystemManager.cancelFileLoader(pathName);
                         } catch (IOException e) {
@@ -590,19 +1256,26 @@ public class RequestHandler {
                         return false;
                     }
                 } catch (IOException e) {
+                    // the block is asked for again, keeping what has been written so far
                     System.out.println("Problem in IO");
+                    if (Swarm.failed(pathName, fileDescriptor.getString("md5"), origin, position)) {
+                        try {
+                            fileSystemManager.cancelFileLoader(pathName);
+                        } catch (IOException exception) {
+                            System.out.println("Problem in IO");
+                        }
+                    }
+                    return false;
+                }
+            } else {
+                // the peer failed to read file bytes; the block is asked for again, from the same peer or another
+                // one, or if the file is not being downloaded, the user removes the file loader
+                if (Swarm.failed(pathName, fileDescriptor.getString("md5"), origin, position)) {
                     try {
                         fileSystemManager.cancelFileLoader(pathName);
                     } catch (IOException exception) {
                         System.out.println("Problem in IO");
                     }
-                    return false;
-                }
-            } else {// the peer failed to read file bytes so the user removes the file loader
-                try {
-                    fileSystemManager.cancelFileLoader(pathName);
-                } catch (IOException exception) {
-                    System.out.println("Problem in IO");
                 }
                 return false;
             }
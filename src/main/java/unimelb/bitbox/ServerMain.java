@@ -2,6 +2,11 @@ package unimelb.bitbox;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import unimelb.bitbox.protocol.Protocol;
@@ -13,9 +18,21 @@ import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 
 public class ServerMain implements FileSystemObserver {
 	private static Logger log = Logger.getLogger(ServerMain.class.getName());
+	// how long the creates of small files wait for others to be bundled with, 0 to send each at once
+	private static final long BUNDLE_DELAY = Long.parseLong(Configuration.getConfigurationValue("bundleDelay", "100"));
+	// the most creates waiting at once
+	private static final int MAX_PENDING_CREATES = 1024;
 	protected FileSystemManager fileSystemManager;
 	protected CommunicationModule communicationModule;
 	protected ClientManager clientManager;
+	// creates of small files waiting to be sent together, all from pendingOrigin
+	private final ArrayList<Protocol> pendingCreates = new ArrayList<>();
+	private String pendingOrigin;
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "BundleFlusher");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	public ServerMain() throws NumberFormatException, IOException, NoSuchAlgorithmException {
 		fileSystemManager=new FileSystemManager(Configuration.getConfigurationValue("path"),this);
@@ -41,11 +58,60 @@ public class ServerMain implements FileSystemObserver {
 	@Override
 	public void processFileSystemEvent(FileSystemEvent fileSystemEvent) {
 		// TODO: process events
-		// Convert file system event to protocol
-		Protocol request = EventHandler.handleEvent(fileSystemEvent);
-		if (request!= null) {
-			// Sent request to all connected peers
-			communicationModule.broadcast(request);
+		if (fileSystemEvent.event == FileSystemManager.EVENT.FILE_CREATE) {
+			// a modify that arrived while the file was loading can be made now
+			TransferManager.loaded(fileSystemEvent.pathName);
 		}
+		synchronized (pendingCreates) {
+			if (fileSystemEvent.event == FileSystemManager.EVENT.SUBTREE_DELETE) {
+				flushCreates();
+				// peers that do not delete whole directories are sent a delete for each entry
+				communicationModule.broadcastSubtreeDelete(fileSystemEvent);
+				return;
+			}
+			if (fileSystemEvent.oldPathName != null) {
+				flushCreates();
+				// peers that do not handle moves are sent the creates and deletes instead
+				communicationModule.broadcastMove(fileSystemEvent);
+				return;
+			}
+			// Convert file system event to protocol
+			Protocol request = EventHandler.handleEvent(fileSystemEvent);
+			if (request == null) {
+				return;
+			}
+			if (BUNDLE_DELAY > 0 && FileBundles.isBundled(request)) {
+				// wait a little for the other files of a copy to be bundled with this one
+				if (!pendingCreates.isEmpty() && !Objects.equals(pendingOrigin, fileSystemEvent.origin)) {
+					flushCreates();
+				}
+				if (pendingCreates.isEmpty()) {
+					pendingOrigin = fileSystemEvent.origin;
+					flusher.schedule(() -> {
+						synchronized (pendingCreates) {
+							flushCreates();
+						}
+					}, BUNDLE_DELAY, TimeUnit.MILLISECONDS);
+				}
+				pendingCreates.add(request);
+				if (pendingCreates.size() >= MAX_PENDING_CREATES) {
+					flushCreates();
+				}
+				return;
+			}
+			// Changes are sent in the order they were made
+			flushCreates();
+			// Sent request to all connected peers, except the one the change came from
+			communicationModule.broadcast(request, fileSystemEvent.origin);
+		}
+	}
+
+	// send the creates waiting, bundled for the peers that create bundles
+	private void flushCreates() {
+		if (pendingCreates.isEmpty()) {
+			return;
+		}
+		communicationModule.broadcast(new ArrayList<>(pendingCreates), pendingOrigin);
+		pendingCreates.clear();
 	}
 }
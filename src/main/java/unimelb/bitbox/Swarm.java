@@ -0,0 +1,496 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.protocol.FileBytesRequest;
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a file from several peers at once. The first peer that sends a create/modify request starts the
+ * download; every other peer that sends a request for the same path and md5 while it is loading joins it. Each peer
+ * in a download has one block outstanding and asks for the next unrequested block as soon as its block arrives, so
+ * faster peers serve more of the file. If a peer fails to give a block, the block is asked again from the same peer
+ * after a growing delay; after blockRetries failures the peer leaves the download and the block is handed to another
+ * peer. A download left without peers keeps the blocks received so far and resumes from the first missing block
+ * when a peer offers the file again.
+ */
+public class Swarm {
+
+    /**
+     * Sends protocols to one connected peer.
+     */
+    public interface Sender {
+        void send(Protocol protocol);
+    }
+
+    // the most peers one download uses at once
+    private static final int MAX_PEERS = Integer.parseInt(Configuration.getConfigurationValue("swarmPeers", "4"));
+    // how many times a block is asked again from a peer before giving up on the peer
+    private static final int RETRIES = Integer.parseInt(Configuration.getConfigurationValue("blockRetries", "5"));
+    // milliseconds before asking for a block again the first time, doubled on each further failure
+    private static final long RETRY_DELAY = Long.parseLong(Configuration.getConfigurationValue("blockRetryDelay", "500"));
+    private static final long MAX_RETRY_DELAY = 30000;
+    // milliseconds a peer is kept waiting for a download to start, as the file may be loaded without one
+    private static final long EARLY_TTL = 30000;
+
+    private static final HashMap<String, Sender> senders = new HashMap<>();
+    // connected peers that can list the chunks of a file
+    private static final HashSet<String> chunking = new HashSet<>();
+    // the most bytes each connected peer can be asked for at once
+    private static final HashMap<String, Long> blockLimits = new HashMap<>();
+    private static final HashMap<String, Download> downloads = new HashMap<>();
+    // peers that asked to create/modify a file just before its download started, with the md5 they have
+    private static final HashMap<String, HashMap<String, String>> early = new HashMap<>();
+    // when the first peer of each path name in early asked, oldest first
+    private static final LinkedHashMap<String, Long> earlySince = new LinkedHashMap<>();
+    private static final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Swarm retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * State of the download of one file.
+     */
+    private static class Download {
+        private final String pathName;
+        private final Document fileDescriptor;
+        private final String md5;
+        private final long fileSize;
+        private final long blockSize;
+        private final int blocks;
+        private int nextBlock; // first block never requested
+        private final HashSet<Integer> loaded = new HashSet<>(); // blocks the file loader had from the start
+        private int done;
+        private final TreeSet<Integer> missing = new TreeSet<>(); // blocks to request again
+        private final HashMap<Integer, Integer> failures = new HashMap<>(); // failures of each block
+        private int retried; // blocks asked for again
+        private final LinkedHashSet<String> peers = new LinkedHashSet<>(); // peers able to serve the file
+        private final HashMap<String, Integer> outstanding = new HashMap<>(); // block requested from each peer
+        private final HashMap<String, Long> received = new HashMap<>(); // bytes received from each peer
+
+        private Download(String pathName, Document fileDescriptor, long blockSize) {
+            this.pathName = pathName;
+            this.fileDescriptor = fileDescriptor;
+            this.md5 = fileDescriptor.getString("md5");
+            this.fileSize = fileDescriptor.getLong("fileSize");
+            this.blockSize = blockSize;
+            this.blocks = (int) Math.max(1, (fileSize + blockSize - 1) / blockSize);
+        }
+
+        /**
+         * Mark the blocks that lie entirely within a byte range as loaded.
+         * @param from the start of the range
+         * @param to the end of the range, exclusive
+         */
+        private void markLoaded(long from, long to) {
+            for (long block = (from + blockSize - 1) / blockSize; block < blocks; block++) {
+                long end = Math.min(fileSize, (block + 1) * blockSize);
+                if (end > to) {
+                    break;
+                }
+                loaded.add((int) block);
+            }
+        }
+
+        /**
+         * Take the next block to request, blocks to request again first, lowest first.
+         * @return the block, null if every block has been requested
+         */
+        private Integer take() {
+            if (!missing.isEmpty()) {
+                return missing.pollFirst();
+            }
+            while (loaded.contains(nextBlock)) {
+                nextBlock++;
+            }
+            if (nextBlock < blocks) {
+                return nextBlock++;
+            }
+            return null;
+        }
+
+        /**
+         * Request a block from a peer.
+         * @param peer the peer
+         * @param block the block
+         * @return the request to send to the peer
+         */
+        private FileBytesRequest request(String peer, int block) {
+            outstanding.put(peer, block);
+            long position = block * blockSize;
+            return new FileBytesRequest(fileDescriptor, pathName, position, Math.min(blockSize, fileSize - position));
+        }
+
+        /**
+         * Hand blocks to the peers of the download that have none outstanding.
+         * @param sends where to add the sending of the requests
+         */
+        private void reassign(ArrayList<Runnable> sends) {
+            for (String peer : peers) {
+                Sender sender = senders.get(peer);
+                if (sender == null || outstanding.containsKey(peer)) {
+                    continue;
+                }
+                Integer block = take();
+                if (block == null) {
+                    return;
+                }
+                FileBytesRequest request = request(peer, block);
+                sends.add(() -> sender.send(request));
+            }
+        }
+    }
+
+    /**
+     * Register a connected peer, so that it can be asked for blocks of downloads it takes part in.
+     * @param peer the peer
+     * @param sender how to send to the peer
+     * @param chunks whether the peer can list the chunks of a file
+     * @param maxBlockSize the most bytes the peer can be asked for at once
+     */
+    public static synchronized void register(String peer, Sender sender, boolean chunks, long maxBlockSize) {
+        senders.put(peer, sender);
+        blockLimits.put(peer, maxBlockSize);
+        if (chunks) {
+            chunking.add(peer);
+        }
+        else {
+            chunking.remove(peer);
+        }
+    }
+
+    /**
+     * Check whether a connected peer can list the chunks of a file.
+     * @param peer the peer
+     * @return true if it can
+     */
+    public static synchronized boolean canListChunks(String peer) {
+        return chunking.contains(peer);
+    }
+
+    /**
+     * Forget a peer that is no longer connected. Its outstanding blocks are handed to other peers.
+     * @param peer the peer
+     * @return the path names of the downloads left without any peer, whose file loaders should be cancelled
+     */
+    public static ArrayList<String> unregister(String peer) {
+        ArrayList<String> abandoned = new ArrayList<>();
+        ArrayList<Runnable> sends = new ArrayList<>();
+        synchronized (Swarm.class) {
+            senders.remove(peer);
+            chunking.remove(peer);
+            blockLimits.remove(peer);
+            ArrayList<Download> list = new ArrayList<>(downloads.values());
+            for (Download download : list) {
+                if (!download.peers.remove(peer)) {
+                    continue;
+                }
+                Integer block = download.outstanding.remove(peer);
+                if (block != null) {
+                    download.missing.add(block);
+                }
+                download.reassign(sends);
+                if (download.outstanding.isEmpty()) {
+                    downloads.remove(download.pathName);
+                    TransferManager.end(download.pathName);
+                    abandoned.add(download.pathName);
+                }
+            }
+        }
+        for (Runnable send : sends) {
+            send.run();
+        }
+        return abandoned;
+    }
+
+    /**
+     * Start downloading a file whose file loader has just been created.
+     * @param pathName the path name of the file
+     * @param fileDescriptor the file descriptor of the content to download
+     * @param peer the peer that asked to create/modify the file
+     * @param blockSize the largest number of bytes to request at once
+     * @param loadedBlocks the length of the byte ranges the file loader already has, by position
+     * @return the request to send to the peer, null if the file loader has every block
+     */
+    public static Protocol start(String pathName, Document fileDescriptor, String peer, long blockSize,
+                                 TreeMap<Long, Long> loadedBlocks) {
+        ArrayList<Runnable> sends = new ArrayList<>();
+        Protocol request;
+        synchronized (Swarm.class) {
+            Download download = new Download(pathName, fileDescriptor, blockSize);
+            // skip the blocks that lie entirely within runs of adjoining ranges
+            long from = 0;
+            long to = 0;
+            for (Map.Entry<Long, Long> range : loadedBlocks.entrySet()) {
+                if (range.getKey() > to) {
+                    download.markLoaded(from, to);
+                    from = range.getKey();
+                }
+                to = Math.max(to, range.getKey() + range.getValue());
+            }
+            download.markLoaded(from, to);
+            download.done = download.loaded.size();
+            Integer first = download.take();
+            if (first == null) {
+                return null;
+            }
+            if (!download.loaded.isEmpty()) {
+                System.out.println("Resuming the download of " + pathName + " with " + download.done + " of " +
+                        download.blocks + " blocks loaded");
+            }
+            download.peers.add(peer);
+            downloads.put(pathName, download);
+            request = download.request(peer, first);
+            // peers whose requests raced with this one
+            HashMap<String, String> earlyPeers = dropEarly(pathName);
+            if (earlyPeers != null) {
+                for (Map.Entry<String, String> entry : earlyPeers.entrySet()) {
+                    if (entry.getValue().equals(download.md5) && download.peers.size() < MAX_PEERS &&
+                            canServe(entry.getKey(), download)) {
+                        download.peers.add(entry.getKey());
+                    }
+                }
+                download.reassign(sends);
+            }
+        }
+        for (Runnable send : sends) {
+            send.run();
+        }
+        return request;
+    }
+
+    /**
+     * Add a peer to the download of a file, if it is loading the same content.
+     * @param pathName the path name of the file
+     * @param md5 the md5 the peer has
+     * @param peer the peer
+     * @return the request to send to the peer, null if the peer is not needed
+     */
+    public static synchronized Protocol join(String pathName, String md5, String peer) {
+        Download download = downloads.get(pathName);
+        if (download == null) {
+            // the download may be about to start
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Long>> eldest = earlySince.entrySet().iterator();
+            while (eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (now - entry.getValue() < EARLY_TTL) {
+                    break;
+                }
+                early.remove(entry.getKey());
+                eldest.remove();
+            }
+            HashMap<String, String> peers = early.get(pathName);
+            if (peers == null) {
+                peers = new HashMap<>();
+                early.put(pathName, peers);
+                earlySince.put(pathName, now);
+            }
+            peers.put(peer, md5);
+            return null;
+        }
+        if (!download.md5.equals(md5) || download.peers.contains(peer) ||
+                download.outstanding.size() >= MAX_PEERS || !canServe(peer, download)) {
+            return null;
+        }
+        download.peers.add(peer);
+        Integer block = download.take();
+        if (block == null) {
+            return null;
+        }
+        System.out.println("Peer " + peer + " joins the download of " + pathName);
+        return download.request(peer, block);
+    }
+
+    private static HashMap<String, String> dropEarly(String pathName) {
+        earlySince.remove(pathName);
+        return early.remove(pathName);
+    }
+
+    // whether a peer can be asked for blocks of the size a download uses
+    private static boolean canServe(String peer, Download download) {
+        Long limit = blockLimits.get(peer);
+        return limit != null && limit >= download.blockSize;
+    }
+
+    /**
+     * Check whether a file is being downloaded with the given content.
+     * @param pathName the path name of the file
+     * @param md5 the md5 of the content
+     * @return true if it is
+     */
+    public static synchronized boolean isDownloading(String pathName, String md5) {
+        Download download = downloads.get(pathName);
+        return download != null && download.md5.equals(md5);
+    }
+
+    /**
+     * Record that a block has been received from a peer and written.
+     * @param pathName the path name of the file
+     * @param md5 the md5 of the content
+     * @param peer the peer
+     * @param position the position of the block
+     * @param length the length of the block
+     * @return the next request to send to the peer, null if there is nothing more for it
+     */
+    public static synchronized Protocol received(String pathName, String md5, String peer, long position, long length) {
+        Download download = downloads.get(pathName);
+        if (download == null || !download.md5.equals(md5)) {
+            return null;
+        }
+        Integer block = download.outstanding.get(peer);
+        if (block != null && block * download.blockSize == position) {
+            download.outstanding.remove(peer);
+            download.done++;
+            download.failures.remove(block);
+            download.received.put(peer, download.received.getOrDefault(peer, 0L) + length);
+            TransferManager.progress(pathName, length);
+        }
+        if (download.outstanding.containsKey(peer)) {
+            return null;
+        }
+        block = download.take();
+        if (block == null) {
+            return null;
+        }
+        return download.request(peer, block);
+    }
+
+    /**
+     * Finish the download of a file if every block has been received.
+     * @param pathName the path name of the file
+     * @param md5 the md5 of the content
+     * @return true if the download has finished, and the file loader should be checked for completion
+     */
+    public static synchronized boolean finish(String pathName, String md5) {
+        Download download = downloads.get(pathName);
+        if (download == null || !download.md5.equals(md5) || download.done < download.blocks) {
+            return false;
+        }
+        downloads.remove(pathName);
+        dropEarly(pathName);
+        TransferManager.end(pathName);
+        if (download.received.size() > 1 || download.retried > 0) {
+            StringBuilder sb = new StringBuilder("Downloaded " + pathName + " from");
+            for (Map.Entry<String, Long> entry : download.received.entrySet()) {
+                sb.append(' ').append(entry.getKey()).append(" (").append(entry.getValue()).append(" bytes)");
+            }
+            sb.append(", ").append(download.retried).append(" blocks asked again");
+            System.out.println(sb.toString());
+        }
+        return true;
+    }
+
+    /**
+     * Record that a block could not be received from a peer, because the peer failed to read it or it could not be
+     * written. The block is asked again from the same peer after a delay that doubles with every failure; once the
+     * peer has failed blockRetries times, it leaves the download and the block is handed to another peer. The
+     * blocks received so far are kept even if no peer is left.
+     * @param pathName the path name of the file
+     * @param md5 the md5 of the content
+     * @param peer the peer
+     * @param position the position of the block
+     * @return true if the file is not being downloaded, and the file loader should be cancelled
+     */
+    public static boolean failed(String pathName, String md5, String peer, long position) {
+        ArrayList<Runnable> sends = new ArrayList<>();
+        synchronized (Swarm.class) {
+            Download download = downloads.get(pathName);
+            if (download == null || !download.md5.equals(md5)) {
+                return true;
+            }
+            Integer block = download.outstanding.get(peer);
+            if (block == null || block * download.blockSize != position) {
+                // the block has been handled already
+                return false;
+            }
+            int failures = download.failures.merge(block, 1, Integer::sum);
+            if (failures <= RETRIES && senders.containsKey(peer)) {
+                long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(failures - 1, 16));
+                retryExecutor.schedule(() -> retry(download, peer, block), delay, TimeUnit.MILLISECONDS);
+                return false;
+            }
+            System.out.println("Peer " + peer + " leaves the download of " + pathName);
+            download.peers.remove(peer);
+            download.outstanding.remove(peer);
+            download.failures.remove(block);
+            download.missing.add(block);
+            download.reassign(sends);
+            if (download.outstanding.isEmpty()) {
+                System.out.println("No peer left to download " + pathName + " from, keeping " + download.done +
+                        " of " + download.blocks + " blocks until a peer offers it again");
+            }
+        }
+        for (Runnable send : sends) {
+            send.run();
+        }
+        return false;
+    }
+
+    /**
+     * Ask a peer again for a block it failed to give, unless the download has moved on.
+     * @param download the download
+     * @param peer the peer
+     * @param block the block
+     */
+    private static void retry(Download download, String peer, Integer block) {
+        FileBytesRequest request;
+        Sender sender;
+        synchronized (Swarm.class) {
+            sender = senders.get(peer);
+            if (downloads.get(download.pathName) != download || !block.equals(download.outstanding.get(peer)) ||
+                    sender == null) {
+                return;
+            }
+            download.retried++;
+            request = download.request(peer, block);
+        }
+        sender.send(request);
+    }
+
+    /**
+     * Forget the download of a file, when its file loader has been cancelled.
+     * @param pathName the path name of the file
+     */
+    public static synchronized void abort(String pathName) {
+        downloads.remove(pathName);
+        dropEarly(pathName);
+        TransferManager.end(pathName);
+    }
+
+    /**
+     * Send a protocol to a connected peer.
+     * @param peer the peer
+     * @param protocol the protocol
+     * @return false if the peer is not connected
+     */
+    public static boolean send(String peer, Protocol protocol) {
+        Sender sender;
+        synchronized (Swarm.class) {
+            sender = senders.get(peer);
+        }
+        if (sender == null) {
+            return false;
+        }
+        sender.send(protocol);
+        return true;
+    }
+
+    // private constructor to prevent initialization
+    private Swarm() {
+    }
+}
@@ -0,0 +1,49 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.protocol.SyncMark;
+
+import java.util.HashMap;
+
+/**
+ * Records, for every peer, how far we have been synchronized with that peer's change journal. The marks are
+ * told to the peer in handshakes, so that it only sends the changes we have not seen yet.
+ */
+public class SyncMarks {
+
+    // journal feature advertised in handshakes
+    public static final String FEATURE_JOURNAL = "journal";
+    // directory digest comparison advertised in handshakes
+    public static final String FEATURE_DIGEST = "digest";
+    // file chunk lists, for copying the chunks of a file that are already present locally
+    public static final String FEATURE_CHUNKS = "chunks";
+    // file and directory move requests, instead of deletes and creates
+    public static final String FEATURE_MOVE = "move";
+    // bundles of small files with their contents, instead of a create and a download for each
+    public static final String FEATURE_BUNDLE = "bundle";
+    // directories deleted with all of their contents in one request, instead of a delete for each entry
+    public static final String FEATURE_SUBTREE = "subtree";
+
+    private static final HashMap<ConnectedPeer, SyncMark> marks = new HashMap<>();
+
+    /**
+     * Record the mark received from a peer.
+     * @param peer the peer
+     * @param mark the journal position of the peer we are synchronized to
+     */
+    public static synchronized void put(ConnectedPeer peer, SyncMark mark) {
+        marks.put(peer, mark);
+    }
+
+    /**
+     * Get the mark of a peer.
+     * @param peer the peer
+     * @return the journal position of the peer we are synchronized to, null if unknown
+     */
+    public static synchronized SyncMark get(ConnectedPeer peer) {
+        return marks.get(peer);
+    }
+
+    // private constructor to prevent initialization
+    private SyncMarks() {
+    }
+}
@@ -0,0 +1,93 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.Configuration;
+
+import java.util.Random;
+
+/**
+ * Decides when to sync with one peer and how fast to send the sync messages. Each peer gets its first sync after a
+ * random delay, and later ones after an interval with random jitter, so peers connected at the same time do not all
+ * sync at once. The interval shrinks while the share keeps changing and grows back while it is quiet. Messages are
+ * sent under a per-peer budget of messages per second.
+ */
+public class SyncScheduler {
+
+    private static final long SYNC_INTERVAL =
+            1000L * Integer.parseInt(Configuration.getConfigurationValue("syncInterval"));
+    private static final long MIN_INTERVAL = Math.max(1000L, 1000L * Integer.parseInt(
+            Configuration.getConfigurationValue("syncMinInterval", Long.toString(SYNC_INTERVAL / 4000))));
+    private static final long MAX_INTERVAL = Math.max(MIN_INTERVAL, 1000L * Integer.parseInt(
+            Configuration.getConfigurationValue("syncMaxInterval", Long.toString(SYNC_INTERVAL / 250))));
+    // the interval varies by up to this fraction either way
+    private static final double JITTER = Double.parseDouble(Configuration.getConfigurationValue("syncJitter", "0.2"));
+    // the first sync happens up to this many milliseconds after connecting
+    private static final long CONNECT_DELAY =
+            Long.parseLong(Configuration.getConfigurationValue("syncConnectDelay", "2000"));
+    // sync messages per second to one peer, 0 for no limit
+    private static final int RATE = Integer.parseInt(Configuration.getConfigurationValue("syncRate", "500"));
+
+    private final Random random = new Random();
+    private long interval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, SYNC_INTERVAL));
+    private long lastSequence = -1;
+    private double tokens = RATE;
+    private long lastRefill = System.currentTimeMillis();
+
+    /**
+     * The number of sync messages that may be sent at once without waiting.
+     * @return the burst size, or Integer.MAX_VALUE if there is no limit
+     */
+    public int getBurst() {
+        return RATE > 0 ? RATE : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Milliseconds to wait before the first sync with a newly connected peer.
+     * @return the delay
+     */
+    public long firstDelay() {
+        return CONNECT_DELAY > 0 ? (long) (random.nextDouble() * CONNECT_DELAY) : 0;
+    }
+
+    /**
+     * Record the journal sequence of the file system manager at a sync, and get the milliseconds to wait before the
+     * next one. The interval halves if the share has changed since the last sync, and grows by half if it has not.
+     * @param sequence the current journal sequence
+     * @return the delay
+     */
+    public synchronized long nextDelay(long sequence) {
+        if (lastSequence >= 0) {
+            if (sequence != lastSequence) {
+                interval = Math.max(MIN_INTERVAL, interval / 2);
+            } else {
+                interval = Math.min(MAX_INTERVAL, interval * 3 / 2);
+            }
+        }
+        lastSequence = sequence;
+        return (long) (interval * (1 + JITTER * (2 * random.nextDouble() - 1)));
+    }
+
+    /**
+     * Take messages from the budget, waiting until the budget allows them to be sent.
+     * @param count the number of messages about to be sent
+     */
+    public void acquire(int count) {
+        if (RATE <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(RATE, tokens + (now - lastRefill) * RATE / 1000.0);
+            lastRefill = now;
+            tokens -= count;
+            wait = tokens < 0 ? (long) Math.ceil(-tokens * 1000 / RATE) : 0;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                System.out.println("Problem in sync pacing sleeping");
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable full dump of the share, built once and shared by every peer that needs one in a sync round. The
+ * snapshot stays valid until the file system manager's journal moves on, so the share is only walked and encoded
+ * again after something has changed.
+ */
+public class SyncSnapshot {
+
+    // the journal position the snapshot is at least as recent as
+    public final String journalId;
+    public final long sequence;
+    // the events creating the share, in order
+    public final List<FileSystemManager.FileSystemEvent> events;
+    // the corresponding protocols, encoded one per line
+    public final String encoded;
+    // the offset in encoded just past each line
+    private final int[] ends;
+
+    private static FileSystemManager lastManager;
+    private static SyncSnapshot last;
+
+    private SyncSnapshot(String journalId, long sequence, List<FileSystemManager.FileSystemEvent> events,
+                         String encoded, int[] ends) {
+        this.journalId = journalId;
+        this.sequence = sequence;
+        this.events = events;
+        this.encoded = encoded;
+        this.ends = ends;
+    }
+
+    /**
+     * Get some of the encoded messages.
+     * @param from the index of the first message
+     * @param to the index just past the last message
+     * @return the messages, each ending with a new line
+     */
+    public String getEncoded(int from, int to) {
+        if (from >= to) {
+            return "";
+        }
+        return encoded.substring(from == 0 ? 0 : ends[from - 1], ends[to - 1]);
+    }
+
+    /**
+     * Get the snapshot of the share, building a new one only if the share has changed since the last one.
+     * @param fileSystemManager the file system manager of the share
+     * @return the snapshot
+     */
+    public static synchronized SyncSnapshot get(FileSystemManager fileSystemManager) {
+        String journalId = fileSystemManager.getJournalId();
+        long sequence = fileSystemManager.getJournalSequence();
+        if (last != null && lastManager == fileSystemManager && last.sequence == sequence &&
+                last.journalId.equals(journalId)) {
+            return last;
+        }
+        ArrayList<FileSystemManager.FileSystemEvent> events = fileSystemManager.generateSyncEvents();
+        StringBuilder sb = new StringBuilder();
+        int[] ends = new int[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            sb.append(EventHandler.handleEvent(events.get(i)).toString()).append('\n');
+            ends[i] = sb.length();
+        }
+        lastManager = fileSystemManager;
+        last = new SyncSnapshot(journalId, sequence, Collections.unmodifiableList(events), sb.toString(), ends);
+        return last;
+    }
+}
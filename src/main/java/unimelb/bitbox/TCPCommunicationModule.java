@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The TCPCommunicationModule class handle the communication with other peers.
@@ -23,7 +24,6 @@ import java.util.concurrent.TimeUnit;
 public class TCPCommunicationModule extends Thread implements CommunicationModule{
 
     private final int MAX_INCOMING_CONNECTIONS = Integer.parseInt(Configuration.getConfigurationValue("maximumIncommingConnections"));
-    private final int SYNC_INTERVAL = Integer.parseInt(Configuration.getConfigurationValue("syncInterval"));
     // set the max pool size to be 10 times greater than max incoming connection number
     private final int MAX_POOL_SIZE = MAX_INCOMING_CONNECTIONS * 10;
 
@@ -37,6 +37,8 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
     private ExecutorService handshakeExecutor; // thread pool for handshake tasks
     private String secretKey;
     EncryptHelper encryptHelper= new EncryptHelper();
+    // messages not sent to a peer because the change came from that peer
+    private final AtomicLong echoSuppressed = new AtomicLong();
 
     /**
      * The constructor of CommunicationModule.
@@ -52,9 +54,6 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
         // using thread pool to handle handshake task
         this.handshakeExecutor = Executors.newFixedThreadPool(MAX_POOL_SIZE);
 
-        // send sync events to all peers
-        new SendSyncAllTask();
-
         System.out.println("My IP Address:- " + this.hostAddress);
 
         this.start();
@@ -107,13 +106,120 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
      * @param protocol The protocol need to be sent.
      */
     public void broadcast(Protocol protocol) {
+        broadcast(protocol, null);
+    }
+
+    /**
+     * Send a string to all peers connected, except the peer a change came from, as it already has it.
+     * @param protocol The protocol need to be sent.
+     * @param origin The peer the change came from, null if it was made locally.
+     */
+    public void broadcast(Protocol protocol, String origin) {
         synchronized (connections) {
             for(Connection c: this.connections) {
+                if(c.connectedPeer.toString().equals(origin)){
+                    System.out.println("Not echoing change back to " + origin + ", " +
+                            echoSuppressed.incrementAndGet() + " echoes suppressed");
+                    continue;
+                }
                 c.send(protocol.toString());
             }
         }
     }
 
+    /**
+     * Send several protocols to all peers connected, except the peer the changes came from. The creates of small
+     * files are bundled for the peers that create bundles.
+     * @param protocols The protocols need to be sent, in order.
+     * @param origin The peer the changes came from, null if they were made locally.
+     */
+    public void broadcast(ArrayList<Protocol> protocols, String origin) {
+        ArrayList<String> plain = null;
+        ArrayList<String> bundled = null;
+        synchronized (connections) {
+            for(Connection c: this.connections) {
+                if(c.connectedPeer.toString().equals(origin)){
+                    echoSuppressed.addAndGet(protocols.size());
+                    continue;
+                }
+                if(c.bundles && bundled == null){
+                    bundled = encode(FileBundles.bundle(fileSystemManager, protocols));
+                }
+                else if(!c.bundles && plain == null){
+                    plain = encode(protocols);
+                }
+                for(String data: c.bundles ? bundled : plain){
+                    c.send(data);
+                }
+            }
+        }
+    }
+
+    // encode the protocols once for all the peers they are sent to
+    private ArrayList<String> encode(ArrayList<Protocol> protocols) {
+        ArrayList<String> encoded = new ArrayList<>();
+        for(Protocol p: protocols){
+            encoded.add(p.toString());
+        }
+        return encoded;
+    }
+
+    /**
+     * Send a move event to all peers connected, except the peer the change came from. Peers that do not handle
+     * move requests are sent the creates and deletes that make the same change.
+     * @param event The move event.
+     */
+    public void broadcastMove(FileSystemManager.FileSystemEvent event) {
+        String move = EventHandler.handleEvent(event).toString();
+        ArrayList<Protocol> expanded = null;
+        synchronized (connections) {
+            for(Connection c: this.connections) {
+                if(c.connectedPeer.toString().equals(event.origin)){
+                    echoSuppressed.incrementAndGet();
+                    continue;
+                }
+                if(c.moves){
+                    c.send(move);
+                    continue;
+                }
+                if(expanded == null){
+                    expanded = EventHandler.expandMove(fileSystemManager, event);
+                }
+                for(Protocol p: expanded){
+                    c.send(p.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a subtree delete event to all peers connected, except the peer the change came from. Peers that do not
+     * delete whole directories are sent a delete for every file and directory in it.
+     * @param event The subtree delete event.
+     */
+    public void broadcastSubtreeDelete(FileSystemManager.FileSystemEvent event) {
+        String delete = EventHandler.handleEvent(event).toString();
+        ArrayList<String> expanded = null;
+        synchronized (connections) {
+            for(Connection c: this.connections) {
+                if(c.connectedPeer.toString().equals(event.origin)){
+                    echoSuppressed.incrementAndGet();
+                    continue;
+                }
+                if(c.subtrees){
+                    c.send(delete);
+                    continue;
+                }
+                if(expanded == null){
+                    expanded = encode(EventHandler.expandSubtreeDelete(event));
+                }
+                for(String data: expanded){
+                    c.send(data);
+                }
+            }
+        }
+    }
+
     /**
      * Get all connected peers.
      * @return ArrayList of connected peers
@@ -159,24 +265,49 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
     }
 
     /**
-     * SendSyncAllTask class represents the task of sending synchronized events to all connected peers every interval.
+     * SyncTask class represents the task of sending synchronized events to one connected peer, at the times its
+     * sync scheduler decides.
      */
-    private class SendSyncAllTask extends Thread{
-        public SendSyncAllTask(){
+    private class SyncTask extends Thread{
+        private Connection connection;
+
+        public SyncTask(Connection connection){
+            this.connection = connection;
             this.start();
         }
+
         public void run(){
+            long delay = connection.scheduler.firstDelay();
             while(true){
-                sendSyncAll();
                 try {
-                    this.sleep(1000 * SYNC_INTERVAL);
+                    this.sleep(delay);
                 } catch (InterruptedException e) {
                     System.out.println("Problem in sleeping sync task");
                 }
+                if (connection.closed){
+                    break;
+                }
+                connection.sendSync();
+                delay = connection.scheduler.nextDelay(fileSystemManager.getJournalSequence());
             }
         }
     }
 
+    /**
+     * Get the protocol extensions this peer supports, advertised in handshakes.
+     * @return the list of features
+     */
+    private ArrayList<String> getFeatures(){
+        ArrayList<String> features = new ArrayList<>();
+        features.add(SyncMarks.FEATURE_JOURNAL);
+        features.add(SyncMarks.FEATURE_DIGEST);
+        features.add(SyncMarks.FEATURE_CHUNKS);
+        features.add(SyncMarks.FEATURE_MOVE);
+        features.add(SyncMarks.FEATURE_BUNDLE);
+        features.add(SyncMarks.FEATURE_SUBTREE);
+        return features;
+    }
+
     /**
      * Get the number of incoming connections.
      * @return The number of incoming connections.
@@ -248,7 +379,9 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
                         h = new HandshakeTask(s, false);
                     }
                     handshakeExecutor.execute(h);
-                    h.send((new HandshakeRequest(new ConnectedPeer(hostAddress, port))).toString());
+                    HandshakeRequest request = new HandshakeRequest(new ConnectedPeer(hostAddress, port), getFeatures());
+                    request.syncMark = SyncMarks.get(peer);
+                    h.send(request.toString());
                     return;
                     // if anything bad happen, wait for 10s and try again.
                 } catch (Exception e){
@@ -295,6 +428,16 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
         private RequestHandler requestHandler;
         private ConnectedPeer connectedPeer;
         private boolean isIncoming; // indicate whether the connection is an incoming connection
+        private boolean journal; // indicate whether the peer accepts sync marks
+        private boolean digest; // indicate whether the peer compares directory digests
+        private boolean moves; // indicate whether the peer handles move requests
+        private boolean bundles; // indicate whether the peer creates bundles of small files
+        private boolean subtrees; // indicate whether the peer deletes whole directories in one request
+        private boolean caughtUp; // indicate whether the changes made while the peer was away have been sent
+        private SyncMark remoteMark; // how far the peer has been synchronized with my journal
+        private SyncScheduler scheduler = new SyncScheduler(); // when to sync and how fast
+        private volatile boolean closed; // indicate whether the connection has been closed
+        private final Object syncLock = new Object(); // held while sending sync events
 
         /**
          * Constructor
@@ -303,35 +446,46 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
          * @param out The outcome BufferedWriter.
          * @param connectedPeer The connected peer, including host address and port number.
          * @param isIncoming Indicate whether the connection is incoming connection.
+         * @param features The protocol extensions the peer supports.
+         * @param remoteMark How far the peer has been synchronized with my journal, null if unknown.
          * @throws IOException
          */
-        public Connection(Socket aClientSocket, BufferedReader in, BufferedWriter out, ConnectedPeer connectedPeer, boolean isIncoming) throws IOException {
+        public Connection(Socket aClientSocket, BufferedReader in, BufferedWriter out, ConnectedPeer connectedPeer,
+                          boolean isIncoming, ArrayList<String> features, SyncMark remoteMark) throws IOException {
 
             System.out.println("new connection thread created");
 
             this.clientSocket = aClientSocket;
             // remove timeout for socket
             this.clientSocket.setSoTimeout(0);
-            this.requestHandler = new RequestHandler(fileSystemManager);
+            this.requestHandler = new RequestHandler(fileSystemManager, connectedPeer.toString());
             this.in = in;
             this.out = out;
             this.connectedPeer = connectedPeer;
             this.isIncoming = isIncoming;
+            this.journal = features.contains(SyncMarks.FEATURE_JOURNAL);
+            this.digest = features.contains(SyncMarks.FEATURE_DIGEST);
+            this.moves = features.contains(SyncMarks.FEATURE_MOVE);
+            this.bundles = features.contains(SyncMarks.FEATURE_BUNDLE);
+            this.subtrees = features.contains(SyncMarks.FEATURE_SUBTREE);
+            this.remoteMark = remoteMark;
             // add itself into connections
             synchronized (connections){
                 connections.add(this);
             }
+            Swarm.register(connectedPeer.toString(), p -> send(p.toString()),
+                    features.contains(SyncMarks.FEATURE_CHUNKS), RequestHandler.DEFAULT_BLOCK_SIZE);
             // start itself
             this.start();
-            // send sync events
-            sendSync();
+            // send sync events, after a random delay so peers connecting together do not sync at once
+            new SyncTask(this);
         }
 
         /**
          * Send string to peer.
          * @param data The string need to be sent.
          */
-        public void send(String data){
+        public synchronized void send(String data){
             try {
                 out.write(data + "\n");
                 out.flush();
@@ -343,6 +497,23 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
             }
         }
 
+        /**
+         * Send already encoded messages to peer in one write.
+         * @param data The messages, each ending with a new line.
+         * @param count The number of messages.
+         */
+        public synchronized void sendEncoded(String data, int count){
+            try {
+                out.write(data);
+                out.flush();
+                System.out.println("I send: " + count + " sync messages");
+                // something bad happened, close the connection.
+            } catch (IOException e) {
+                System.out.println("Problem in sending data");
+                close();
+            }
+        }
+
         /**
          * Run the connection.
          */
@@ -353,12 +524,21 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
                     // receive
                     String data = in.readLine();
                     System.out.println("I receive data: " + data);
-                    if (data == null || !checkReveive(data)){
+                    Protocol protocol = data == null ? null : checkReveive(data);
+                    if (protocol == null){
                         System.out.println("check message error");
                         break;
                     }
+                    // record how far I have been synchronized with the peer's journal
+                    if (protocol instanceof SyncMark){
+                        SyncMarks.put(connectedPeer, (SyncMark) protocol);
+                        continue;
+                    }
                     // send
                     ArrayList<Protocol> needSendProtocol = requestHandler.handleRequest(data);
+                    if(bundles){
+                        needSendProtocol = FileBundles.bundle(fileSystemManager, needSendProtocol);
+                    }
                     // send every message in order
                     if(needSendProtocol.size() != 0){
                         for(Protocol p:needSendProtocol){
@@ -378,31 +558,72 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
         /**
          * Check whether a received string is valid and meaningful.
          * @param data
-         * @return
+         * @return The received protocol, null if it is not valid.
          */
-        private boolean checkReveive(String data){
+        private Protocol checkReveive(String data){
             Protocol p = ProtocolHelper.convertProtocol(data);
             // if it is invalid protocols
             if(p == null || p instanceof HandshakeRequest || p instanceof HandshakeResponse || p instanceof ConnectionRefused){
                 send(new InvalidProtocol("Invalid Protocol").toString());
-                return false;
+                return null;
             }
             // if it is InvalidProtocol
             else if(p instanceof InvalidProtocol){
-                return false;
+                return null;
             }
             else{
-                return true;
+                return p;
             }
         }
 
         /**
-         * Send sync events.
+         * Send sync events. If the peer has told how far it has been synchronized with my journal, only the
+         * changes after that are sent. Otherwise, if the peer compares directory digests, only the digest of the
+         * share directory is sent and the differences are found from the peer's answer.
          */
         public void sendSync(){
-            ArrayList<FileSystemManager.FileSystemEvent> events = fileSystemManager.generateSyncEvents();
-            for(FileSystemManager.FileSystemEvent e: events){
-                send(EventHandler.handleEvent(e).toString());
+            // not synchronized on the connection, so that pacing does not hold up other messages
+            synchronized (syncLock){
+                long sequence = fileSystemManager.getJournalSequence();
+                if (remoteMark == null && digest){
+                    send(new DirectoryDigestRequest("", fileSystemManager.getDirectoryDigest("")).toString());
+                }
+                else if (remoteMark == null){
+                    // the full dump is shared by all peers until the share changes
+                    SyncSnapshot snapshot = SyncSnapshot.get(fileSystemManager);
+                    int burst = scheduler.getBurst();
+                    for(int i = 0; i < snapshot.events.size() && !closed; i += burst){
+                        int to = (int) Math.min(snapshot.events.size(), (long) i + burst);
+                        scheduler.acquire(to - i);
+                        sendEncoded(snapshot.getEncoded(i, to), to - i);
+                    }
+                }
+                else {
+                    ArrayList<FileSystemManager.FileSystemEvent> events =
+                            fileSystemManager.generateSyncEvents(remoteMark.journalId, remoteMark.sequence);
+                    ArrayList<Protocol> protocols = new ArrayList<>();
+                    for(FileSystemManager.FileSystemEvent e: events){
+                        // the peer made this change itself
+                        if(connectedPeer.toString().equals(e.origin)){
+                            echoSuppressed.incrementAndGet();
+                            continue;
+                        }
+                        protocols.addAll(EventHandler.handleEvent(fileSystemManager, e, moves, subtrees));
+                    }
+                    // later syncs repeat changes the peer was sent as they were made, not worth their contents
+                    if(bundles && !caughtUp){
+                        protocols = FileBundles.bundle(fileSystemManager, protocols);
+                    }
+                    for(Protocol p: protocols){
+                        scheduler.acquire(1);
+                        send(p.toString());
+                    }
+                }
+                caughtUp = true;
+                if (journal){
+                    remoteMark = new SyncMark(fileSystemManager.getJournalId(), sequence);
+                    send(remoteMark.toString());
+                }
             }
         }
 
@@ -411,6 +632,8 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
          */
         private void close(){
             System.out.println("A connection close");
+            boolean wasClosed = closed;
+            closed = true;
             try {
                 this.clientSocket.close();
             } catch (IOException e) {
@@ -420,6 +643,16 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
             synchronized (connections){
                 connections.remove(this);
             }
+            // hand its blocks to other peers, and suspend downloads nobody else can serve until they are resumed
+            if (!wasClosed){
+                for (String pathName : Swarm.unregister(connectedPeer.toString())){
+                    try {
+                        fileSystemManager.suspendFileLoader(pathName);
+                    } catch (IOException e) {
+                        System.out.println("Problem in IO");
+                    }
+                }
+            }
         }
     }
 
@@ -603,7 +836,7 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
         private void handleHandshakeResponse(Protocol protocol) throws IOException {
             HandshakeResponse handshakeResponse = (HandshakeResponse) protocol;
             ConnectedPeer peer = handshakeResponse.peer;
-            startConnection(peer);
+            startConnection(peer, handshakeResponse.features, handshakeResponse.syncMark);
             if (clientOut != null){
                 sendClient();;
             }
@@ -621,8 +854,10 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
                 // if i haven't connected this peer, and remain some incoming slots.
                 if(!connections.contains(requestPeer) && getIncomingNum() < MAX_INCOMING_CONNECTIONS){
                     // send response and start connection
-                    send((new HandshakeResponse(new ConnectedPeer(hostAddress, port))).toString());
-                    startConnection(requestPeer);
+                    HandshakeResponse response = new HandshakeResponse(new ConnectedPeer(hostAddress, port), getFeatures());
+                    response.syncMark = SyncMarks.get(requestPeer);
+                    send(response.toString());
+                    startConnection(requestPeer, handshakeRequest.features, handshakeRequest.syncMark);
                     if (clientOut != null){
                         sendClient();
                     }
@@ -658,10 +893,12 @@ public class TCPCommunicationModule extends Thread implements CommunicationModul
         /**
          * Start connection with a handshaked peer.
          * @param peer The peer need to connected with.
+         * @param features The protocol extensions the peer supports.
+         * @param remoteMark How far the peer has been synchronized with my journal, null if unknown.
          * @throws IOException
          */
-        private void startConnection(ConnectedPeer peer) throws IOException {
-            new Connection(clientSocket, in, out, peer, isIncoming);
+        private void startConnection(ConnectedPeer peer, ArrayList<String> features, SyncMark remoteMark) throws IOException {
+            new Connection(clientSocket, in, out, peer, isIncoming, features, remoteMark);
         }
 
     }
@@ -0,0 +1,360 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many files are loaded at once. A create/modify request is admitted if fewer than maxTransfers files are
+ * loading, otherwise it is queued, smaller files first, and handled again on a pool of transferRetryThreads threads
+ * when a transfer ends. A file waiting for another transfer of the same content holds its slot until that transfer
+ * ends, as it keeps its file open meanwhile. Transfers that have
+ * not received any bytes for transferTimeout milliseconds are suspended, so that their slots are reclaimed; they resume
+ * from the bytes already loaded when the file is offered again. A modify request for a file that is still being
+ * created is held until the created file appears in the share, and is then queued like any other request.
+ */
+public class TransferManager {
+
+    private static Logger log = Logger.getLogger(TransferManager.class.getName());
+
+    // the most files loading at once
+    private static final int MAX_ACTIVE = Integer.parseInt(Configuration.getConfigurationValue("maxTransfers", "16"));
+    // the most requests waiting for a slot; later requests are refused, the next sync sends them again
+    private static final int MAX_QUEUED = Integer.parseInt(Configuration.getConfigurationValue("maxQueuedTransfers", "10000"));
+    // milliseconds without progress before a transfer is suspended
+    private static final long TIMEOUT = Long.parseLong(Configuration.getConfigurationValue("transferTimeout", "60000"));
+    // milliseconds between checks for stalled transfers, and between progress reports
+    private static final long CHECK_INTERVAL = 5000;
+
+    // handles queued requests once they are admitted, so that a slow request does not hold up the others
+    private static final ExecutorService retryExecutor = Executors.newFixedThreadPool(
+            Integer.parseInt(Configuration.getConfigurationValue("transferRetryThreads", "4")), r -> {
+                Thread thread = new Thread(r, "TransferManager retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final LinkedHashMap<String, Transfer> active = new LinkedHashMap<>();
+    private static final PriorityQueue<Queued> queue = new PriorityQueue<>();
+    private static final HashMap<String, Queued> queued = new HashMap<>();
+    // requests waiting for the file they modify to appear in the share
+    private static final HashMap<String, Queued> waiting = new HashMap<>();
+    private static long queuedCount;
+    private static int starting; // queued requests handed to the retry threads and not yet handled
+    private static Thread worker;
+
+    /**
+     * A file being loaded.
+     */
+    private static class Transfer {
+        private final String pathName;
+        private final FileSystemManager fileSystemManager;
+        private final long fileSize;
+        private String md5; // the content of the newest request admitted
+        private int admitted; // requests being handled with this slot
+        private boolean downloading; // bytes have been requested
+        private boolean waiting; // copied from another transfer of the same content once it completes
+        private long received;
+        private long lastProgress = System.currentTimeMillis();
+
+        private Transfer(String pathName, FileSystemManager fileSystemManager, long fileSize) {
+            this.pathName = pathName;
+            this.fileSystemManager = fileSystemManager;
+            this.fileSize = fileSize;
+        }
+
+        @Override
+        public String toString() {
+            return pathName + " " + received + "/" + fileSize + " bytes";
+        }
+    }
+
+    /**
+     * A request waiting for a slot.
+     */
+    private static class Queued implements Comparable<Queued> {
+        private final String pathName;
+        private final long fileSize;
+        private final long order;
+        private final Runnable retry;
+
+        private Queued(String pathName, long fileSize, long order, Runnable retry) {
+            this.pathName = pathName;
+            this.fileSize = fileSize;
+            this.order = order;
+            this.retry = retry;
+        }
+
+        @Override
+        public int compareTo(Queued other) {
+            if (fileSize != other.fileSize) {
+                return Long.compare(fileSize, other.fileSize);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Admit a create/modify request for a file. The request must be settled with {@link #settle(String, boolean)}
+     * once it has been handled.
+     * @param pathName the path name of the file
+     * @param md5 the md5 of the content to load
+     * @param fileSize the size of the file
+     * @param fileSystemManager the file system manager the file is loaded by
+     * @param retry handles the request again when it is admitted later
+     * @return 1 if the request can be handled now, 0 if it has been queued, -1 if the queue is full
+     */
+    public static synchronized int admit(String pathName, String md5, long fileSize,
+                                         FileSystemManager fileSystemManager, Runnable retry) {
+        startWorker();
+        Transfer transfer = active.get(pathName);
+        if (transfer == null && active.size() < MAX_ACTIVE) {
+            transfer = new Transfer(pathName, fileSystemManager, fileSize);
+            active.put(pathName, transfer);
+        }
+        if (transfer != null) {
+            transfer.md5 = md5;
+            transfer.admitted++;
+            return 1;
+        }
+        Queued old = queued.get(pathName);
+        if (old == null && queued.size() >= MAX_QUEUED) {
+            return -1;
+        }
+        if (old != null) {
+            // only the newest request for a file is worth handling
+            queue.remove(old);
+        }
+        Queued request = new Queued(pathName, fileSize, queuedCount++, retry);
+        queue.add(request);
+        queued.put(pathName, request);
+        return 0;
+    }
+
+    /**
+     * Hold a request for a file that is loading, until {@link #loaded(String)} queues it.
+     * @param pathName the path name of the file
+     * @param fileSize the size of the file
+     * @param retry handles the request again when it is admitted later
+     * @return true if the request is held, false if the file is not loading
+     */
+    public static synchronized boolean defer(String pathName, long fileSize, Runnable retry) {
+        Transfer transfer = active.get(pathName);
+        if (transfer == null || !transfer.downloading) {
+            return false;
+        }
+        // only the newest request for a file is worth handling
+        waiting.put(pathName, new Queued(pathName, fileSize, queuedCount++, retry));
+        return true;
+    }
+
+    /**
+     * Record that an admitted request waits for another transfer of the same content in the same file system
+     * manager, and is copied from it once it completes. The request keeps its slot until that transfer ends.
+     * @param pathName the path name of the file
+     */
+    public static synchronized void attach(String pathName) {
+        Transfer transfer = active.get(pathName);
+        if (transfer == null) {
+            return;
+        }
+        transfer.waiting = true;
+        for (Transfer other : active.values()) {
+            if (isWaitingFor(transfer, other)) {
+                transfer.downloading = true;
+                transfer.lastProgress = System.currentTimeMillis();
+                return;
+            }
+        }
+        // the transfer has ended already
+        transfer.waiting = false;
+    }
+
+    /**
+     * Settle an admitted request.
+     * @param pathName the path name of the file
+     * @param downloading true if the request started downloading the file, which then keeps its slot until
+     *                    {@link #end(String)}
+     */
+    public static synchronized void settle(String pathName, boolean downloading) {
+        Transfer transfer = active.get(pathName);
+        if (transfer == null) {
+            return;
+        }
+        transfer.admitted--;
+        if (downloading) {
+            transfer.downloading = true;
+            transfer.lastProgress = System.currentTimeMillis();
+        }
+        if (transfer.admitted <= 0 && !transfer.downloading) {
+            active.remove(pathName);
+            TransferManager.class.notifyAll();
+        }
+    }
+
+    /**
+     * Record bytes received for a file.
+     * @param pathName the path name of the file
+     * @param length the number of bytes
+     */
+    public static synchronized void progress(String pathName, long length) {
+        Transfer transfer = active.get(pathName);
+        if (transfer != null) {
+            transfer.received += length;
+            transfer.lastProgress = System.currentTimeMillis();
+            // the files waiting for it are making progress too
+            for (Transfer other : active.values()) {
+                if (isWaitingFor(other, transfer)) {
+                    other.lastProgress = transfer.lastProgress;
+                }
+            }
+        }
+    }
+
+    /**
+     * Free the slot of a file whose download has finished or been given up, and the slots of the files waiting for
+     * it, which are copied from it or cancelled with it.
+     * @param pathName the path name of the file
+     */
+    public static synchronized void end(String pathName) {
+        Transfer transfer = active.get(pathName);
+        if (transfer != null && transfer.downloading) {
+            active.remove(pathName);
+            active.values().removeIf(other -> isWaitingFor(other, transfer));
+            TransferManager.class.notifyAll();
+        }
+    }
+
+    // whether a transfer is waiting for another one to complete
+    private static boolean isWaitingFor(Transfer transfer, Transfer other) {
+        return transfer.waiting && !other.waiting && transfer.fileSystemManager == other.fileSystemManager &&
+                transfer.md5 != null && transfer.md5.equals(other.md5);
+    }
+
+    /**
+     * Queue the request held for a file, now that the file has appeared in the share.
+     * @param pathName the path name of the file
+     */
+    public static synchronized void loaded(String pathName) {
+        Queued request = waiting.remove(pathName);
+        if (request == null) {
+            return;
+        }
+        Queued old = queued.put(pathName, request);
+        if (old != null) {
+            queue.remove(old);
+        }
+        queue.add(request);
+        TransferManager.class.notifyAll();
+    }
+
+    /**
+     * Get the number of files loading.
+     * @return the number of files
+     */
+    public static synchronized int getActive() {
+        return active.size();
+    }
+
+    /**
+     * Get the number of requests waiting for a slot.
+     * @return the number of requests
+     */
+    public static synchronized int getQueued() {
+        return queued.size();
+    }
+
+    /**
+     * Get the progress of every file loading.
+     * @return one line per file, with the bytes received so far and the size of the file
+     */
+    public static synchronized ArrayList<String> getProgress() {
+        ArrayList<String> progress = new ArrayList<>();
+        for (Transfer transfer : active.values()) {
+            progress.add(transfer.toString());
+        }
+        return progress;
+    }
+
+    private static void startWorker() {
+        if (worker == null) {
+            worker = new Thread(TransferManager::work, "TransferManager");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Hand free slots to queued requests, and cancel stalled transfers.
+     */
+    private static void work() {
+        long nextCheck = System.currentTimeMillis() + CHECK_INTERVAL;
+        while (true) {
+            ArrayList<Runnable> retries = new ArrayList<>();
+            ArrayList<Transfer> stalled = new ArrayList<>();
+            synchronized (TransferManager.class) {
+                long wait = nextCheck - System.currentTimeMillis();
+                if (wait > 0 && (queue.isEmpty() || active.size() + starting >= MAX_ACTIVE)) {
+                    try {
+                        TransferManager.class.wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                while (!queue.isEmpty() && active.size() + starting < MAX_ACTIVE) {
+                    Queued request = queue.poll();
+                    queued.remove(request.pathName);
+                    starting++;
+                    retries.add(request.retry);
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextCheck) {
+                    nextCheck = now + CHECK_INTERVAL;
+                    for (Transfer transfer : active.values()) {
+                        if (transfer.downloading && now - transfer.lastProgress > TIMEOUT) {
+                            stalled.add(transfer);
+                        }
+                    }
+                    if (!active.isEmpty() || !queued.isEmpty()) {
+                        log.fine("Transfers: " + active.size() + " active, " + queued.size() +
+                                " queued " + getProgress());
+                    }
+                }
+            }
+            for (Transfer transfer : stalled) {
+                System.out.println("Transfer of " + transfer.pathName + " stalled, suspending it");
+                Swarm.abort(transfer.pathName);
+                try {
+                    transfer.fileSystemManager.suspendFileLoader(transfer.pathName);
+                } catch (IOException e) {
+                    System.out.println("Problem in IO");
+                }
+                end(transfer.pathName);
+            }
+            for (Runnable retry : retries) {
+                retryExecutor.execute(() -> {
+                    try {
+                        retry.run();
+                    } finally {
+                        synchronized (TransferManager.class) {
+                            starting--;
+                            TransferManager.class.notifyAll();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    // private constructor to prevent initialization
+    private TransferManager() {
+    }
+}
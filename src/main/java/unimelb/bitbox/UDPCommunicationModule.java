@@ -1,6 +1,5 @@
 package unimelb.bitbox;
 
-import jdk.nashorn.internal.runtime.PrototypeObject;
 import unimelb.bitbox.protocol.*;
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.Document;
@@ -8,13 +7,20 @@ import unimelb.bitbox.util.FileSystemManager;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.Timestamp;
-import java.sql.Time;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * The UDPCommunicationModule class handle the communication with other peers.
@@ -23,16 +29,56 @@ import java.util.concurrent.TimeUnit;
  */
 public class UDPCommunicationModule extends Thread implements CommunicationModule {
 
+    private static Logger log = Logger.getLogger(UDPCommunicationModule.class.getName());
+
     private final int MAX_INCOMING_CONNECTIONS = Integer.parseInt(Configuration.getConfigurationValue("maximumIncommingConnections"));
-    private final int SYNC_INTERVAL = Integer.parseInt(Configuration.getConfigurationValue("syncInterval"));
     private final int BUFFER_SIZE = 65536;
     private final long RETRY_INTERVAL = 3 * 1000;
     private final int MAX_RETRY = 4;
-
-    private DatagramSocket serverSocket; // my listen socket
+    // the maximum number of message bytes carried by one datagram, larger messages are fragmented
+    private final int FRAGMENT_SIZE = Integer.parseInt(Configuration.getConfigurationValue("udpFragmentSize", "1024"));
+    // the maximum number of bytes kept per connection for fragments being sent or reassembled
+    private final long MAX_FRAGMENT_BYTES = 16L * 1024 * 1024;
+    // the most file bytes asked for at once from a peer reassembling fragments, leaving room for several messages
+    private final long MAX_FRAGMENTED_BLOCK_SIZE = MAX_FRAGMENT_BYTES / 8;
+    // data fragments per parity group for forward error correction, 0 to disable it
+    private final int FEC_GROUP_SIZE = Boolean.parseBoolean(Configuration.getConfigurationValue("udpFec", "false")) ?
+            Integer.parseInt(Configuration.getConfigurationValue("udpFecGroupSize", "8")) : 0;
+    // the number of threads receiving datagrams from the shared channel
+    private final int RECEIVER_THREADS = Integer.parseInt(Configuration.getConfigurationValue("udpReceiverThreads",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    // how long a resolved peer address is used before it is looked up again
+    private final long ADDRESS_TTL = 1000 * Long.parseLong(Configuration.getConfigurationValue("udpAddressTtl", "60"));
+    // bytes of a batch datagram other than its messages
+    private final int BATCH_OVERHEAD = 64;
+    // handshake feature indicating that the peer accepts batched messages
+    private final String FEATURE_BATCH = "batch";
+    // handshake feature indicating that the peer answers a HandshakeCookie
+    private final String FEATURE_COOKIE = "cookie";
+    // handshake feature indicating that the peer reassembles fragmented messages
+    private final String FEATURE_FRAGMENT = "fragment";
+    // a handshake cookie is valid during the interval it was issued in and the next one
+    private final long COOKIE_INTERVAL = 30 * 1000;
+    // the encoded command of a handshake request, looked for before a datagram from an unknown address is parsed
+    private final byte[] HANDSHAKE_COMMAND = "\"HANDSHAKE_REQUEST\"".getBytes(StandardCharsets.UTF_8);
+    // whether peers that do not answer a HandshakeCookie may connect, at the cost of keeping state for any sender
+    private final boolean LEGACY_HANDSHAKE =
+            Boolean.parseBoolean(Configuration.getConfigurationValue("udpLegacyHandshake", "false"));
+
+    private DatagramChannel serverChannel; // my listen channel, shared by all receiver threads
     private String hostAddress;
     private int hostport;
-    private final HashMap<ConnectedPeer, Connection> connectedMap;
+    private final ConcurrentHashMap<ConnectedPeer, Connection> connectedMap;
+    // connections by the address their datagrams come from
+    private final ConcurrentHashMap<InetSocketAddress, Connection> addressMap;
+    private final byte[] cookieSecret; // key for handshake cookies, changed on every start
+
+    // send statistics
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong addressLookups = new AtomicLong();
+    private final AtomicLong unknownDropped = new AtomicLong();
+    private final AtomicLong echoSuppressed = new AtomicLong();
 
     private FileSystemManager fileSystemManager;
 
@@ -44,15 +90,23 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      */
     public UDPCommunicationModule(FileSystemManager fileSystemManager) throws IOException {
         this.hostport = Integer.parseInt(Configuration.getConfigurationValue("udpPort"));
-        this.serverSocket = new DatagramSocket(this.hostport);
+        this.serverChannel = DatagramChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(this.hostport));
 //        this.hostAddress = InetAddress.getLocalHost().getHostAddress();
         this.hostAddress = Configuration.getConfigurationValue("advertisedName");
         this.fileSystemManager = fileSystemManager;
-        this.connectedMap = new HashMap<>();
+        this.connectedMap = new ConcurrentHashMap<>();
+        this.addressMap = new ConcurrentHashMap<>();
+        this.cookieSecret = new byte[32];
+        new SecureRandom().nextBytes(this.cookieSecret);
 
 
         System.out.println("My IP Address:- " + this.hostAddress);
 
+        // this thread is one receiver, start the others
+        for (int i = 1; i < RECEIVER_THREADS; i++) {
+            new ReceiveTask();
+        }
         this.start();
     }
 
@@ -68,29 +122,157 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
     }
 
     /**
-     * Keep listen incoming connections and assign handshake task thread for them.
+     * Keep listen incoming connections and assign handshake task thread for them. Several threads may run this
+     * method at the same time, each with its own receive buffer, which is reused for every datagram.
      */
     public void listen() throws IOException {
 
-        byte[] buf = new byte[BUFFER_SIZE];
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
         // keep listening
         while (true) {
-            DatagramPacket receivedPacket = new DatagramPacket(buf, buf.length);
-            this.serverSocket.receive(receivedPacket);
-            ConnectedPeer peer = new ConnectedPeer(receivedPacket.getAddress().getHostAddress(), receivedPacket.getPort());
-            String receivedString = new String(receivedPacket.getData(), 0, receivedPacket.getLength(), StandardCharsets.UTF_8);
-            synchronized (connectedMap){
-                // if we have talked before
-                if (connectedMap.containsKey(peer)) {
-                    connectedMap.get(peer).addReceivedPending(receivedString);
-                // if we have not talked before
-                } else {
-                    Connection connection = new Connection(peer, false, true);
-                    connectedMap.put(peer, connection);
-                    connectedMap.get(peer).addReceivedPending(receivedString);
+            buf.clear();
+            InetSocketAddress address = (InetSocketAddress) this.serverChannel.receive(buf);
+            Connection connection = addressMap.get(address);
+            // if we have not talked before, only a verified handshake request creates the connection
+            if (connection == null) {
+                connection = handleUnknown(address, buf);
+                if (connection == null) {
+                    continue;
                 }
             }
-            System.out.println("Receive From: " + receivedPacket.getAddress().getHostAddress() + ":" + receivedPacket.getPort() + "----" + "Content: " + receivedString + "\n");
+            connection.addReceivedPending(new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Handle a datagram from an address without connection, without keeping any state for it. Handshake requests
+     * are answered with a cookie, and the connection is created only when the request is repeated with that cookie.
+     * Handshake requests from peers that do not support cookies are refused, unless udpLegacyHandshake is set.
+     * Connections are found by the address their datagrams come from, which outgoing connections register once
+     * they have resolved the address of their peer, so nothing else is looked up for other datagrams.
+     * @param address the address of the sending peer
+     * @param buf the received datagram
+     * @return the connection of the address, or null if the datagram has been dealt with
+     */
+    private Connection handleUnknown(InetSocketAddress address, ByteBuffer buf) {
+        // anything else is dropped before it is decoded
+        if (!contains(buf, HANDSHAKE_COMMAND)) {
+            unknownDropped.incrementAndGet();
+            return null;
+        }
+        Protocol protocol = ProtocolHelper.convertProtocol(
+                new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+        if (!(protocol instanceof HandshakeRequest)) {
+            unknownDropped.incrementAndGet();
+            return null;
+        }
+        HandshakeRequest request = (HandshakeRequest) protocol;
+        ConnectedPeer peer = new ConnectedPeer(address.getAddress().getHostAddress(), address.getPort());
+        if (!checkCookie(peer, request.cookie)) {
+            if (request.features.contains(FEATURE_COOKIE)) {
+                sendStateless(new HandshakeCookie(generateCookie(peer, (new Date()).getTime() / COOKIE_INTERVAL)),
+                        address);
+                return null;
+            }
+            // a peer that cannot answer a cookie, or a sender pretending not to, is told why it cannot connect,
+            // without the list of peers so that the answer is no larger than the request
+            if (!LEGACY_HANDSHAKE) {
+                sendStateless(new ConnectionRefused(new ArrayList<>(), "handshake cookie required"), address);
+                return null;
+            }
+        }
+        if (getIncomingConnectionsNum() >= MAX_INCOMING_CONNECTIONS) {
+            sendStateless(new ConnectionRefused(getConnectedPeers()), address);
+            return null;
+        }
+        Connection connection = connectedMap.computeIfAbsent(peer, p -> new Connection(p, false, true));
+        addressMap.put(address, connection);
+        return connection;
+    }
+
+    /**
+     * Check whether the received bytes of a datagram contain a sequence of bytes.
+     * @param buf the received datagram
+     * @param bytes the bytes to look for
+     * @return true if they are in the datagram
+     */
+    private static boolean contains(ByteBuffer buf, byte[] bytes) {
+        byte[] array = buf.array();
+        for (int i = 0; i + bytes.length <= buf.position(); i++) {
+            int j = 0;
+            while (j < bytes.length && array[i + j] == bytes[j]) {
+                j++;
+            }
+            if (j == bytes.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send a protocol to an address without connection.
+     * @param protocol protocol need to be sent
+     * @param address the target address
+     */
+    private void sendStateless(Protocol protocol, InetSocketAddress address) {
+        try {
+            serverChannel.send(ByteBuffer.wrap(protocol.toString().getBytes(StandardCharsets.UTF_8)), address);
+            datagramsSent.incrementAndGet();
+        } catch (IOException e) {
+            System.out.println("Problem in sending messages\n");
+        }
+    }
+
+    /**
+     * Generate the handshake cookie of a peer for a time interval.
+     * @param peer the peer
+     * @param interval the time interval number
+     * @return the cookie
+     */
+    private String generateCookie(ConnectedPeer peer, long interval) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(cookieSecret, "HmacSHA256"));
+            String input = peer.host + ":" + peer.port + ":" + interval;
+            return Base64.getEncoder().encodeToString(mac.doFinal(input.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Check whether a handshake cookie was issued to a peer recently.
+     * @param peer the peer
+     * @param cookie the cookie, may be null
+     * @return true if the cookie is valid
+     */
+    private boolean checkCookie(ConnectedPeer peer, String cookie) {
+        if (cookie == null) {
+            return false;
+        }
+        long interval = (new Date()).getTime() / COOKIE_INTERVAL;
+        return cookie.equals(generateCookie(peer, interval)) || cookie.equals(generateCookie(peer, interval - 1));
+    }
+
+    /**
+     * Class of receive task, an additional thread receiving from the shared channel.
+     */
+    private class ReceiveTask extends Thread {
+
+        /**
+         * Constructor.
+         */
+        public ReceiveTask() {
+            this.start();
+        }
+
+        public void run() {
+            try {
+                listen();
+            } catch (IOException e) {
+                System.out.println("Problem in receiving messages\n");
+            }
         }
     }
 
@@ -101,13 +283,26 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
 
         private ConnectedPeer peer;
         private boolean isIncoming;
-        private boolean isConnected;
+        private volatile boolean isConnected;
         private ArrayList<Protocol> sentPendingList;
-        private LinkedList<String> receivedPendingQueue;
+        private LinkedBlockingQueue<String> receivedPendingQueue;
         private RetryTask retryTask;
         private ProcessTask processTask;
         private SyncTask syncTask;
         private RequestHandler reqHandler;
+        private FragmentManager fragmentManager;
+        private volatile InetSocketAddress address; // the resolved address of peer
+        private long addressResolvedTime;
+        private volatile boolean batching; // whether peer accepts batched messages
+        private volatile boolean fragments; // whether peer reassembles fragmented messages
+        private volatile boolean journal; // whether peer accepts sync marks
+        private volatile boolean digest; // whether peer compares directory digests
+        private volatile boolean chunks; // whether peer can list the chunks of a file
+        private volatile boolean moves; // whether peer handles move requests
+        private volatile boolean bundles; // whether peer creates bundles of small files
+        private volatile boolean subtrees; // whether peer deletes whole directories in one request
+        private boolean caughtUp; // whether the changes made while peer was away have been sent
+        private SyncMark remoteMark; // how far peer has been synchronized with my journal
         private BufferedWriter out;
         private String screteKey;
 
@@ -145,10 +340,12 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
             this.isConnected = isConnected;
             this.isIncoming = isIncoming;
             this.sentPendingList = new ArrayList<>();
-            this.receivedPendingQueue = new LinkedList<>();
+            this.receivedPendingQueue = new LinkedBlockingQueue<>();
+            this.reqHandler = new RequestHandler(fileSystemManager, peer.toString());
+            this.fragmentManager = new FragmentManager(FRAGMENT_SIZE, MAX_FRAGMENT_BYTES,
+                    RETRY_INTERVAL, RETRY_INTERVAL * (MAX_RETRY + 1), FEC_GROUP_SIZE);
             this.retryTask = new RetryTask(this);
             this.processTask = new ProcessTask(this);
-            this.reqHandler = new RequestHandler(fileSystemManager);
         }
 
         /**
@@ -157,24 +354,209 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
          * @param resend whether this message is resent
          */
         public void send(Protocol protocol, boolean resend) {
-            try {
-                InetAddress inetAddress = InetAddress.getByName(peer.host);
-                String protocolStr = protocol.toString();
-                byte[] protocolByt = protocolStr.getBytes(StandardCharsets.UTF_8);
-                DatagramPacket sendPacket = new DatagramPacket(protocolByt, protocolByt.length, inetAddress, peer.port);
-                try {
-                    System.out.println("Send To: " + peer.host + ":" + peer.port + "----" + "Content: " + protocolStr + " Is Resend: " + resend + "\n");
-                    serverSocket.send(sendPacket);
+            String protocolStr = protocol.toString();
+            byte[] protocolByt = protocolStr.getBytes(StandardCharsets.UTF_8);
+            System.out.println("Send To: " + peer.host + ":" + peer.port + "----" + "Content: " + protocolStr + " Is Resend: " + resend + "\n");
+            boolean success = true;
+            messagesSent.incrementAndGet();
+            // split messages too large for one datagram
+            if (fragments && fragmentManager.needFragment(protocolByt)) {
+                for (Fragment f : fragmentManager.split(protocolByt)) {
+                    success = sendBytes(f.toString().getBytes(StandardCharsets.UTF_8)) && success;
+                }
+            }
+            else {
+                success = sendBytes(protocolByt);
+            }
+            // if send a request, add it to pendingMap
+            if (success && protocol.isRequest() && !resend) {
+                addSentPending(protocol);
+            }
+        }
+
+        /**
+         * Send several protocol messages to peer. If the peer accepts batches, small messages are packed
+         * together into as few datagrams as possible.
+         * @param protocols protocols need to be sent, in order
+         */
+        public void sendAll(ArrayList<Protocol> protocols) {
+            if (!batching || protocols.size() < 2) {
+                for (Protocol p : protocols) {
+                    send(p, false);
+                }
+                return;
+            }
+            ArrayList<Protocol> batchProtocols = new ArrayList<>();
+            ArrayList<String> batchMessages = new ArrayList<>();
+            int batchSize = BATCH_OVERHEAD;
+            for (Protocol p : protocols) {
+                String protocolStr = p.toString();
+                int size = protocolStr.getBytes(StandardCharsets.UTF_8).length + 1;
+                // too large to share a datagram
+                if (size + BATCH_OVERHEAD > FRAGMENT_SIZE) {
+                    send(p, false);
+                    continue;
+                }
+                if (batchSize + size > FRAGMENT_SIZE) {
+                    sendBatch(batchProtocols, batchMessages);
+                    batchProtocols = new ArrayList<>();
+                    batchMessages = new ArrayList<>();
+                    batchSize = BATCH_OVERHEAD;
+                }
+                batchProtocols.add(p);
+                batchMessages.add(protocolStr);
+                batchSize += size;
+            }
+            sendBatch(batchProtocols, batchMessages);
+        }
+
+        /**
+         * Send a batch of protocol messages in one datagram.
+         * @param protocols the protocols in the batch
+         * @param messages the encoded protocols
+         */
+        private void sendBatch(ArrayList<Protocol> protocols, ArrayList<String> messages) {
+            if (protocols.isEmpty()) {
+                return;
+            }
+            if (protocols.size() == 1) {
+                send(protocols.get(0), false);
+                return;
+            }
+            String batchStr = new Batch(messages).toString();
+            System.out.println("Send To: " + peer.host + ":" + peer.port + "----" + "Content: " + batchStr + "\n");
+            messagesSent.addAndGet(protocols.size());
+            if (sendBytes(batchStr.getBytes(StandardCharsets.UTF_8))) {
+                for (Protocol p : protocols) {
                     // if send a request, add it to pendingMap
-                    if (protocol.isRequest() && !resend) {
-                        addSentPending(protocol);
+                    if (p.isRequest()) {
+                        addSentPending(p);
                     }
-                } catch (IOException e) {
-                    System.out.println("Problem in sending messages\n");
                 }
-            } catch (UnknownHostException e) {
+            }
+        }
+
+        /**
+         * Send fragments the peer reported as missing.
+         * @param nack the negative acknowledgement from peer
+         */
+        public void resendFragments(FragmentNack nack) {
+            for (Fragment f : fragmentManager.getMissing(nack)) {
+                sendBytes(f.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Send one datagram to peer.
+         * @param data the datagram content
+         * @return true if the datagram was sent
+         */
+        private boolean sendBytes(byte[] data) {
+            InetSocketAddress target = resolveAddress();
+            if (target == null) {
                 System.out.println("The sending host is unknown\n");
+                return false;
+            }
+            try {
+                serverChannel.send(ByteBuffer.wrap(data), target);
+                datagramsSent.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                System.out.println("Problem in sending messages\n");
+            }
+            return false;
+        }
+
+        /**
+         * Get the address of peer, looking it up again only when the cached one is older than ADDRESS_TTL.
+         * @return the address of peer, null if it has never been resolved
+         */
+        private synchronized InetSocketAddress resolveAddress() {
+            long currentTime = (new Date()).getTime();
+            if (address == null || currentTime - addressResolvedTime > ADDRESS_TTL) {
+                try {
+                    addressLookups.incrementAndGet();
+                    InetSocketAddress resolved = new InetSocketAddress(InetAddress.getByName(peer.host), peer.port);
+                    if (address != null && !address.equals(resolved)) {
+                        addressMap.remove(address, this);
+                    }
+                    address = resolved;
+                    // not once the connection has ended
+                    if (connectedMap.get(peer) == this) {
+                        addressMap.put(resolved, this);
+                    }
+                } catch (UnknownHostException e) {
+                    // keep using the old address if there is one
+                    System.out.println("Problem in resolving host " + peer.host + "\n");
+                }
+                addressResolvedTime = currentTime;
+            }
+            return address;
+        }
+
+        /**
+         * Create a handshake request to peer.
+         * @param cookie the cookie given by peer, null if none
+         * @return the handshake request
+         */
+        private HandshakeRequest handshakeRequest(String cookie) {
+            HandshakeRequest request = new HandshakeRequest(new ConnectedPeer(hostAddress, hostport), getFeatures(), cookie);
+            request.syncMark = SyncMarks.get(peer);
+            return request;
+        }
+
+        /**
+         * Create a handshake response to peer.
+         * @return the handshake response
+         */
+        private HandshakeResponse handshakeResponse() {
+            HandshakeResponse response = new HandshakeResponse(new ConnectedPeer(hostAddress, hostport), getFeatures());
+            response.syncMark = SyncMarks.get(peer);
+            return response;
+        }
+
+        /**
+         * Set how far peer has been synchronized with my journal.
+         * @param mark the journal position, null if unknown
+         */
+        private synchronized void setRemoteMark(SyncMark mark) {
+            this.remoteMark = mark;
+        }
+
+        /**
+         * Generate the sync events peer has not seen yet, and move the mark past them.
+         * @return the protocols to send, ending with a sync mark if peer accepts them
+         */
+        private synchronized ArrayList<Protocol> generateSync() {
+            long sequence = fileSystemManager.getJournalSequence();
+            ArrayList<Protocol> protocols = new ArrayList<>();
+            if (remoteMark == null && digest) {
+                // let peer tell which directories differ instead of sending everything
+                protocols.add(new DirectoryDigestRequest("", fileSystemManager.getDirectoryDigest("")));
+            } else {
+                // the full dump is shared by all peers until the share changes
+                List<FileSystemManager.FileSystemEvent> events = remoteMark == null ?
+                        SyncSnapshot.get(fileSystemManager).events :
+                        fileSystemManager.generateSyncEvents(remoteMark.journalId, remoteMark.sequence);
+                for (FileSystemManager.FileSystemEvent e : events) {
+                    // peer made this change itself
+                    if (peer.toString().equals(e.origin)) {
+                        echoSuppressed.incrementAndGet();
+                        continue;
+                    }
+                    protocols.addAll(EventHandler.handleEvent(fileSystemManager, e, moves, subtrees));
+                }
+                // later syncs repeat changes peer was sent as they were made, not worth their contents
+                if (remoteMark != null && bundles && !caughtUp) {
+                    protocols = FileBundles.bundle(fileSystemManager, protocols);
+                }
+            }
+            caughtUp = true;
+            if (journal) {
+                remoteMark = new SyncMark(fileSystemManager.getJournalId(), sequence);
+                protocols.add(remoteMark);
             }
+            return protocols;
         }
 
         /**
@@ -209,9 +591,7 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
          * @param receivedStr received message
          */
         public void addReceivedPending(String receivedStr) {
-            synchronized (this.receivedPendingQueue){
-                this.receivedPendingQueue.add(receivedStr);
-            }
+            this.receivedPendingQueue.add(receivedStr);
         }
 
         /**
@@ -220,14 +600,30 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
         private void endConnection() {
             System.out.println("End connection with: " + peer.host + ":" + peer.port + "\n");
             this.writeToClint(new ConnectPeerResponse(peer.host, peer.port, false, "Peer can not be connected"));
+            endTasks();
+            connectedMap.remove(peer, this);
+            addressMap.values().removeIf(con -> con == this);
+            // hand its blocks to other peers, and suspend downloads nobody else can serve until they are resumed
+            if (isConnected) {
+                for (String pathName : Swarm.unregister(peer.toString())) {
+                    try {
+                        fileSystemManager.suspendFileLoader(pathName);
+                    } catch (IOException e) {
+                        System.out.println("Problem in IO");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stop all tasks of this connection.
+         */
+        private void endTasks() {
             this.retryTask.isAlive = false;
             this.processTask.isAlive = false;
             if(this.syncTask != null){
                 this.syncTask.isAlive = false;
             }
-            synchronized (connectedMap){
-                connectedMap.remove(peer);
-            }
         }
 
         /**
@@ -241,6 +637,10 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
                 this.sentPendingList = new ArrayList<>();
             }
             this.syncTask = new SyncTask(this);
+            // larger blocks only if they can be fragmented
+            long maxBlockSize = fragments ? MAX_FRAGMENTED_BLOCK_SIZE : RequestHandler.DEFAULT_BLOCK_SIZE;
+            reqHandler.setMaxBlockSize(maxBlockSize);
+            Swarm.register(peer.toString(), p -> send(p, false), chunks, maxBlockSize);
         }
 
         /**
@@ -280,7 +680,7 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      */
     private class RetryTask extends Thread {
 
-        private boolean isAlive;
+        private volatile boolean isAlive;
         private Connection connection;
 
         /**
@@ -300,6 +700,10 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
         public void run() {
             while (isAlive) {
                 retryScan();
+                // ask for fragments that have not arrived
+                for (FragmentNack nack : connection.fragmentManager.scan()) {
+                    connection.send(nack, false);
+                }
                 try {
                     this.sleep(RETRY_INTERVAL);
                 } catch (InterruptedException e) {
@@ -345,7 +749,7 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      */
     private class ProcessTask extends Thread {
 
-        private boolean isAlive;
+        private volatile boolean isAlive;
         private Connection connection;
 
         /**
@@ -364,11 +768,13 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
          */
         public void run() {
             while (isAlive) {
-                synchronized (connection.receivedPendingQueue){
-                    if (connection.receivedPendingQueue.size() > 0) {
-                        String receivedStr = connection.receivedPendingQueue.poll();
+                try {
+                    String receivedStr = connection.receivedPendingQueue.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (receivedStr != null) {
                         handleReceived(receivedStr);
                     }
+                } catch (InterruptedException e) {
+                    System.out.println("Problem in process task waiting\n");
                 }
             }
             System.out.println("End remaining protocol monitoring task\n");
@@ -387,14 +793,36 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
                 return;
             }
 
+            // reassemble fragmented messages
+            if (protocol instanceof Fragment) {
+                String message = connection.fragmentManager.receive((Fragment) protocol);
+                if (message != null) {
+                    handleReceived(message);
+                }
+                return;
+            }
+            if (protocol instanceof FragmentNack) {
+                connection.resendFragments((FragmentNack) protocol);
+                return;
+            }
+            // unpack batched messages
+            if (protocol instanceof Batch) {
+                for (String message : ((Batch) protocol).messages) {
+                    handleReceived(message);
+                }
+                return;
+            }
+
             // if we are not connected
             if (!connection.isConnected) {
                 if (protocol instanceof HandshakeRequest) {
-                    handleHandshakeRequest();
+                    handleHandshakeRequest((HandshakeRequest) protocol);
                 } else if (protocol instanceof HandshakeResponse) {
-                    handleHandshakeResponse();
+                    handleHandshakeResponse((HandshakeResponse) protocol);
                 } else if (protocol instanceof ConnectionRefused) {
                     handleConnectionRefused(protocol);
+                } else if (protocol instanceof HandshakeCookie) {
+                    handleHandshakeCookie((HandshakeCookie) protocol);
                 } else if (protocol instanceof InvalidProtocol) {
                     connection.endConnection();
                 } else {
@@ -404,18 +832,24 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
             // if we are connected
             else {
                 if (protocol instanceof HandshakeRequest) {
-                    handleHandshakeRequest();
+                    handleHandshakeRequest((HandshakeRequest) protocol);
                 } else if (protocol instanceof HandshakeResponse) {
-                    handleHandshakeResponse();
+                    handleHandshakeResponse((HandshakeResponse) protocol);
                 } else if (protocol instanceof ConnectionRefused) {
                     handleConnectionRefused(protocol);
+                } else if (protocol instanceof HandshakeCookie) {
+                    // i have resend request before, just ignore it
                 } else if (protocol instanceof InvalidProtocol) {
                     handleInvalidProtocol();
+                } else if (protocol instanceof SyncMark) {
+                    // record how far i have been synchronized with its journal
+                    SyncMarks.put(connection.peer, (SyncMark) protocol);
                 } else {
                     ArrayList<Protocol> reply = connection.reqHandler.handleRequest(protocol.toString());
-                    for (Protocol r : reply) {
-                        connection.send(r, false);
+                    if (connection.bundles) {
+                        reply = FileBundles.bundle(fileSystemManager, reply);
                     }
+                    connection.sendAll(reply);
                     // if received a response, remove request from pending list
                     if (!protocol.isRequest()) {
                         connection.removeSendPending(protocol);
@@ -435,18 +869,28 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
 
         /**
          * Handle handshake request.
+         * @param protocol handshake request protocol
          */
-        private void handleHandshakeRequest() {
+        private void handleHandshakeRequest(HandshakeRequest protocol) {
+            connection.batching = protocol.features.contains(FEATURE_BATCH);
+            connection.fragments = protocol.features.contains(FEATURE_FRAGMENT);
+            connection.journal = protocol.features.contains(SyncMarks.FEATURE_JOURNAL);
+            connection.digest = protocol.features.contains(SyncMarks.FEATURE_DIGEST);
+            connection.chunks = protocol.features.contains(SyncMarks.FEATURE_CHUNKS);
+            connection.moves = protocol.features.contains(SyncMarks.FEATURE_MOVE);
+            connection.bundles = protocol.features.contains(SyncMarks.FEATURE_BUNDLE);
+            connection.subtrees = protocol.features.contains(SyncMarks.FEATURE_SUBTREE);
+            connection.setRemoteMark(protocol.syncMark);
 
             // if we are connected, reply response
             if (connection.isConnected) {
-                connection.send(new HandshakeResponse(new ConnectedPeer(hostAddress, hostport)), false);
+                connection.send(connection.handshakeResponse(), false);
             }
             // if we are not connected
             else {
                 // if i can add u
                 if (getIncomingConnectionsNum() < MAX_INCOMING_CONNECTIONS) {
-                    connection.send(new HandshakeResponse(new ConnectedPeer(hostAddress, hostport)), false);
+                    connection.send(connection.handshakeResponse(), false);
                     // update its info to connected
                     connection.startConnection();
                 }
@@ -460,8 +904,18 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
 
         /**
          * Handle handshake response.
+         * @param protocol handshake response protocol
          */
-        private void handleHandshakeResponse() {
+        private void handleHandshakeResponse(HandshakeResponse protocol) {
+            connection.batching = protocol.features.contains(FEATURE_BATCH);
+            connection.fragments = protocol.features.contains(FEATURE_FRAGMENT);
+            connection.journal = protocol.features.contains(SyncMarks.FEATURE_JOURNAL);
+            connection.digest = protocol.features.contains(SyncMarks.FEATURE_DIGEST);
+            connection.chunks = protocol.features.contains(SyncMarks.FEATURE_CHUNKS);
+            connection.moves = protocol.features.contains(SyncMarks.FEATURE_MOVE);
+            connection.bundles = protocol.features.contains(SyncMarks.FEATURE_BUNDLE);
+            connection.subtrees = protocol.features.contains(SyncMarks.FEATURE_SUBTREE);
+            connection.setRemoteMark(protocol.syncMark);
             // if we are connected, maybe because i have resend request before, i just ignore it.
             if (connection.isConnected) {
                 return;
@@ -472,6 +926,15 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
             }
         }
 
+        /**
+         * Handle handshake cookie by repeating the handshake request with the cookie.
+         * @param protocol handshake cookie protocol
+         */
+        private void handleHandshakeCookie(HandshakeCookie protocol) {
+            connection.removeSendPending(protocol);
+            connection.send(connection.handshakeRequest(protocol.cookie), false);
+        }
+
         /**
          * Handle connection refused.
          * @param protocol connection refused protocol
@@ -493,8 +956,9 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      */
     private class SyncTask extends Thread {
 
-        private boolean isAlive;
+        private volatile boolean isAlive;
         private Connection connection;
+        private SyncScheduler scheduler = new SyncScheduler(); // when to sync and how fast
 
         /**
          * Constructor.
@@ -508,40 +972,159 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
         }
 
         /**
-         * Run sync() every interval.
+         * Run sync() at the times the scheduler decides, starting after a random delay so peers connecting
+         * together do not sync at once.
          */
         public void run() {
+            long delay = scheduler.firstDelay();
             while (isAlive) {
-                sync();
                 try {
-                    this.sleep(1000 * SYNC_INTERVAL);
+                    this.sleep(delay);
                 } catch (InterruptedException e) {
                     System.out.println("Problem in sync task sleeping\n");
                 }
+                if (!isAlive) {
+                    break;
+                }
+                sync();
+                delay = scheduler.nextDelay(fileSystemManager.getJournalSequence());
             }
         }
 
         /**
-         * Generate sync events every interval and send them to every connected peers.
+         * Generate sync events and send them to peer, paced by the scheduler.
          */
         private void sync() {
             System.out.println("Synchronization Task\n");
-            ArrayList<FileSystemManager.FileSystemEvent> events = fileSystemManager.generateSyncEvents();
-            for (FileSystemManager.FileSystemEvent e : events) {
-                connection.send(EventHandler.handleEvent(e), false);
+            ArrayList<Protocol> protocols = connection.generateSync();
+            int burst = scheduler.getBurst();
+            for (int i = 0; i < protocols.size() && isAlive; i += burst) {
+                int to = (int) Math.min(protocols.size(), (long) i + burst);
+                scheduler.acquire(to - i);
+                connection.sendAll(new ArrayList<>(protocols.subList(i, to)));
             }
+            log.fine("Send statistics: " + messagesSent.get() + " messages in " + datagramsSent.get() +
+                    " datagrams, " + addressLookups.get() + " address lookups, " + unknownDropped.get() +
+                    " datagrams from unknown peers dropped, " + echoSuppressed.get() + " echoes suppressed");
         }
     }
 
+    /**
+     * Get the protocol extensions this peer supports, advertised in handshakes.
+     * @return the list of features
+     */
+    private ArrayList<String> getFeatures() {
+        ArrayList<String> features = new ArrayList<>();
+        features.add(FEATURE_BATCH);
+        features.add(FEATURE_COOKIE);
+        features.add(FEATURE_FRAGMENT);
+        features.add(SyncMarks.FEATURE_JOURNAL);
+        features.add(SyncMarks.FEATURE_DIGEST);
+        features.add(SyncMarks.FEATURE_CHUNKS);
+        features.add(SyncMarks.FEATURE_MOVE);
+        features.add(SyncMarks.FEATURE_BUNDLE);
+        features.add(SyncMarks.FEATURE_SUBTREE);
+        return features;
+    }
+
     /**
      * Broadcast a particular protocol to every connected peers.
      * @param protocol protocol need to be sent
      */
     public void broadcast(Protocol protocol){
-        synchronized (connectedMap){
-            for(Connection con: connectedMap.values()){
-                if(con.isConnected){
-                    con.send(protocol, false);
+        broadcast(protocol, null);
+    }
+
+    /**
+     * Send protocol to all connected peers, except the peer a change came from, as it already has it.
+     * @param protocol protocol to send
+     * @param origin the peer the change came from, null if it was made locally
+     */
+    public void broadcast(Protocol protocol, String origin){
+        for(Connection con: connectedMap.values()){
+            if(con.isConnected){
+                if (con.peer.toString().equals(origin)) {
+                    echoSuppressed.incrementAndGet();
+                    continue;
+                }
+                con.send(protocol, false);
+            }
+        }
+    }
+
+    /**
+     * Send several protocols to all connected peers, except the peer the changes came from. The creates of small
+     * files are bundled for the peers that create bundles.
+     * @param protocols protocols to send, in order
+     * @param origin the peer the changes came from, null if they were made locally
+     */
+    public void broadcast(ArrayList<Protocol> protocols, String origin){
+        ArrayList<Protocol> bundled = null;
+        for(Connection con: connectedMap.values()){
+            if(con.isConnected){
+                if (con.peer.toString().equals(origin)) {
+                    echoSuppressed.addAndGet(protocols.size());
+                    continue;
+                }
+                if (con.bundles && bundled == null) {
+                    bundled = FileBundles.bundle(fileSystemManager, protocols);
+                }
+                con.sendAll(con.bundles ? bundled : protocols);
+            }
+        }
+    }
+
+    /**
+     * Send a move event to all connected peers, except the peer the change came from. Peers that do not handle
+     * move requests are sent the creates and deletes that make the same change.
+     * @param event the move event
+     */
+    public void broadcastMove(FileSystemManager.FileSystemEvent event){
+        Protocol move = EventHandler.handleEvent(event);
+        ArrayList<Protocol> expanded = null;
+        for(Connection con: connectedMap.values()){
+            if(con.isConnected){
+                if (con.peer.toString().equals(event.origin)) {
+                    echoSuppressed.incrementAndGet();
+                    continue;
+                }
+                if (con.moves) {
+                    con.send(move, false);
+                    continue;
+                }
+                if (expanded == null) {
+                    expanded = EventHandler.expandMove(fileSystemManager, event);
+                }
+                for (Protocol p : expanded) {
+                    con.send(p, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a subtree delete event to all connected peers, except the peer the change came from. Peers that do not
+     * delete whole directories are sent a delete for every file and directory in it.
+     * @param event the subtree delete event
+     */
+    public void broadcastSubtreeDelete(FileSystemManager.FileSystemEvent event){
+        Protocol delete = EventHandler.handleEvent(event);
+        ArrayList<Protocol> expanded = null;
+        for(Connection con: connectedMap.values()){
+            if(con.isConnected){
+                if (con.peer.toString().equals(event.origin)) {
+                    echoSuppressed.incrementAndGet();
+                    continue;
+                }
+                if (con.subtrees) {
+                    con.send(delete, false);
+                    continue;
+                }
+                if (expanded == null) {
+                    expanded = EventHandler.expandSubtreeDelete(event);
+                }
+                for (Protocol p : expanded) {
+                    con.send(p, false);
                 }
             }
         }
@@ -552,12 +1135,16 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      * @param p the peer need to handshake with
      */
     public void initHandshake(ConnectedPeer p) {
-        synchronized (connectedMap){
-            if (!connectedMap.containsKey(p)) {
-                Connection con = new Connection(p, false, false);
-                connectedMap.put(p, con);
-                con.send(new HandshakeRequest(new ConnectedPeer(hostAddress, hostport)), false);
-            }
+        if (p == null || connectedMap.containsKey(p)) {
+            return;
+        }
+        Connection con = new Connection(p, false, false);
+        if (connectedMap.putIfAbsent(p, con) == null) {
+            con.send(con.handshakeRequest(null), false);
+        }
+        // another thread has added the peer meanwhile
+        else {
+            con.endTasks();
         }
     }
 
@@ -567,19 +1154,23 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      * @param out the write buffer of client.
      */
     public void initHandshake(ConnectedPeer p, BufferedWriter out, String screteKey){
-        synchronized (connectedMap){
-            if (!connectedMap.containsKey(p)) {
-                Connection con = new Connection(p, false, false, out, screteKey);
-                connectedMap.put(p, con);
-                con.send(new HandshakeRequest(new ConnectedPeer(hostAddress, hostport)), false);
-            }
-            else if(!connectedMap.get(p).isConnected){
-                connectedMap.get(p).addClintOut(out, screteKey);
-            }
-            else {
-                connectedMap.get(p).addClintOut(out, screteKey);
-                connectedMap.get(p).writeToClint(new ConnectPeerResponse(p.host, p.port, false, "Peer already connected"));
+        Connection existing = connectedMap.get(p);
+        if (existing == null) {
+            Connection con = new Connection(p, false, false, out, screteKey);
+            existing = connectedMap.putIfAbsent(p, con);
+            if (existing == null) {
+                con.send(con.handshakeRequest(null), false);
+                return;
             }
+            // another thread has added the peer meanwhile
+            con.endTasks();
+        }
+        if(!existing.isConnected){
+            existing.addClintOut(out, screteKey);
+        }
+        else {
+            existing.addClintOut(out, screteKey);
+            existing.writeToClint(new ConnectPeerResponse(p.host, p.port, false, "Peer already connected"));
         }
     }
 
@@ -589,14 +1180,13 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      * @return True for successfully disconnection. False for unsuccessfully disconnection.
      */
     public boolean disconnectPeer(ConnectedPeer p){
-        synchronized (connectedMap){
-            if(connectedMap.containsKey(p) && connectedMap.get(p).isConnected){
-                connectedMap.get(p).endConnection();
-                return true;
-            }
-            else {
-                return false;
-            }
+        Connection con = connectedMap.get(p);
+        if(con != null && con.isConnected){
+            con.endConnection();
+            return true;
+        }
+        else {
+            return false;
         }
     }
 
@@ -605,15 +1195,13 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      * @return the number of incoming peers
      */
     public int getIncomingConnectionsNum() {
-        synchronized (connectedMap){
-            int count = 0;
-            for (Connection con : connectedMap.values()) {
-                if (con.isConnected && con.isIncoming) {
-                    count++;
-                }
+        int count = 0;
+        for (Connection con : connectedMap.values()) {
+            if (con.isConnected && con.isIncoming) {
+                count++;
             }
-            return count;
         }
+        return count;
     }
 
     /**
@@ -621,40 +1209,13 @@ public class UDPCommunicationModule extends Thread implements CommunicationModul
      * @return the list of connected peers
      */
     public ArrayList<ConnectedPeer> getConnectedPeers() {
-        synchronized (connectedMap){
-            ArrayList<ConnectedPeer> peers = new ArrayList<>();
-            for (ConnectedPeer peer : connectedMap.keySet()) {
-                if (connectedMap.get(peer).isConnected) {
-                    peers.add(peer);
-                }
+        ArrayList<ConnectedPeer> peers = new ArrayList<>();
+        for (Connection con : connectedMap.values()) {
+            if (con.isConnected) {
+                peers.add(con.peer);
             }
-            return peers;
         }
+        return peers;
     }
 
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
@@ -0,0 +1,82 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Class for Batch protocol, carrying several small protocol messages in one datagram.
+ */
+public class Batch implements Protocol {
+
+    // the encoded protocol messages
+    public ArrayList<String> messages;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public Batch(ArrayList<String> messages) {
+        this.messages = new ArrayList<>(messages);
+    }
+
+    @Override
+    public String toString() {
+        // the messages are already encoded JSON objects, so join them without encoding again
+        StringBuilder sb = new StringBuilder("{\"command\":\"BATCH\",\"messages\":[");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(messages.get(i));
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    public static Batch convert(Document doc) {
+        try {
+            if (doc.get("messages") instanceof ArrayList) {
+                ArrayList<String> messages = new ArrayList<>();
+                for (Object o : (ArrayList<Object>) doc.get("messages")) {
+                    messages.add(((Document) o).toJson());
+                }
+                return new Batch(messages);
+            }
+            else {
+                return null;
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        return false;
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -11,6 +11,7 @@ import java.util.Date;
  */
 public class ConnectionRefused implements Protocol {
     public ArrayList<ConnectedPeer> peers;
+    public String message = "connection limit reached";
     private int retryNum = 0;
     private long createTime = (new Date()).getTime();
 
@@ -18,11 +19,16 @@ public class ConnectionRefused implements Protocol {
         this.peers = new ArrayList<>(peers);
     }
 
+    public ConnectionRefused(ArrayList<ConnectedPeer> peers, String message){
+        this(peers);
+        this.message = message;
+    }
+
     @Override
     public String toString() {
         Document doc = new Document();
         doc.append("command","CONNECTION_REFUSED");
-        doc.append("message", "connection limit reached");
+        doc.append("message", message);
         ArrayList<Document> peerDocs = new ArrayList<>();
         for (ConnectedPeer peer:peers){
             peerDocs.add(peer.toDoc());
@@ -38,7 +44,7 @@ public class ConnectionRefused implements Protocol {
                 for(Document peer: (ArrayList<Document>) doc.get("peers")){
                     peers.add(new ConnectedPeer(peer.getString("host"), (int) peer.getLong("port")));
                 }
-                return new ConnectionRefused(peers);
+                return new ConnectionRefused(peers, doc.getString("message"));
             }
             else {
                 return null;
@@ -0,0 +1,75 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for DirectoryDigestRequest protocol, asking a peer to compare the digest of one of its directories with
+ * the sender's. The empty path name refers to the share directory.
+ */
+public class DirectoryDigestRequest implements Protocol {
+
+    public String pathName;
+    public String digest;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public DirectoryDigestRequest(String pathName, String digest) {
+        this.pathName = pathName;
+        this.digest = digest;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "DIRECTORY_DIGEST_REQUEST");
+        doc.append("pathName", pathName);
+        doc.append("digest", digest);
+
+        return doc.toJson();
+    }
+
+    public static DirectoryDigestRequest convert(Document doc) {
+        if (doc.containsKey("pathName") && doc.get("pathName") instanceof String &&
+                doc.containsKey("digest") && doc.get("digest") instanceof String) {
+            return new DirectoryDigestRequest(doc.getString("pathName"), doc.getString("digest"));
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof DirectoryDigestResponse && ((DirectoryDigestResponse) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
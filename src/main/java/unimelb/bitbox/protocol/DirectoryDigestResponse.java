@@ -0,0 +1,118 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Class for DirectoryDigestResponse protocol. If the digests differ, the response lists the entries of the
+ * responder's directory with their digests, so that the requester can tell which of its entries to send or
+ * descend into.
+ */
+public class DirectoryDigestResponse implements Protocol {
+
+    public String pathName;
+    public String digest;
+    // each entry has a name, a digest and whether it is a directory
+    public ArrayList<Document> entries;
+    public Boolean status;
+    private String message;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public DirectoryDigestResponse(String pathName, String digest, ArrayList<Document> entries, String message) {
+        this.pathName = pathName;
+        this.digest = digest;
+        this.entries = entries;
+        this.message = message;
+        this.status = false;
+    }
+
+    public DirectoryDigestResponse(String pathName, String digest) {
+        this.pathName = pathName;
+        this.digest = digest;
+        this.entries = new ArrayList<>();
+        this.message = "directory digest matches";
+        this.status = true;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "DIRECTORY_DIGEST_RESPONSE");
+        doc.append("pathName", pathName);
+        doc.append("digest", digest);
+        if (!status) {
+            doc.append("entries", entries);
+        }
+        doc.append("message", message);
+        doc.append("status", status);
+
+        return doc.toJson();
+    }
+
+    public static DirectoryDigestResponse convert(Document doc) {
+        try {
+            if (doc.containsKey("pathName") && doc.get("pathName") instanceof String &&
+                    doc.containsKey("digest") && doc.get("digest") instanceof String &&
+                    doc.containsKey("message") && doc.get("message") instanceof String &&
+                    doc.containsKey("status") && doc.get("status") instanceof Boolean) {
+                if (doc.getBoolean("status")) {
+                    return new DirectoryDigestResponse(doc.getString("pathName"), doc.getString("digest"));
+                }
+                if (doc.get("entries") instanceof ArrayList) {
+                    ArrayList<Document> entries = new ArrayList<>();
+                    for (Object o : (ArrayList<Object>) doc.get("entries")) {
+                        Document entry = (Document) o;
+                        if (!(entry.get("name") instanceof String) || !(entry.get("digest") instanceof String) ||
+                                !(entry.get("directory") instanceof Boolean)) {
+                            return null;
+                        }
+                        entries.add(entry);
+                    }
+                    return new DirectoryDigestResponse(doc.getString("pathName"), doc.getString("digest"), entries,
+                            doc.getString("message"));
+                }
+            }
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof DirectoryDigestRequest && ((DirectoryDigestRequest) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -0,0 +1,73 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for DirectoryMoveRequest protocol, asking to rename a directory with all of its contents.
+ */
+public class DirectoryMoveRequest implements Protocol {
+
+    public String pathName;
+    public String oldPathName;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public DirectoryMoveRequest(String pathName, String oldPathName) {
+        this.pathName = pathName;
+        this.oldPathName = oldPathName;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "DIRECTORY_MOVE_REQUEST");
+        doc.append("pathName", pathName);
+        doc.append("oldPathName", oldPathName);
+
+        return doc.toJson();
+    }
+
+    public static DirectoryMoveRequest convert(Document doc) {
+        if (doc.get("pathName") instanceof String && doc.get("oldPathName") instanceof String) {
+            return new DirectoryMoveRequest(doc.getString("pathName"), doc.getString("oldPathName"));
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof DirectoryMoveResponse && ((DirectoryMoveResponse) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -0,0 +1,93 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for DirectoryMoveResponse protocol
+ */
+public class DirectoryMoveResponse implements Protocol {
+
+    public String pathName;
+    public String oldPathName;
+    private boolean status;
+    private String message;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public DirectoryMoveResponse(String pathName, String oldPathName) {
+        this.pathName = pathName;
+        this.oldPathName = oldPathName;
+        this.status = true;
+        this.message = "directory moved";
+    }
+
+    public DirectoryMoveResponse(String pathName, String oldPathName, String message) {
+        this.pathName = pathName;
+        this.oldPathName = oldPathName;
+        this.status = false;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "DIRECTORY_MOVE_RESPONSE");
+        doc.append("pathName", pathName);
+        doc.append("oldPathName", oldPathName);
+        doc.append("message", message);
+        doc.append("status", status);
+
+        return doc.toJson();
+    }
+
+    public static DirectoryMoveResponse convert(Document doc) {
+        if (doc.get("pathName") instanceof String && doc.get("oldPathName") instanceof String &&
+                doc.get("message") instanceof String && doc.get("status") instanceof Boolean) {
+            if (doc.getBoolean("status")) {
+                return new DirectoryMoveResponse(doc.getString("pathName"), doc.getString("oldPathName"));
+            }
+            else {
+                return new DirectoryMoveResponse(doc.getString("pathName"), doc.getString("oldPathName"),
+                        doc.getString("message"));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof DirectoryMoveRequest && ((DirectoryMoveRequest) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -0,0 +1,101 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Class for FileBundle protocol, carrying several small new files with their whole contents, so that they are
+ * created without a file create request and file bytes request for each.
+ */
+public class FileBundle implements Protocol {
+
+    // each file has the path name, the file descriptor and the base64 encoded content of the file
+    public ArrayList<Document> files;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public FileBundle(ArrayList<Document> files) {
+        this.files = files;
+    }
+
+    /**
+     * Get the path names of the files in the bundle, in order.
+     * @return the path names
+     */
+    public ArrayList<String> getPathNames() {
+        ArrayList<String> pathNames = new ArrayList<>();
+        for (Document file : files) {
+            pathNames.add(file.getString("pathName"));
+        }
+        return pathNames;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "FILE_BUNDLE");
+        doc.append("files", files);
+
+        return doc.toJson();
+    }
+
+    public static FileBundle convert(Document doc) {
+        try {
+            if (doc.get("files") instanceof ArrayList) {
+                ArrayList<Document> files = new ArrayList<>();
+                for (Object o : (ArrayList<Object>) doc.get("files")) {
+                    Document file = (Document) o;
+                    Document fileDescriptor = (Document) file.get("fileDescriptor");
+                    if (!(file.get("pathName") instanceof String) || !(file.get("content") instanceof String) ||
+                            fileDescriptor == null || !(fileDescriptor.get("md5") instanceof String) ||
+                            !(fileDescriptor.get("lastModified") instanceof Long) ||
+                            !(fileDescriptor.get("fileSize") instanceof Long)) {
+                        return null;
+                    }
+                    files.add(file);
+                }
+                return new FileBundle(files);
+            }
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof FileBundleResponse && ((FileBundleResponse) p).pathNames.equals(getPathNames())) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
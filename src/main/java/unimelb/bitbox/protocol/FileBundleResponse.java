@@ -0,0 +1,89 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Class for FileBundleResponse protocol, telling how many files of a bundle were created. The files that were not
+ * are loaded as if each had been asked for by a file create request.
+ */
+public class FileBundleResponse implements Protocol {
+
+    // the path names of the files in the bundle, in order
+    public ArrayList<String> pathNames;
+    private String message;
+    private Boolean status;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public FileBundleResponse(ArrayList<String> pathNames, String message, Boolean status) {
+        this.pathNames = pathNames;
+        this.message = message;
+        this.status = status;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "FILE_BUNDLE_RESPONSE");
+        doc.append("pathNames", pathNames);
+        doc.append("message", message);
+        doc.append("status", status);
+
+        return doc.toJson();
+    }
+
+    public static FileBundleResponse convert(Document doc) {
+        try {
+            String message = doc.getString("message");
+            Boolean status = doc.getBoolean("status");
+            if (!(doc.get("pathNames") instanceof ArrayList) || message == null || status == null) {
+                return null;
+            }
+            ArrayList<String> pathNames = new ArrayList<>();
+            for (Object o : (ArrayList<Object>) doc.get("pathNames")) {
+                pathNames.add((String) o);
+            }
+            return new FileBundleResponse(pathNames, message, status);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof FileBundle && ((FileBundle) p).getPathNames().equals(this.pathNames)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
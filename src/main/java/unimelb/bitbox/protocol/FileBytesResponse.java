@@ -16,6 +16,8 @@ public class FileBytesResponse implements Protocol {
     public String content;
     private String message;
     public boolean status;
+    // crc32 of the decoded content, null if the sender did not give one
+    public Long checksum;
     private int retryNum = 0;
     private long createTime = (new Date()).getTime();
 
@@ -55,6 +57,9 @@ public class FileBytesResponse implements Protocol {
         doc.append("content", content);
         doc.append("message", message);
         doc.append("status", status);
+        if (checksum != null) {
+            doc.append("checksum", checksum);
+        }
 
         return doc.toJson();
 
@@ -71,7 +76,11 @@ public class FileBytesResponse implements Protocol {
             String errormsg = doc.getString("message");
             if (fileDescriptor != null && pathname != null && content != null && errormsg != null && status != null) {
                 if (status == true) {
-                    return new FileBytesResponse(fileDescriptor, pathname, position, length, content);
+                    FileBytesResponse response = new FileBytesResponse(fileDescriptor, pathname, position, length, content);
+                    if (doc.get("checksum") instanceof Long) {
+                        response.checksum = doc.getLong("checksum");
+                    }
+                    return response;
                 } else {
                     return new FileBytesResponse(fileDescriptor, pathname, position, length, content, errormsg);
                 }
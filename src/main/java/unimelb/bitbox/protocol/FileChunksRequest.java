@@ -0,0 +1,80 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for FileChunksRequest protocol, asking a peer for the content-defined chunks of a file, so that the chunks
+ * the requester already has locally need not be transferred.
+ */
+public class FileChunksRequest implements Protocol {
+
+    public Document fileDescriptor;
+    public String pathName;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public FileChunksRequest(Document fileDescriptor, String pathName) {
+        this.fileDescriptor = fileDescriptor;
+        this.pathName = pathName;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "FILE_CHUNKS_REQUEST");
+        doc.append("fileDescriptor", fileDescriptor);
+        doc.append("pathName", pathName);
+
+        return doc.toJson();
+    }
+
+    public static FileChunksRequest convert(Document doc) {
+        try {
+            Document fileDescriptor = (Document) doc.get("fileDescriptor");
+            String pathName = doc.getString("pathName");
+            if (fileDescriptor != null && fileDescriptor.get("md5") instanceof String && pathName != null) {
+                return new FileChunksRequest(fileDescriptor, pathName);
+            }
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof FileChunksResponse && ((FileChunksResponse) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -0,0 +1,116 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Class for FileChunksResponse protocol, listing the content-defined chunks of a file in order.
+ */
+public class FileChunksResponse implements Protocol {
+
+    public Document fileDescriptor;
+    public String pathName;
+    // each chunk has the md5 hash and the length of the chunk
+    public ArrayList<Document> chunks;
+    public Boolean status;
+    private String message;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public FileChunksResponse(Document fileDescriptor, String pathName, ArrayList<Document> chunks) {
+        this.fileDescriptor = fileDescriptor;
+        this.pathName = pathName;
+        this.chunks = chunks;
+        this.message = "chunks listed";
+        this.status = true;
+    }
+
+    public FileChunksResponse(Document fileDescriptor, String pathName, String message) {
+        this.fileDescriptor = fileDescriptor;
+        this.pathName = pathName;
+        this.chunks = new ArrayList<>();
+        this.message = message;
+        this.status = false;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "FILE_CHUNKS_RESPONSE");
+        doc.append("fileDescriptor", fileDescriptor);
+        doc.append("pathName", pathName);
+        if (status) {
+            doc.append("chunks", chunks);
+        }
+        doc.append("message", message);
+        doc.append("status", status);
+
+        return doc.toJson();
+    }
+
+    public static FileChunksResponse convert(Document doc) {
+        try {
+            Document fileDescriptor = (Document) doc.get("fileDescriptor");
+            String pathName = doc.getString("pathName");
+            String message = doc.getString("message");
+            Boolean status = doc.getBoolean("status");
+            if (fileDescriptor == null || pathName == null || message == null || status == null) {
+                return null;
+            }
+            if (!status) {
+                return new FileChunksResponse(fileDescriptor, pathName, message);
+            }
+            if (doc.get("chunks") instanceof ArrayList) {
+                ArrayList<Document> chunks = new ArrayList<>();
+                for (Object o : (ArrayList<Object>) doc.get("chunks")) {
+                    Document chunk = (Document) o;
+                    if (!(chunk.get("hash") instanceof String) || !(chunk.get("length") instanceof Long)) {
+                        return null;
+                    }
+                    chunks.add(chunk);
+                }
+                return new FileChunksResponse(fileDescriptor, pathName, chunks);
+            }
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof FileChunksRequest && ((FileChunksRequest) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -11,6 +11,8 @@ public class FileModifyRequest implements Protocol{
 
     public String pathName;
     public Document fileDescriptor;
+    // the file descriptor of the file the new content starts with, null unless bytes were only appended to it
+    public Document prefix;
     private int retryNum = 0;
     private long createTime = (new Date()).getTime();
 
@@ -20,11 +22,20 @@ public class FileModifyRequest implements Protocol{
 
     }
 
+    public FileModifyRequest(Document fileDescriptor, String pathName, Document prefix) {
+        this.fileDescriptor = fileDescriptor;
+        this.pathName = pathName;
+        this.prefix = prefix;
+    }
+
     public String toString() {
         Document doc = new Document();
         doc.append("command", "FILE_MODIFY_REQUEST");
         doc.append("fileDescriptor", fileDescriptor);
         doc.append("pathName", pathName);
+        if (prefix != null) {
+            doc.append("prefix", prefix);
+        }
 
         return doc.toJson();
 
@@ -42,7 +53,12 @@ public class FileModifyRequest implements Protocol{
                 fileDes.append("md5", md5);
                 fileDes.append("lastModified", lastModified);
                 fileDes.append("fileSize", fileSize);
-                return new FileModifyRequest(fileDes, pathName);
+                Document prefix = (Document) doc.get("prefix");
+                if (prefix != null && (!(prefix.get("md5") instanceof String) ||
+                        !(prefix.get("fileSize") instanceof Long))) {
+                    return null;
+                }
+                return new FileModifyRequest(fileDes, pathName, prefix);
             }
             else {
                 return null;
@@ -0,0 +1,85 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for FileMoveRequest protocol, asking to rename a file instead of deleting it and creating it again.
+ */
+public class FileMoveRequest implements Protocol {
+
+    public Document fileDescriptor;
+    public String pathName;
+    public String oldPathName;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public FileMoveRequest(Document fileDescriptor, String pathName, String oldPathName) {
+        this.fileDescriptor = fileDescriptor;
+        this.pathName = pathName;
+        this.oldPathName = oldPathName;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "FILE_MOVE_REQUEST");
+        doc.append("fileDescriptor", fileDescriptor);
+        doc.append("pathName", pathName);
+        doc.append("oldPathName", oldPathName);
+
+        return doc.toJson();
+    }
+
+    public static FileMoveRequest convert(Document doc) {
+        try {
+            Document fileDescriptor = (Document) doc.get("fileDescriptor");
+            String pathName = doc.getString("pathName");
+            String oldPathName = doc.getString("oldPathName");
+            if (fileDescriptor != null && pathName != null && oldPathName != null &&
+                    fileDescriptor.get("md5") instanceof String && fileDescriptor.get("fileSize") instanceof Long &&
+                    fileDescriptor.get("lastModified") instanceof Long) {
+                return new FileMoveRequest(fileDescriptor, pathName, oldPathName);
+            }
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof FileMoveResponse && ((FileMoveResponse) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -0,0 +1,105 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for FileMoveResponse protocol
+ */
+public class FileMoveResponse implements Protocol {
+
+    public Document fileDescriptor;
+    public String pathName;
+    public String oldPathName;
+    private String message;
+    private Boolean status;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public FileMoveResponse(Document fileDescriptor, String pathName, String oldPathName) {
+        this.fileDescriptor = fileDescriptor;
+        this.pathName = pathName;
+        this.oldPathName = oldPathName;
+        this.message = "file moved";
+        this.status = true;
+    }
+
+    public FileMoveResponse(Document fileDescriptor, String pathName, String oldPathName, String message) {
+        this.fileDescriptor = fileDescriptor;
+        this.pathName = pathName;
+        this.oldPathName = oldPathName;
+        this.message = message;
+        this.status = false;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "FILE_MOVE_RESPONSE");
+        doc.append("fileDescriptor", fileDescriptor);
+        doc.append("pathName", pathName);
+        doc.append("oldPathName", oldPathName);
+        doc.append("message", message);
+        doc.append("status", status);
+
+        return doc.toJson();
+    }
+
+    public static FileMoveResponse convert(Document doc) {
+        try {
+            Document fileDescriptor = (Document) doc.get("fileDescriptor");
+            String pathName = doc.getString("pathName");
+            String oldPathName = doc.getString("oldPathName");
+            String message = doc.getString("message");
+            Boolean status = doc.getBoolean("status");
+            if (fileDescriptor == null || pathName == null || oldPathName == null || message == null ||
+                    status == null) {
+                return null;
+            }
+            if (status) {
+                return new FileMoveResponse(fileDescriptor, pathName, oldPathName);
+            }
+            else {
+                return new FileMoveResponse(fileDescriptor, pathName, oldPathName, message);
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof FileMoveRequest && ((FileMoveRequest) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -0,0 +1,121 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for Fragment protocol, carrying one piece of a message that does not fit in a single datagram.
+ * Fragments with an index of at least total are parity fragments: parity fragment total + g * parityCount + r
+ * is the XOR of the data fragments i of group g (i / groupSize == g) with i % parityCount == r, and lengthXor
+ * is the XOR of their lengths.
+ */
+public class Fragment implements Protocol {
+
+    public long messageId;
+    public int index;
+    public int total;
+    public String data;
+    public int groupSize;
+    public int parityCount;
+    public long lengthXor;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public Fragment(long messageId, int index, int total, String data) {
+        this.messageId = messageId;
+        this.index = index;
+        this.total = total;
+        this.data = data;
+    }
+
+    public Fragment(long messageId, int index, int total, String data, int groupSize, int parityCount, long lengthXor) {
+        this.messageId = messageId;
+        this.index = index;
+        this.total = total;
+        this.data = data;
+        this.groupSize = groupSize;
+        this.parityCount = parityCount;
+        this.lengthXor = lengthXor;
+    }
+
+    /**
+     * Check whether this is a parity fragment.
+     * @return true for parity fragments
+     */
+    public boolean isParity() {
+        return index >= total;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "FRAGMENT");
+        doc.append("messageId", messageId);
+        doc.append("index", index);
+        doc.append("total", total);
+        doc.append("data", data);
+        if (isParity()) {
+            doc.append("groupSize", groupSize);
+            doc.append("parityCount", parityCount);
+            doc.append("lengthXor", lengthXor);
+        }
+        return doc.toJson();
+    }
+
+    public static Fragment convert(Document doc) {
+        if (doc.containsKey("messageId") && doc.get("messageId") instanceof Long &&
+                doc.containsKey("index") && doc.get("index") instanceof Long &&
+                doc.containsKey("total") && doc.get("total") instanceof Long &&
+                doc.containsKey("data") && doc.get("data") instanceof String) {
+            int index = (int) doc.getLong("index");
+            int total = (int) doc.getLong("total");
+            if (total > 0 && index >= 0 && index < total) {
+                return new Fragment(doc.getLong("messageId"), index, total, doc.getString("data"));
+            }
+            if (total > 0 && index >= total &&
+                    doc.get("groupSize") instanceof Long && doc.get("parityCount") instanceof Long &&
+                    doc.get("lengthXor") instanceof Long) {
+                int groupSize = (int) doc.getLong("groupSize");
+                int parityCount = (int) doc.getLong("parityCount");
+                long groups = (total + (long) groupSize - 1) / Math.max(groupSize, 1);
+                if (groupSize > 0 && parityCount > 0 && parityCount <= groupSize &&
+                        index - total < groups * parityCount) {
+                    return new Fragment(doc.getLong("messageId"), index, total, doc.getString("data"),
+                            groupSize, parityCount, doc.getLong("lengthXor"));
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        return false;
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
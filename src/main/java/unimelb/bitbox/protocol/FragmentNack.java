@@ -0,0 +1,79 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Class for FragmentNack protocol, asking the sender to resend the listed fragments of a message.
+ */
+public class FragmentNack implements Protocol {
+
+    public long messageId;
+    public ArrayList<Long> missing;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public FragmentNack(long messageId, ArrayList<Long> missing) {
+        this.messageId = messageId;
+        this.missing = new ArrayList<>(missing);
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "FRAGMENT_NACK");
+        doc.append("messageId", messageId);
+        doc.append("missing", missing);
+        return doc.toJson();
+    }
+
+    public static FragmentNack convert(Document doc) {
+        try {
+            if (doc.containsKey("messageId") && doc.get("messageId") instanceof Long &&
+                    doc.get("missing") instanceof ArrayList) {
+                ArrayList<Long> missing = new ArrayList<>();
+                for (Object o : (ArrayList<Object>) doc.get("missing")) {
+                    missing.add((Long) o);
+                }
+                return new FragmentNack(doc.getLong("messageId"), missing);
+            }
+            else {
+                return null;
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        return false;
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
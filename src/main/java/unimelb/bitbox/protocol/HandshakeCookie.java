@@ -0,0 +1,71 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for HandshakeCookie protocol, asking a peer to repeat its handshake request with the given cookie.
+ */
+public class HandshakeCookie implements Protocol {
+
+    public String cookie;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public HandshakeCookie(String cookie) {
+        this.cookie = cookie;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "HANDSHAKE_COOKIE");
+        doc.append("cookie", cookie);
+        return doc.toJson();
+    }
+
+    public static HandshakeCookie convert(Document doc) {
+        if (doc.containsKey("cookie") && doc.get("cookie") instanceof String) {
+            return new HandshakeCookie(doc.getString("cookie"));
+        }
+        else {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if(p instanceof HandshakeRequest){
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -3,6 +3,7 @@ package unimelb.bitbox.protocol;
 import unimelb.bitbox.ConnectedPeer;
 import unimelb.bitbox.util.Document;
 
+import java.util.ArrayList;
 import java.util.Date;
 
 /**
@@ -10,8 +11,24 @@ import java.util.Date;
  */
 public class HandshakeRequest implements Protocol {
     public ConnectedPeer peer;
+    // optional protocol extensions supported by the sender
+    public ArrayList<String> features;
+    // how far the sender has been synchronized with the receiver's change journal, null if unknown
+    public SyncMark syncMark;
+    // the cookie given by the receiver in a HandshakeCookie, null if none
+    public String cookie;
     public HandshakeRequest(ConnectedPeer peer){
         this.peer = peer;
+        this.features = new ArrayList<>();
+    }
+    public HandshakeRequest(ConnectedPeer peer, ArrayList<String> features){
+        this.peer = peer;
+        this.features = new ArrayList<>(features);
+    }
+    public HandshakeRequest(ConnectedPeer peer, ArrayList<String> features, String cookie){
+        this.peer = peer;
+        this.features = new ArrayList<>(features);
+        this.cookie = cookie;
     }
     private int retryNum = 0;
     private long createTime = (new Date()).getTime();
@@ -21,6 +38,15 @@ public class HandshakeRequest implements Protocol {
         Document doc = new Document();
         doc.append( "command", "HANDSHAKE_REQUEST");
         doc.append("hostPort", peer.toDoc());
+        if (!features.isEmpty()) {
+            doc.append("features", features);
+        }
+        if (syncMark != null) {
+            doc.append("syncMark", syncMark.toDoc());
+        }
+        if (cookie != null) {
+            doc.append("cookie", cookie);
+        }
         return doc.toJson();
     }
 
@@ -30,7 +56,18 @@ public class HandshakeRequest implements Protocol {
             String host = hostPort.getString("host");
             int port = (int)hostPort.getLong("port");
             if(hostPort != null && host != null){
-                return new HandshakeRequest(new ConnectedPeer(host, port));
+                ArrayList<String> features = new ArrayList<>();
+                if (doc.get("features") instanceof ArrayList) {
+                    for (Object f : (ArrayList<Object>) doc.get("features")) {
+                        features.add((String) f);
+                    }
+                }
+                String cookie = doc.get("cookie") instanceof String ? doc.getString("cookie") : null;
+                HandshakeRequest handshake = new HandshakeRequest(new ConnectedPeer(host, port), features, cookie);
+                if (doc.get("syncMark") instanceof Document) {
+                    handshake.syncMark = SyncMark.convert((Document) doc.get("syncMark"));
+                }
+                return handshake;
             }
             else{
                 return null;
@@ -53,7 +90,7 @@ public class HandshakeRequest implements Protocol {
 
     @Override
     public boolean pairTo(Protocol p) {
-        if(p instanceof HandshakeResponse || p instanceof ConnectionRefused){
+        if(p instanceof HandshakeResponse || p instanceof ConnectionRefused || p instanceof HandshakeCookie){
             return true;
         }
         else{
@@ -3,6 +3,7 @@ package unimelb.bitbox.protocol;
 import unimelb.bitbox.ConnectedPeer;
 import unimelb.bitbox.util.Document;
 
+import java.util.ArrayList;
 import java.util.Date;
 
 /**
@@ -10,10 +11,19 @@ import java.util.Date;
  */
 public class HandshakeResponse implements Protocol{
     public ConnectedPeer peer;
+    // optional protocol extensions supported by the sender
+    public ArrayList<String> features;
+    // how far the sender has been synchronized with the receiver's change journal, null if unknown
+    public SyncMark syncMark;
     private int retryNum = 0;
     private long createTime = (new Date()).getTime();
     public HandshakeResponse(ConnectedPeer peer){
         this.peer = peer;
+        this.features = new ArrayList<>();
+    }
+    public HandshakeResponse(ConnectedPeer peer, ArrayList<String> features){
+        this.peer = peer;
+        this.features = new ArrayList<>(features);
     }
 
     @Override
@@ -21,6 +31,12 @@ public class HandshakeResponse implements Protocol{
         Document doc = new Document();
         doc.append( "command", "HANDSHAKE_RESPONSE");
         doc.append("hostPort", peer.toDoc());
+        if (!features.isEmpty()) {
+            doc.append("features", features);
+        }
+        if (syncMark != null) {
+            doc.append("syncMark", syncMark.toDoc());
+        }
         return doc.toJson();
     }
 
@@ -30,7 +46,17 @@ public class HandshakeResponse implements Protocol{
             String host = hostPort.getString("host");
             int port = (int) hostPort.getLong("port");
             if(hostPort != null && host != null){
-                return new HandshakeResponse(new ConnectedPeer(host, port));
+                ArrayList<String> features = new ArrayList<>();
+                if (doc.get("features") instanceof ArrayList) {
+                    for (Object f : (ArrayList<Object>) doc.get("features")) {
+                        features.add((String) f);
+                    }
+                }
+                HandshakeResponse handshake = new HandshakeResponse(new ConnectedPeer(host, port), features);
+                if (doc.get("syncMark") instanceof Document) {
+                    handshake.syncMark = SyncMark.convert((Document) doc.get("syncMark"));
+                }
+                return handshake;
             }
             else{
                 return null;
@@ -29,6 +29,12 @@ public class ProtocolHelper {
             case "CONNECTION_REFUSED":
                 return ConnectionRefused.convert(doc);
 
+            case "FILE_MOVE_REQUEST":
+                return FileMoveRequest.convert(doc);
+
+            case "FILE_MOVE_RESPONSE":
+                return FileMoveResponse.convert(doc);
+
             case "FILE_MODIFY_REQUEST":
                 return FileModifyRequest.convert(doc);
 
@@ -41,6 +47,9 @@ public class ProtocolHelper {
             case "HANDSHAKE_RESPONSE":
                 return HandshakeResponse.convert(doc);
 
+            case "HANDSHAKE_COOKIE":
+                return HandshakeCookie.convert(doc);
+
             case "INVALID_PROTOCOL":
                 return InvalidProtocol.convert(doc);
 
@@ -56,12 +65,42 @@ public class ProtocolHelper {
             case "DIRECTORY_DELETE_RESPONSE":
                 return DirectoryDeleteResponse.convert(doc);
 
+            case "DIRECTORY_MOVE_REQUEST":
+                return DirectoryMoveRequest.convert(doc);
+
+            case "DIRECTORY_MOVE_RESPONSE":
+                return DirectoryMoveResponse.convert(doc);
+
+            case "SUBTREE_DELETE_REQUEST":
+                return SubtreeDeleteRequest.convert(doc);
+
+            case "SUBTREE_DELETE_RESPONSE":
+                return SubtreeDeleteResponse.convert(doc);
+
+            case "DIRECTORY_DIGEST_REQUEST":
+                return DirectoryDigestRequest.convert(doc);
+
+            case "DIRECTORY_DIGEST_RESPONSE":
+                return DirectoryDigestResponse.convert(doc);
+
+            case "FILE_BUNDLE":
+                return FileBundle.convert(doc);
+
+            case "FILE_BUNDLE_RESPONSE":
+                return FileBundleResponse.convert(doc);
+
             case "FILE_BYTES_REQUEST":
                 return FileBytesRequest.convert(doc);
 
             case "FILE_BYTES_RESPONSE":
                 return FileBytesResponse.convert(doc);
 
+            case "FILE_CHUNKS_REQUEST":
+                return FileChunksRequest.convert(doc);
+
+            case "FILE_CHUNKS_RESPONSE":
+                return FileChunksResponse.convert(doc);
+
             case "FILE_CREATE_REQUEST":
                 return FileCreateRequest.convert(doc);
 
@@ -98,6 +137,18 @@ public class ProtocolHelper {
             case "LIST_PEERS_RESPONSE":
                 return ListPeersResponse.convert(doc);
 
+            case "FRAGMENT":
+                return Fragment.convert(doc);
+
+            case "FRAGMENT_NACK":
+                return FragmentNack.convert(doc);
+
+            case "BATCH":
+                return Batch.convert(doc);
+
+            case "SYNC_MARK":
+                return SyncMark.convert(doc);
+
             default:
                 return null;
         }
@@ -0,0 +1,74 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for SubtreeDeleteRequest protocol, asking to delete a directory with all of its contents, if it still has the
+ * given digest.
+ */
+public class SubtreeDeleteRequest implements Protocol {
+
+    public String pathName;
+    public String digest;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public SubtreeDeleteRequest(String pathName, String digest) {
+        this.pathName = pathName;
+        this.digest = digest;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "SUBTREE_DELETE_REQUEST");
+        doc.append("pathName", pathName);
+        doc.append("digest", digest);
+
+        return doc.toJson();
+    }
+
+    public static SubtreeDeleteRequest convert(Document doc) {
+        if (doc.get("pathName") instanceof String && doc.get("digest") instanceof String) {
+            return new SubtreeDeleteRequest(doc.getString("pathName"), doc.getString("digest"));
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof SubtreeDeleteResponse && ((SubtreeDeleteResponse) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -0,0 +1,94 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for SubtreeDeleteResponse protocol. If the responder's copy of the directory has a different digest, it
+ * keeps the directory and the requester sends the deletes of the subtree one by one instead.
+ */
+public class SubtreeDeleteResponse implements Protocol {
+
+    public String pathName;
+    public String digest;
+    public boolean status;
+    public String message;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public SubtreeDeleteResponse(String pathName, String digest) {
+        this.pathName = pathName;
+        this.digest = digest;
+        this.status = true;
+        this.message = "directory deleted";
+    }
+
+    public SubtreeDeleteResponse(String pathName, String digest, String message) {
+        this.pathName = pathName;
+        this.digest = digest;
+        this.status = false;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = new Document();
+        doc.append("command", "SUBTREE_DELETE_RESPONSE");
+        doc.append("pathName", pathName);
+        doc.append("digest", digest);
+        doc.append("message", message);
+        doc.append("status", status);
+
+        return doc.toJson();
+    }
+
+    public static SubtreeDeleteResponse convert(Document doc) {
+        if (doc.get("pathName") instanceof String && doc.get("digest") instanceof String &&
+                doc.get("message") instanceof String && doc.get("status") instanceof Boolean) {
+            if (doc.getBoolean("status")) {
+                return new SubtreeDeleteResponse(doc.getString("pathName"), doc.getString("digest"));
+            }
+            else {
+                return new SubtreeDeleteResponse(doc.getString("pathName"), doc.getString("digest"),
+                        doc.getString("message"));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        if (p instanceof SubtreeDeleteRequest && ((SubtreeDeleteRequest) p).pathName.equals(this.pathName)) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -0,0 +1,80 @@
+package unimelb.bitbox.protocol;
+
+import unimelb.bitbox.util.Document;
+
+import java.util.Date;
+
+/**
+ * Class for SyncMark protocol, telling a peer how far it has been synchronized with the sender's change journal.
+ * The same fields are carried in handshakes to tell the other side where to resume.
+ */
+public class SyncMark implements Protocol {
+
+    public String journalId;
+    public long sequence;
+    private int retryNum = 0;
+    private long createTime = (new Date()).getTime();
+
+    public SyncMark(String journalId, long sequence) {
+        this.journalId = journalId;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Convert to a Document without command, for use inside other protocols.
+     * @return corresponding Document object
+     */
+    public Document toDoc() {
+        Document doc = new Document();
+        doc.append("journalId", journalId);
+        doc.append("sequence", sequence);
+        return doc;
+    }
+
+    @Override
+    public String toString() {
+        Document doc = toDoc();
+        doc.append("command", "SYNC_MARK");
+        return doc.toJson();
+    }
+
+    public static SyncMark convert(Document doc) {
+        if (doc.containsKey("journalId") && doc.get("journalId") instanceof String &&
+                doc.containsKey("sequence") && doc.get("sequence") instanceof Long) {
+            return new SyncMark(doc.getString("journalId"), doc.getLong("sequence"));
+        }
+        else {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public long getCreatedTime() {
+        return this.createTime;
+    }
+
+    @Override
+    public boolean pairTo(Protocol p) {
+        return false;
+    }
+
+    @Override
+    public int getRetry() {
+        return this.retryNum;
+    }
+
+    @Override
+    public void addRetry() {
+        this.retryNum += 1;
+    }
+
+    @Override
+    public void updateCreatedTime() {
+        this.createTime = (new Date()).getTime();
+    }
+}
@@ -51,6 +51,10 @@ public class Configuration {
         return properties.getProperty(key);
     }
 
+    public static String getConfigurationValue(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
     // private constructor to prevent initialization
     private Configuration() {
     }
@@ -1,28 +1,46 @@
 package unimelb.bitbox.util;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.nio.file.CopyOption;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 /**
  * A file system manager, that recursively monitors a given share directory,
@@ -34,20 +52,37 @@ import java.util.logging.Logger;
  * <br/>
  * The file system manager also provides an API
  * for safely making modifications to the files and directories in the share directory:
+ * <li>{@link #appendFileLoader(String, String, long, long, String, long, String)}</li>
+ * <li>{@link #attachTransfer(String)}</li>
  * <li>{@link #cancelFileLoader(String)}</li>
  * <li>{@link #createFileLoader(String, String)}</li>
+ * <li>{@link #createFiles(ArrayList, String)}</li>
  * <li>{@link #checkShortcut(String)}</li>
  * <li>{@link #checkWriteComplete(String)}</li>
+ * <li>{@link #copyChunks(String, ArrayList)}</li>
  * <li>{@link #deleteDirectory(String)}</li>
+ * <li>{@link #deleteSubtree(String, String, String)}</li>
  * <li>{@link #deleteFile(String, long)}</li>
  * <li>{@link #dirNameExists(String)}</li>
  * <li>{@link #fileNameExists(String)}</li>
  * <li>{@link #fileNameExists(String, String)}</li>
  * <li>{@link #generateSyncEvents()}</li>
+ * <li>{@link #generateSyncEvents(String)}</li>
+ * <li>{@link #generateSyncEvents(String, long)}</li>
+ * <li>{@link #getChunks(String)}</li>
+ * <li>{@link #getDirectoryDigest(String)}</li>
+ * <li>{@link #getDirectoryEntries(String)}</li>
+ * <li>{@link #getJournalId()}</li>
+ * <li>{@link #getJournalSequence()}</li>
+ * <li>{@link #getLoadedBlocks(String)}</li>
  * <li>{@link #isSafePathName(String)}</li>
  * <li>{@link #readFile(String, long, long)}</li>
+ * <li>{@link #readSnapshot(String, long, long)}</li>
  * <li>{@link #makeDirectory(String)}</li>
  * <li>{@link #modifyFileLoader(String, String, long)}</li>
+ * <li>{@link #moveDirectory(String, String, String)}</li>
+ * <li>{@link #moveFile(String, String, String, String)}</li>
+ * <li>{@link #suspendFileLoader(String)}</li>
  * <li>{@link #writeFile(String, ByteBuffer, long)}</li>
  * @author Aaron Harwood
  * @author Andrew Linxi Wang (contributions to Windows compatibility)
@@ -62,6 +97,20 @@ public class FileSystemManager extends Thread {
 	 */
 	public final String loadingSuffix = "(bitbox)";
 
+	/**
+	 * The suffix on file names for the manifests of loading files, that record
+	 * which bytes have been written so that an interrupted load can be resumed.
+	 * Ends with {@link #loadingSuffix}, so manifests never generate file system events either.
+	 */
+	public final String manifestSuffix = "(manifest)"+loadingSuffix;
+
+	// content-defined chunking: the smallest and largest chunks, and the bits of the rolling
+	// hash that end a chunk when they are all zero (13 bits, so chunks are about 8KB on average)
+	private static final int CHUNK_MIN = 2048;
+	private static final int CHUNK_MAX = 65536;
+	private static final long CHUNK_MASK = 0xfff8000000000000L;
+	private static final long[] GEAR = gearTable();
+
 	/**
 	 * Possible file system events.
 	 * <li>{@link #FILE_CREATE}</li>
@@ -69,6 +118,10 @@ public class FileSystemManager extends Thread {
 	 * <li>{@link #FILE_MODIFY}</li>
 	 * <li>{@link #DIRECTORY_CREATE}</li>
 	 * <li>{@link #DIRECTORY_DELETE}</li>
+	 * <li>{@link #FILE_MOVE}</li>
+	 * <li>{@link #DIRECTORY_MOVE}</li>
+	 * <li>{@link #FILE_APPEND}</li>
+	 * <li>{@link #SUBTREE_DELETE}</li>
 	 */
 	public enum EVENT {
 		/**
@@ -94,7 +147,34 @@ public class FileSystemManager extends Thread {
 		 * be empty for this event to be emitted, and its parent
 		 * directory must exist.
 		 */
-		DIRECTORY_DELETE
+		DIRECTORY_DELETE,
+		/**
+		 * An existing file has been renamed or moved, without changing
+		 * its content. Emitted instead of a delete and a create when the
+		 * new file is the old one, by its file key, size and timestamp, or
+		 * has the same content and size as a file that has disappeared.
+		 */
+		FILE_MOVE,
+		/**
+		 * An existing directory has been renamed or moved, with all of
+		 * its contents. Emitted instead of deletes and creates for the
+		 * whole directory when the new directory is the old one, by its
+		 * file key.
+		 */
+		DIRECTORY_MOVE,
+		/**
+		 * An existing file has grown, keeping all of its former content
+		 * at its start. Emitted instead of a modify when the first bytes
+		 * of the new file hash to the MD5 hash of the old one.
+		 */
+		FILE_APPEND,
+		/**
+		 * An existing directory has been deleted with all of its
+		 * contents. Emitted instead of a delete for every file and
+		 * directory in it when a directory that was not empty has
+		 * gone and its parent directory still exists.
+		 */
+		SUBTREE_DELETE
 	}
 
 	/**
@@ -129,6 +209,37 @@ public class FileSystemManager extends Thread {
 		 * Additional information for the file/directory.
 		 */
 		public FileDescriptor fileDescriptor;
+		/**
+		 * The sequence number of this event in the change journal, or 0 if the
+		 * event is not in the journal.
+		 */
+		public long sequence;
+		/**
+		 * The peer whose request made this change, as given to the file system API,
+		 * or null if the change was not made through the API.
+		 */
+		public String origin;
+		/**
+		 * For move events, the former pathname of the file/directory, <i>relative</i>
+		 * to the share directory; null for other events.
+		 */
+		public String oldPathName;
+		/**
+		 * For append events, the file as it was before, which the file now
+		 * starts with; null for other events.
+		 */
+		public FileDescriptor prefix;
+		/**
+		 * For subtree delete events, the digest the directory had before it was
+		 * deleted, see {@link FileSystemManager#getDirectoryDigest(String)}; null
+		 * for other events.
+		 */
+		public String digest;
+		/**
+		 * For subtree delete events, the file and directory delete events the
+		 * deletion is made of, deepest first; null for other events.
+		 */
+		public ArrayList<FileSystemEvent> removed;
 
 		/**
 		 * Constructor for file events.
@@ -161,6 +272,7 @@ public class FileSystemManager extends Thread {
 		}
 
 		public String toString() {
+			if(oldPathName!=null) return event.name()+" "+oldPathName+" to "+pathName;
 			return event.name()+" " +pathName;
 		}
 	}
@@ -206,6 +318,133 @@ public class FileSystemManager extends Thread {
 		}
 	}
 
+	/**
+	 * An entry of a directory, as used for comparing directory digests.
+	 */
+	public class DirectoryEntry {
+		/**
+		 * The name (not including any path) of the file/directory.
+		 */
+		public String name;
+		/**
+		 * The MD5 hash of the file's content, or the digest of the directory.
+		 */
+		public String digest;
+		/**
+		 * True if the entry is a directory.
+		 */
+		public boolean directory;
+		/**
+		 * The file descriptor of the file, null for directories.
+		 */
+		public FileDescriptor fileDescriptor;
+
+		/**
+		 * Constructor
+		 * @param name the name of the file/directory
+		 * @param digest the MD5 hash of the file or the digest of the directory
+		 * @param fileDescriptor the file descriptor of the file, null for directories
+		 */
+		public DirectoryEntry(String name, String digest, FileDescriptor fileDescriptor) {
+			this.name=name;
+			this.digest=digest;
+			this.directory=fileDescriptor==null;
+			this.fileDescriptor=fileDescriptor;
+		}
+
+		/**
+		 * Provide the {@link #Document} for this object.
+		 */
+		public Document toDoc() {
+			Document doc = new Document();
+			doc.append("name", name);
+			doc.append("digest", digest);
+			doc.append("directory", directory);
+			return doc;
+		}
+	}
+
+	/**
+	 * A content-defined chunk of a file. Chunk boundaries depend only on the bytes around them,
+	 * so files that share most of their content share most of their chunks, even if bytes were
+	 * inserted or removed.
+	 */
+	public class Chunk {
+		/**
+		 * The MD5 hash of the chunk.
+		 */
+		public String hash;
+		/**
+		 * The position of the chunk in its file.
+		 */
+		public long position;
+		/**
+		 * The length of the chunk.
+		 */
+		public long length;
+		// the MD5 hash of the file the chunk was found in
+		private String fileMd5;
+
+		/**
+		 * Constructor
+		 * @param hash the MD5 hash of the chunk
+		 * @param position the position of the chunk in its file
+		 * @param length the length of the chunk
+		 */
+		public Chunk(String hash, long position, long length) {
+			this.hash=hash;
+			this.position=position;
+			this.length=length;
+		}
+
+		/**
+		 * Provide the {@link #Document} for this object. The position is not included,
+		 * as it follows from the lengths of the chunks before it.
+		 */
+		public Document toDoc() {
+			Document doc = new Document();
+			doc.append("hash", hash);
+			doc.append("length", length);
+			return doc;
+		}
+	}
+
+	/**
+	 * A small file with all of its content, to be created by {@link #createFiles(ArrayList, String)}.
+	 */
+	public class FileContent {
+		/**
+		 * The name of the file, relative to the share directory.
+		 */
+		public String pathName;
+		/**
+		 * The MD5 hash the content must have.
+		 */
+		public String md5;
+		/**
+		 * The last modified timestamp to use for the file.
+		 */
+		public long lastModified;
+		/**
+		 * The content of the file.
+		 */
+		public byte[] content;
+
+		/**
+		 * Constructor
+		 * @param pathName the name of the file, relative to the share directory
+		 * @param md5 the MD5 hash the content must have
+		 * @param lastModified the last modified timestamp to use for the file
+		 * @param content the content of the file
+		 */
+		public FileContent(String pathName, String md5, long lastModified, byte[] content) {
+			this.pathName=pathName;
+			this.md5=md5;
+			this.lastModified=lastModified;
+			this.content=content;
+		}
+	}
+
 	/**
 	 * Construct a new file system manager. If the supplied share directory is not a directory
 	 * that exists then the constructor will return without starting the monitor thread.
@@ -219,8 +458,30 @@ public class FileSystemManager extends Thread {
 		this.root=root;
 		watchedFiles=new HashMap<String,FileDescriptor>();
 		loadingFiles=new HashMap<String,FileLoader>();
+		transfers=new HashMap<String,FileLoader>();
 		watchedDirectories=new HashSet<String>();
 		hashMap=new HashMap<String,HashSet<String>>();
+		directoryEntries=new HashMap<String,TreeMap<String,String>>();
+		directoryDigests=new HashMap<String,String>();
+		chunkLists=new HashMap<String,ArrayList<Chunk>>();
+		chunkIndex=new HashMap<String,Chunk>();
+		unchunked=new ArrayDeque<String>();
+		chunkMinFileSize=Long.parseLong(Configuration.getConfigurationValue("chunkMinFileSize","65536"));
+		ownWrites=new HashMap<String,String[]>();
+		fileKeys=new HashMap<String,Object>();
+		hashStates=new HashMap<String,MessageDigest>();
+		appendedFiles=new HashMap<String,FileDescriptor>();
+		appendMinFileSize=Long.parseLong(Configuration.getConfigurationValue("appendMinFileSize","65536"));
+		snapshots=new LinkedHashMap<String,Snapshot>(16,0.75f,true);
+		copying=new HashSet<String>();
+		snapshotMinFileSize=Long.parseLong(Configuration.getConfigurationValue("snapshotMinFileSize","1048576"));
+		snapshotSpoolSize=Long.parseLong(Configuration.getConfigurationValue("snapshotSpoolSize","268435456"));
+		snapshotIdle=1000*Long.parseLong(Configuration.getConfigurationValue("snapshotIdle","60"));
+		shortcutCopy=Configuration.getConfigurationValue("shortcutCopy","copy");
+		directoryEntries.put(root,new TreeMap<String,String>());
+		journal=new ArrayDeque<FileSystemEvent>();
+		journalId=UUID.randomUUID().toString();
+		journalSize=Integer.parseInt(Configuration.getConfigurationValue("journalSize","100000"));
 		File file = new File(root);
 		if(!file.exists() || !file.isDirectory()) {
 			log.severe("incorrect root given: "+root);
@@ -228,6 +489,14 @@ public class FileSystemManager extends Thread {
 		}
 		cannonicalRoot = file.getCanonicalPath();
 		log.info("monitoring "+cannonicalRoot);
+		// outside the share, where no file of the share can be mistaken for it, one for each share directory
+		spool=new File(System.getProperty("java.io.tmpdir"),"bitbox-snapshots-"+
+				toHex(MessageDigest.getInstance("MD5").digest(cannonicalRoot.getBytes(StandardCharsets.UTF_8))));
+		// copies left by an earlier run
+		File[] stale = spool.listFiles();
+		if(stale!=null) {
+			for(File f : stale) f.delete();
+		}
 		scanDirectoryTree(root);
 		log.info("starting file system monitor thread");
 		start();
@@ -288,10 +557,25 @@ public class FileSystemManager extends Thread {
 	 * @return boolean True if directory was successfully made.
 	 */
 	public boolean makeDirectory(String pathName) {
+		return makeDirectory(pathName,null);
+	}
+
+	/**
+	 * Same as {@link #makeDirectory(String)}, remembering who asked for it. The
+	 * resulting {@link FileSystemEvent} has the given origin.
+	 * @param pathName The name of the directory to make, relative
+	 * to the share directory.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return boolean True if directory was successfully made.
+	 */
+	public boolean makeDirectory(String pathName, String origin) {
 		pathName=separatorsToSystem(pathName);
 		synchronized(this) {
-			File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
-			return file.mkdir();
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			File file = new File(fullPathName);
+			boolean success = file.mkdir();
+			if(success) recordWrite(fullPathName,null,origin);
+			return success;
 		}
 	}
 
@@ -303,15 +587,93 @@ public class FileSystemManager extends Thread {
 	 * @return boolean True if the directory was successfully deleted.
 	 */
 	public boolean deleteDirectory(String pathName) {
+		return deleteDirectory(pathName,null);
+	}
+
+	/**
+	 * Same as {@link #deleteDirectory(String)}, remembering who asked for it. The
+	 * resulting {@link FileSystemEvent} has the given origin.
+	 * @param pathName The name of the directory to delete, relative
+	 * to the share directory.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return boolean True if the directory was successfully deleted.
+	 */
+	public boolean deleteDirectory(String pathName, String origin) {
 		pathName=separatorsToSystem(pathName);
 		synchronized(this) {
-			File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			File file = new File(fullPathName);
 			if(file.isDirectory()) {
-				return file.delete();
+				boolean success = file.delete();
+				if(success) recordWrite(fullPathName,null,origin);
+				return success;
 			} else return false;
 		}
 	}
 
+	/**
+	 * Attempt to delete a directory with all of its contents. The directory must have the
+	 * given digest, see {@link #getSubtreeDigest(String)}, and no file may be loading in it.
+	 * Files that have changed or appeared since the last scan are kept, with the directories
+	 * they are in. The resulting {@link FileSystemEvent} is a {@link EVENT#SUBTREE_DELETE}
+	 * with the given origin, or if anything was kept, a delete event for each file and
+	 * directory that was deleted, with the given origin.
+	 * @param pathName The name of the directory to delete, relative to the share directory.
+	 * @param digest The digest the directory must have.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return boolean True if the directory was deleted, false if it was not or if anything
+	 * in it was kept, in which case the rest is deleted one by one.
+	 */
+	public boolean deleteSubtree(String pathName, String digest, String origin) {
+		pathName=separatorsToSystem(pathName);
+		synchronized(this) {
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			String prefix=fullPathName+FileSystems.getDefault().getSeparator();
+			if(!watchedDirectories.contains(fullPathName) || !subtreeDigest(fullPathName).equals(digest)) return false;
+			for(String loading : loadingFiles.keySet()) {
+				if(loading.startsWith(prefix)) return false;
+			}
+			log.info("deleting "+fullPathName+" with all of its contents");
+			// what was deleted, told one by one if anything is kept
+			ArrayList<String> deleted = new ArrayList<String>();
+			try {
+				// loader files left by interrupted loads go too
+				Files.walkFileTree(Paths.get(fullPathName),new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						FileDescriptor known=watchedFiles.get(file.toString());
+						if(file.toString().endsWith(loadingSuffix)) {
+							Files.delete(file);
+						} else if(known!=null && known.lastModified==attrs.lastModifiedTime().toMillis()) {
+							Files.delete(file);
+							deleted.add(file.toString());
+						}
+						return FileVisitResult.CONTINUE;
+					}
+					@Override
+					public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+						if(e!=null) throw e;
+						// keeps what is left in it
+						if(dir.toFile().delete()) deleted.add(dir.toString());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				log.warning(e.getMessage());
+			}
+			if(new File(fullPathName).exists()) {
+				log.info("kept what has changed in "+fullPathName);
+				for(String name : deleted) {
+					// a directory deleted with its contents is one event, with the contents in it
+					if(new File(name).getParentFile().exists()) recordWrite(name,null,origin);
+				}
+				return false;
+			}
+			recordWrite(fullPathName,null,origin);
+			return true;
+		}
+	}
+
 	// files
 
 	/**
@@ -359,6 +721,20 @@ public class FileSystemManager extends Thread {
 	 * @return boolean True if the file was deleted.
 	 */
 	public boolean deleteFile(String pathName, long lastModified, String md5) {
+		return deleteFile(pathName,lastModified,md5,null);
+	}
+
+	/**
+	 * Same as {@link #deleteFile(String, long, String)}, remembering who asked for it. The
+	 * resulting {@link FileSystemEvent} has the given origin.
+	 * @param pathName The name of the file to delete, relative to
+	 * the share directory.
+	 * @param lastModified The timestamp to check against.
+	 * @param md5 The MD5 hash of content to match against.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return boolean True if the file was deleted.
+	 */
+	public boolean deleteFile(String pathName, long lastModified, String md5, String origin) {
 		pathName=separatorsToSystem(pathName);
 		synchronized(this) {
 			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
@@ -367,12 +743,117 @@ public class FileSystemManager extends Thread {
 				log.info("deleting "+fullPathName);
 				File file = new File(fullPathName);
 				if(file.isFile()) {
-					return file.delete();
+					boolean success = file.delete();
+					if(success) recordWrite(fullPathName,null,origin);
+					return success;
 				} else return false;
 			} else return false;
 		}
 	}
 
+	/**
+	 * Create many small files at once, whose whole contents are given, without a file loader for
+	 * each. Every file is checked against its MD5 hash, written under a loader file name and renamed
+	 * into place, all under one lock. A file is skipped if its name already exists or is loading, if
+	 * its parent directory does not exist, or if its content does not match its hash; such files
+	 * can still be loaded with {@link #createFileLoader(String, String, long, long, String)}. The
+	 * resulting {@link FileSystemEvent}s have the given origin.
+	 * @param files The files to create.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return The path names of the files created, as given.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public ArrayList<String> createFiles(ArrayList<FileContent> files, String origin) throws NoSuchAlgorithmException {
+		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+		ArrayList<String> created = new ArrayList<String>();
+		synchronized(this) {
+			for(FileContent fileContent : files) {
+				String fullPathName=root+FileSystems.getDefault().getSeparator()+separatorsToSystem(fileContent.pathName);
+				File file = new File(fullPathName);
+				File loader = new File(fullPathName+loadingSuffix);
+				if(watchedFiles.containsKey(fullPathName) || loadingFiles.containsKey(fullPathName) ||
+						file.exists() || loader.exists() || !file.getParentFile().isDirectory()) continue;
+				if(!toHex(md5Digest.digest(fileContent.content)).equals(fileContent.md5)) continue;
+				try {
+					try(FileOutputStream out = new FileOutputStream(loader)) {
+						out.write(fileContent.content);
+					}
+					loader.setLastModified(fileContent.lastModified);
+					if(!rename(loader.getPath(),fullPathName)) {
+						loader.delete();
+						continue;
+					}
+				} catch (IOException e) {
+					log.warning(e.getMessage());
+					loader.delete();
+					continue;
+				}
+				recordWrite(fullPathName,fileContent.md5,origin);
+				created.add(fileContent.pathName);
+			}
+		}
+		log.info("created "+created.size()+" of "+files.size()+" files");
+		return created;
+	}
+
+	/**
+	 * Attempt to move a file, as a single rename, without copying its content. The file
+	 * must exist with the given content, and nothing may exist or be loading at the new
+	 * name. The resulting {@link FileSystemEvent} is a {@link EVENT#FILE_MOVE} with the
+	 * given origin.
+	 * @param oldPathName The name of the file to move, relative to the share directory.
+	 * @param pathName The new name of the file, relative to the share directory. Its parent
+	 * directory must exist.
+	 * @param md5 The MD5 hash of content to match against.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return boolean True if the file was moved.
+	 */
+	public boolean moveFile(String oldPathName, String pathName, String md5, String origin) {
+		oldPathName=separatorsToSystem(oldPathName);
+		pathName=separatorsToSystem(pathName);
+		synchronized(this) {
+			String fullOldPathName=root+FileSystems.getDefault().getSeparator()+oldPathName;
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			if(!watchedFiles.containsKey(fullOldPathName) || !watchedFiles.get(fullOldPathName).md5.equals(md5) ||
+					loadingFiles.containsKey(fullOldPathName) || loadingFiles.containsKey(fullPathName) ||
+					new File(fullPathName).exists()) return false;
+			log.info("moving "+fullOldPathName+" to "+fullPathName);
+			if(!rename(fullOldPathName,fullPathName)) return false;
+			recordWrite(fullPathName,md5,origin);
+			return true;
+		}
+	}
+
+	/**
+	 * Attempt to move a directory with all of its contents, as a single rename. The
+	 * directory must exist, nothing may exist at the new name, and no file may be loading
+	 * in the directory. The resulting {@link FileSystemEvent} is a {@link EVENT#DIRECTORY_MOVE}
+	 * with the given origin.
+	 * @param oldPathName The name of the directory to move, relative to the share directory.
+	 * @param pathName The new name of the directory, relative to the share directory. Its
+	 * parent directory must exist.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return boolean True if the directory was moved.
+	 */
+	public boolean moveDirectory(String oldPathName, String pathName, String origin) {
+		oldPathName=separatorsToSystem(oldPathName);
+		pathName=separatorsToSystem(pathName);
+		synchronized(this) {
+			String fullOldPathName=root+FileSystems.getDefault().getSeparator()+oldPathName;
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			String prefix=fullOldPathName+FileSystems.getDefault().getSeparator();
+			if(!watchedDirectories.contains(fullOldPathName) || fullPathName.startsWith(prefix) ||
+					new File(fullPathName).exists()) return false;
+			for(String loading : loadingFiles.keySet()) {
+				if(loading.startsWith(prefix)) return false;
+			}
+			log.info("moving "+fullOldPathName+" to "+fullPathName);
+			if(!rename(fullOldPathName,fullPathName)) return false;
+			recordWrite(fullPathName,null,origin);
+			return true;
+		}
+	}
+
 	/**
 	 * Create a file loader for given file name. The file name must not
 	 * already exist, otherwise use {@link #modifyFileLoader(String, String, long)}.
@@ -380,6 +861,8 @@ public class FileSystemManager extends Thread {
 	 * on its filename, called a <i>loader file</i>. Such files never generate file system events. The file loader
 	 * can be subsequently accessed via the given name using {@link #writeFile(String, ByteBuffer, long)},
 	 * {@link #checkWriteComplete(String)} and {@link #checkShortcut(String)}.
+	 * If a loader file for the same content was left by an earlier file loader that was suspended
+	 * or interrupted, it is adopted, keeping the bytes its manifest records; see {@link #getLoadedBlocks(String)}.
 	 * @param pathName The name of the file to create, when loading is complete, relative to
 	 * the share directory.
 	 * @param md5 The MD5 hash of the content that the file contents <i>must</i> match
@@ -391,12 +874,32 @@ public class FileSystemManager extends Thread {
 	 * @throws NoSuchAlgorithmException if the MD5 hash algorithm is not available.
 	 */
 	public boolean createFileLoader(String pathName, String md5, long length, long lastModified) throws NoSuchAlgorithmException, IOException {
+		return createFileLoader(pathName,md5,length,lastModified,null);
+	}
+
+	/**
+	 * Same as {@link #createFileLoader(String, String, long, long)}, remembering who asked for it.
+	 * When the loader completes, the resulting {@link FileSystemEvent} has the given origin.
+	 * @param pathName The name of the file to create, when loading is complete, relative to
+	 * the share directory.
+	 * @param md5 The MD5 hash of the content that the file contents <i>must</i> match
+	 * for file loading to be considered complete.
+	 * @param length The expected length of the file when completed.
+	 * @param lastModified The last modified timestamp to use for the file.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return boolean True if the file loader was successfully created.
+	 * @throws IOException if any exceptions arose as the result of accessing the file system.
+	 * @throws NoSuchAlgorithmException if the MD5 hash algorithm is not available.
+	 */
+	public boolean createFileLoader(String pathName, String md5, long length, long lastModified, String origin) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
 		synchronized(this) {
 			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
 			if(watchedFiles.containsKey(fullPathName)) return false;
 			if(loadingFiles.containsKey(fullPathName)) return false;
-			loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,length,lastModified));
+			FileLoader fileLoader = new FileLoader(fullPathName,md5,length,lastModified);
+			fileLoader.origin = origin;
+			loadingFiles.put(fullPathName, fileLoader);
 		}
 		return true;
 	}
@@ -464,6 +967,55 @@ public class FileSystemManager extends Thread {
 		}
 	}
 
+	/**
+	 * Read bytes for a peer loading the content with the given MD5 hash. Same as
+	 * {@link #readFile(String, long, long)}, except that the content keeps being available
+	 * after the file is changed, for as long as peers keep reading it, so that a long transfer
+	 * does not fail half way. A file of at least snapshotMinFileSize bytes is copied to a spool
+	 * directory outside the share when it is first read, in the background while it keeps being
+	 * read from the file, and read from the copy once the copy is done; the copies are kept
+	 * within snapshotSpoolSize bytes, least recently read first out, and removed once they have
+	 * not been read for snapshotIdle seconds. The content of a file that has since had bytes
+	 * appended to it is read from the start of the file, without a copy. Files larger than
+	 * snapshotSpoolSize are never copied, and are read from the file.
+	 * @param md5 The MD5 hash of the content of the file to read from.
+	 * @param position The position in the file to start reading from.
+	 * @param length The number of bytes to read.
+	 * @return A {@link java.nio.ByteBuffer} if the bytes are successfully read, otherwise null if
+	 * there was no such content.
+	 * @throws IOException If there were any problems accessing the file system.
+	 * @throws NoSuchAlgorithmException  If the MD5 hash algorithm is unavailable.
+	 */
+	public ByteBuffer readSnapshot(String md5, long position, long length) throws IOException, NoSuchAlgorithmException {
+		Snapshot snapshot;
+		synchronized(this) {
+			expireSnapshots();
+			snapshot = snapshots.get(md5);
+			if(snapshot!=null) {
+				snapshot.lastRead=System.currentTimeMillis();
+			} else if(spool!=null && hashMap.containsKey(md5) && !copying.contains(md5)) {
+				String source = hashMap.get(md5).iterator().next();
+				long fileSize = watchedFiles.get(source).fileSize;
+				if(fileSize>=snapshotMinFileSize && fileSize<=snapshotSpoolSize) {
+					copying.add(md5);
+					// copied without holding up the file system manager or the reader
+					snapshotExecutor.execute(() -> takeSnapshot(md5,source));
+				}
+			}
+		}
+		if(snapshot==null) return readFile(md5,position,length);
+		if(position+length>snapshot.length) return null;
+		try(RandomAccessFile raf = new RandomAccessFile(snapshot.file, "r")) {
+			ByteBuffer bb = ByteBuffer.allocate((int) length);
+			int read = raf.getChannel().read(bb,position);
+			if(read<length) throw new IOException("did not read everything expected");
+			return bb;
+		} catch (FileNotFoundException e) {
+			// removed in the meantime
+			return readFile(md5,position,length);
+		}
+	}
+
 	/**
 	 * Requests the file loader for the associated file name to check if all of the content for the file
 	 * has been written. It does this by checking the MD5 hash of the written bytes to see if
@@ -488,11 +1040,14 @@ public class FileSystemManager extends Thread {
 			} catch (IOException | NoSuchAlgorithmException e) {
 				FileLoader fl = loadingFiles.get(fullPathName);
 				loadingFiles.remove(fullPathName);
+				endTransfer(fl,false);
 				fl.cancel();
 				throw e;
 			}
 			if(check) {
-				loadingFiles.remove(fullPathName);
+				FileLoader fl = loadingFiles.remove(fullPathName);
+				recordWrite(fullPathName,fl.md5,fl.origin);
+				endTransfer(fl,true);
 			}
 			return check;
 		}
@@ -504,7 +1059,11 @@ public class FileSystemManager extends Thread {
 	 * and if so, uses that file's content (i.e. does a copy) to create the intended file. The
 	 * file loader is then complete and is no longer accessible.
 	 * This is much faster than transferring the bytes of the file
-	 * from a remote source.
+	 * from a remote source. How the content is copied is set by shortcutCopy: copy, the default,
+	 * copies between file channels; link makes the file a hard link to the existing one, so that
+	 * the two are one file from then on and share their timestamp; reflink clones it where the
+	 * file system supports copy-on-write. Both fall back to copy where they are not supported.
+	 * Linked files are only changed by replacing them, which breaks the link, never in place.
 	 * @param pathName The name of the file for the associated file loader.
 	 * @return True if a shortcut was used, false otherwise.
 	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available, the loader is no longer available in this case.
@@ -521,16 +1080,47 @@ public class FileSystemManager extends Thread {
 			} catch (IOException | NoSuchAlgorithmException e) {
 				FileLoader fl = loadingFiles.get(fullPathName);
 				loadingFiles.remove(fullPathName);
+				endTransfer(fl,false);
 				fl.cancel();
 				throw e;
 			}
 			if(check) {
-				loadingFiles.remove(fullPathName);
+				FileLoader fl = loadingFiles.remove(fullPathName);
+				recordWrite(fullPathName,fl.md5,fl.origin);
+				endTransfer(fl,true);
 			}
 			return check;
 		}
 	}
 
+	/**
+	 * Should be called after {@link #checkShortcut(String)} fails, before requesting any bytes.
+	 * If another file loader is already loading the same content, the file loader for the
+	 * given name waits for it instead, and is completed with a copy of its file when it
+	 * completes, or cancelled if it is cancelled. Otherwise the file loader becomes the one
+	 * loading the content, for later file loaders to wait for.
+	 * @param pathName The name of the file for the associated file loader.
+	 * @return True if the file loader is waiting for another one, in which case no bytes
+	 * need to be written to it; false if its bytes have to be loaded.
+	 */
+	public boolean attachTransfer(String pathName) {
+		pathName=separatorsToSystem(pathName);
+		synchronized(this) {
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			FileLoader fl = loadingFiles.get(fullPathName);
+			if(fl==null) return false;
+			FileLoader transfer = transfers.get(fl.md5);
+			if(transfer!=null && transfer!=fl && loadingFiles.get(transfer.pathName)==transfer) {
+				log.info(fullPathName+" waiting for "+transfer.pathName);
+				transfer.attached.add(fl);
+				fl.transfer=transfer;
+				return true;
+			}
+			transfers.put(fl.md5,fl);
+			return false;
+		}
+	}
+
 	/**
 	 * Called to create a file loader in the case when a file name already exists. The existing
 	 * file must have a last modified timestamp that is less than or equal to the supplied one. See
@@ -544,19 +1134,94 @@ public class FileSystemManager extends Thread {
 	 * @throws IOException If there were any errors accessing the file system.
 	 */
 	public boolean modifyFileLoader(String pathName, String md5, long lastModified) throws IOException {
+		return modifyFileLoader(pathName,md5,lastModified,null);
+	}
+
+	/**
+	 * Same as {@link #modifyFileLoader(String, String, long)}, remembering who asked for it.
+	 * When the loader completes, the resulting {@link FileSystemEvent} has the given origin.
+	 * @param pathName The name of the file to modify.
+	 * @param md5 The MD5 hash of the content that the loaded file <i>must</i> have in order
+	 * for the loading to complete.
+	 * @param lastModified The existing file's timestamp must be less than this time stamp
+	 * for the loader to be successfully created.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return True if the loader was successfully created.
+	 * @throws IOException If there were any errors accessing the file system.
+	 */
+	public boolean modifyFileLoader(String pathName, String md5, long lastModified, String origin) throws IOException {
+		return modifyFileLoader(pathName,md5,-1,lastModified,origin);
+	}
+
+	/**
+	 * Same as {@link #modifyFileLoader(String, String, long, String)}, for new content of the given
+	 * length, which may be longer than the existing file.
+	 * @param pathName The name of the file to modify.
+	 * @param md5 The MD5 hash of the content that the loaded file <i>must</i> have in order
+	 * for the loading to complete.
+	 * @param length The length of the new content, or -1 to use the length of the existing file.
+	 * @param lastModified The existing file's timestamp must be less than this time stamp
+	 * for the loader to be successfully created.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return True if the loader was successfully created.
+	 * @throws IOException If there were any errors accessing the file system.
+	 */
+	public boolean modifyFileLoader(String pathName, String md5, long length, long lastModified, String origin) throws IOException {
 		pathName=separatorsToSystem(pathName);
 		synchronized(this) {
 			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
 			if(loadingFiles.containsKey(fullPathName)) return false;
 			if(watchedFiles.containsKey(fullPathName) && watchedFiles.get(fullPathName).lastModified<=lastModified) {
-				loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,
-						watchedFiles.get(fullPathName).fileSize,
-						lastModified));
+				FileLoader fileLoader = new FileLoader(fullPathName,md5,
+						length<0 ? watchedFiles.get(fullPathName).fileSize : length,
+						lastModified);
+				fileLoader.origin = origin;
+				loadingFiles.put(fullPathName, fileLoader);
 			} else return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Called instead of {@link #modifyFileLoader(String, String, long, String)} when the new
+	 * content is known to be the existing file with more bytes appended. The file loader only
+	 * needs the bytes after the existing ones, see {@link #getLoadedBlocks(String)}, and checks
+	 * the MD5 hash of the new content from the state kept after hashing the existing file, so
+	 * the existing bytes are neither loaded, copied nor read again. When complete, the new bytes
+	 * are appended to the existing file.
+	 * @param pathName The name of the file to append to.
+	 * @param md5 The MD5 hash of the content that the file <i>must</i> have after appending.
+	 * @param length The length of the file after appending.
+	 * @param lastModified The last modified timestamp to use for the file.
+	 * @param prefixMd5 The MD5 hash the existing file must have.
+	 * @param prefixLength The length the existing file must have.
+	 * @param origin The peer that asked for the change, may be null.
+	 * @return True if the loader was successfully created, false if the existing file is not
+	 * the one given or its hash state is not known, in which case a modify loader can be used.
+	 * @throws IOException If there were any errors accessing the file system.
+	 */
+	public boolean appendFileLoader(String pathName, String md5, long length, long lastModified,
+			String prefixMd5, long prefixLength, String origin) throws IOException {
+		pathName=separatorsToSystem(pathName);
+		synchronized(this) {
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			if(loadingFiles.containsKey(fullPathName)) return false;
+			FileDescriptor existing = watchedFiles.get(fullPathName);
+			File file = new File(fullPathName);
+			if(existing==null || existing.lastModified>lastModified || !existing.md5.equals(prefixMd5) ||
+					existing.fileSize!=prefixLength || prefixLength<=0 || length<=prefixLength ||
+					file.length()!=prefixLength || file.lastModified()!=existing.lastModified ||
+					!hashStates.containsKey(fullPathName)) return false;
+			FileLoader fileLoader = new FileLoader(fullPathName,md5,length,lastModified);
+			fileLoader.origin = origin;
+			fileLoader.prefix = prefixLength;
+			fileLoader.prefixState = copyState(hashStates.get(fullPathName));
+			loadingFiles.put(fullPathName, fileLoader);
+			log.info("appending to "+fullPathName+" from "+prefixLength+" bytes");
+		}
+		return true;
+	}
+
 	/**
 	 * Cancel a file loader. Removes the file loader if present, including the loader file.
 	 * No other actions are taken.
@@ -570,6 +1235,7 @@ public class FileSystemManager extends Thread {
 			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
 			if(loadingFiles.containsKey(fullPathName)) {
 				boolean success = false;
+				endTransfer(loadingFiles.get(fullPathName),false);
 				try {
 					success = loadingFiles.get(fullPathName).cancel();
 					loadingFiles.remove(fullPathName);
@@ -585,11 +1251,113 @@ public class FileSystemManager extends Thread {
 		return false;
 	}
 
-	// synchronization
-
 	/**
-	 * Typically called at the beginning of a connection, in order to ensure that
-	 * the remote directory has all of the same contents as the local directory.
+	 * Suspend a file loader. The file loader is no longer available, but its loader file and
+	 * manifest are kept, so that a later file loader for the same content resumes from the bytes
+	 * already written, see {@link #createFileLoader(String, String, long, long)}.
+	 * @param pathName The name of the file loader, i.e. the associated file it was trying to load.
+	 * @return True if the file loader existed and was suspended.
+	 * @throws IOException if there was a problem accessing the file system, the loader is no longer available in this case.
+	 */
+	public boolean suspendFileLoader(String pathName) throws IOException {
+		pathName=separatorsToSystem(pathName);
+		synchronized(this) {
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			FileLoader fl = loadingFiles.remove(fullPathName);
+			if(fl==null) return false;
+			endTransfer(fl,false);
+			log.info("suspending "+fullPathName+" with "+fl.blocks.size()+" blocks written");
+			fl.close();
+			return true;
+		}
+	}
+
+	/**
+	 * Get the blocks a file loader already has, written since it was created or adopted from
+	 * an earlier file loader for the same content.
+	 * @param pathName The name of the file loader, i.e. the associated file it is loading.
+	 * @return The length of every block written, by position; empty if there is no such file loader.
+	 */
+	public TreeMap<Long,Long> getLoadedBlocks(String pathName) {
+		pathName=separatorsToSystem(pathName);
+		synchronized(this) {
+			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+			TreeMap<Long,Long> loaded = new TreeMap<Long,Long>();
+			FileLoader fl = loadingFiles.get(fullPathName);
+			if(fl!=null) {
+				for(Map.Entry<Long,long[]> block : fl.blocks.entrySet()) {
+					loaded.put(block.getKey(),block.getValue()[0]);
+				}
+				// the existing bytes a file is appended to
+				if(fl.prefix>0) loaded.merge(0L,fl.prefix,Math::max);
+			}
+			return loaded;
+		}
+	}
+
+	/**
+	 * Get the content-defined chunks of a file, to tell a peer loading it which of its chunks
+	 * the peer may already have.
+	 * @param md5 The MD5 hash of the content of the file.
+	 * @return The chunks in order, null if there is no file with that content.
+	 * @throws IOException If there were any problems accessing the file system.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public ArrayList<Chunk> getChunks(String md5) throws IOException, NoSuchAlgorithmException {
+		String name;
+		synchronized(this) {
+			if(chunkLists.containsKey(md5)) return chunkLists.get(md5);
+			if(!hashMap.containsKey(md5) || hashMap.get(md5).isEmpty()) return null;
+			name=hashMap.get(md5).iterator().next();
+		}
+		ArrayList<Chunk> chunks = chunkFile(name,md5);
+		if(chunks!=null) {
+			synchronized(this) {
+				if(hashMap.containsKey(md5)) indexChunks(md5,chunks);
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Requests the file loader for the associated file name to copy every chunk of the given
+	 * list that some local file also has, from that file. The chunks copied are recorded by the
+	 * loader like written bytes, see {@link #getLoadedBlocks(String)}, so that only the
+	 * rest of the file has to be loaded.
+	 * @param pathName The name of the file loader, i.e. the associated file it is loading.
+	 * @param chunks The chunks of the file being loaded, in order, as given by {@link #getChunks(String)}
+	 * on the peer that has the file.
+	 * @return The number of bytes copied.
+	 * @throws IOException If there were any problems accessing the file system.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public long copyChunks(String pathName, ArrayList<Chunk> chunks) throws IOException, NoSuchAlgorithmException {
+		long position=0;
+		long copied=0;
+		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+		for(Chunk chunk : chunks) {
+			Chunk local;
+			synchronized(this) {
+				local=chunkIndex.get(chunk.hash);
+			}
+			if(local!=null && local.length==chunk.length) {
+				ByteBuffer bb = readFile(local.fileMd5,local.position,local.length);
+				// the local file may have changed since it was chunked
+				if(bb!=null && toHex(md5Digest.digest(bb.array())).equals(chunk.hash)) {
+					if(!writeFile(pathName,ByteBuffer.wrap(bb.array()),position)) break;
+					copied+=chunk.length;
+				}
+			}
+			position+=chunk.length;
+		}
+		return copied;
+	}
+
+	// synchronization
+
+	/**
+	 * Typically called at the beginning of a connection, in order to ensure that
+	 * the remote directory has all of the same contents as the local directory.
 	 * @return A list of file system events that create the entire contents of the
 	 * share directory.
 	 */
@@ -615,12 +1383,166 @@ public class FileSystemManager extends Thread {
 		}
 	}
 
+	/**
+	 * Called when a remote directory is known to differ from a local one, in order to
+	 * ensure that the remote side has all of its contents.
+	 * @param pathName The name of the directory, relative to the share directory, including
+	 * the directory itself in the result. The empty string gives the share directory, in which
+	 * case this is the same as {@link #generateSyncEvents()}.
+	 * @return A list of file system events that create the entire contents of the directory,
+	 * empty if the directory does not exist.
+	 */
+	public ArrayList<FileSystemEvent> generateSyncEvents(String pathName) {
+		synchronized(this) {
+			ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+			String fullPathName=fullDirectoryName(pathName);
+			if(!directoryEntries.containsKey(fullPathName)) return pathevents;
+			ArrayList<String> files=new ArrayList<String>();
+			collectSubtree(fullPathName,pathevents,files);
+			Collections.sort(pathevents,(arg0,arg1) ->
+					{
+						return arg0.path.length()-arg1.path.length();
+					}
+			);
+			for(String pathname : files) {
+				File file = new File(pathname);
+				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, watchedFiles.get(pathname)));
+			}
+			return pathevents;
+		}
+	}
+
+	/**
+	 * The digest of a directory. It is the MD5 hash of the names of the directory's
+	 * entries, in order, each with the MD5 hash of the file's content or recursively
+	 * the digest of the sub directory. Two directories with the same digest have the
+	 * same contents, ignoring timestamps. Digests are kept up to date as the file system
+	 * changes, only recomputing directories on the path to a change.
+	 * @param pathName The name of the directory, relative to the share directory. The
+	 * empty string gives the share directory.
+	 * @return The digest, or null if the directory does not exist.
+	 */
+	public String getDirectoryDigest(String pathName) {
+		synchronized(this) {
+			String fullPathName=fullDirectoryName(pathName);
+			if(!directoryEntries.containsKey(fullPathName)) return null;
+			return directoryDigest(fullPathName);
+		}
+	}
+
+	/**
+	 * The digest of a directory as {@link #getDirectoryDigest(String)}, leaving out the
+	 * files and directories that have been deleted through this manager since the last
+	 * scan, so that it can be compared with the digest a peer had for the directory after
+	 * sending those deletes.
+	 * @param pathName The name of the directory, relative to the share directory.
+	 * @return The digest, or null if the directory does not exist.
+	 */
+	public String getSubtreeDigest(String pathName) {
+		synchronized(this) {
+			String fullPathName=fullDirectoryName(pathName);
+			if(!directoryEntries.containsKey(fullPathName)) return null;
+			return subtreeDigest(fullPathName);
+		}
+	}
+
+	/**
+	 * The entries of a directory with their digests, see {@link #getDirectoryDigest(String)}.
+	 * @param pathName The name of the directory, relative to the share directory. The
+	 * empty string gives the share directory.
+	 * @return The entries ordered by name, or null if the directory does not exist.
+	 */
+	public ArrayList<DirectoryEntry> getDirectoryEntries(String pathName) {
+		synchronized(this) {
+			String fullPathName=fullDirectoryName(pathName);
+			if(!directoryEntries.containsKey(fullPathName)) return null;
+			ArrayList<DirectoryEntry> entries=new ArrayList<DirectoryEntry>();
+			for(Map.Entry<String,String> entry : directoryEntries.get(fullPathName).entrySet()) {
+				String child=fullPathName+FileSystems.getDefault().getSeparator()+entry.getKey();
+				if(entry.getValue()==null) {
+					entries.add(new DirectoryEntry(entry.getKey(),directoryDigest(child),null));
+				} else {
+					entries.add(new DirectoryEntry(entry.getKey(),entry.getValue(),watchedFiles.get(child)));
+				}
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * Called periodically to bring a remote directory up to date. If the remote side
+	 * is known to have seen this manager's change journal up to a given sequence number,
+	 * only the journal entries after it are returned; otherwise this is the same as
+	 * {@link #generateSyncEvents()}.
+	 * @param journalId The journal identifier the sequence number refers to, may be null
+	 * if it is unknown.
+	 * @param since The sequence number of the last journal entry the remote side has seen.
+	 * @return A list of file system events, in the order they happened.
+	 */
+	public ArrayList<FileSystemEvent> generateSyncEvents(String journalId, long since) {
+		synchronized(this) {
+			if(journalId==null || !journalId.equals(this.journalId) || since<journalFloor ||
+					since>journalSequence) {
+				return generateSyncEvents();
+			}
+			ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+			for(FileSystemEvent pathevent : journal) {
+				if(pathevent.sequence>since) pathevents.add(pathevent);
+			}
+			return pathevents;
+		}
+	}
+
+	/**
+	 * The identifier of the change journal. It changes every time the manager is
+	 * created, so that sequence numbers from an earlier run are not mistaken for
+	 * ones in the current journal.
+	 * @return The journal identifier.
+	 */
+	public String getJournalId() {
+		return journalId;
+	}
+
+	/**
+	 * The sequence number of the most recent change journal entry.
+	 * @return The sequence number, 0 if nothing has changed since the initial scan.
+	 */
+	public long getJournalSequence() {
+		synchronized(this) {
+			return journalSequence;
+		}
+	}
+
+	/**
+	 * Find a subtree delete in the change journal, so that its deletes can be
+	 * sent one by one to a peer whose copy of the directory differs.
+	 * @param pathName The name of the deleted directory, relative to the share directory.
+	 * @param digest The digest the directory had before it was deleted.
+	 * @return The most recent {@link EVENT#SUBTREE_DELETE} event for the directory, or null
+	 * if it is no longer in the journal.
+	 */
+	public FileSystemEvent findSubtreeDelete(String pathName, String digest) {
+		synchronized(this) {
+			Iterator<FileSystemEvent> it=journal.descendingIterator();
+			while(it.hasNext()) {
+				FileSystemEvent pathevent=it.next();
+				if(pathevent.event==EVENT.SUBTREE_DELETE && pathevent.pathName.equals(pathName) &&
+						pathevent.digest.equals(digest)) return pathevent;
+			}
+			return null;
+		}
+	}
+
 	////////////////////
 	// Internals
 	////////////////////
 
 	private class FileLoader {
 		private String md5;
+		private String origin;
+		// the file loader this one waits for, and the ones waiting for this one
+		private FileLoader transfer;
+		private ArrayList<FileLoader> attached = new ArrayList<FileLoader>();
 		private long length;
 		private long lastModified;
 		private String pathName;
@@ -628,21 +1550,101 @@ public class FileSystemManager extends Thread {
 		private FileLock lock;
 		private File file;
 		private RandomAccessFile raf;
+		// the manifest: a line with the md5, then a line with the position, length and crc of each block written
+		private File manifest;
+		private FileOutputStream manifestOut;
+		private TreeMap<Long,long[]> blocks = new TreeMap<Long,long[]>();
+		// for appending, the length of the existing file and the hash state after it
+		private long prefix;
+		private MessageDigest prefixState;
 		public FileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
 			this.pathName=pathName;
 			this.md5=md5;
 			this.length=length;
 			this.lastModified=lastModified;
 			file = new File(pathName+loadingSuffix);
-			if(file.exists()) throw new IOException("file loader already in progress");
-			log.info("creating file "+file.getPath());
-			file.createNewFile();
+			manifest = new File(pathName+manifestSuffix);
+			boolean adopt = file.exists() && readManifest();
+			if(!adopt) {
+				if(file.exists()) {
+					log.info("removing stale file "+file.getPath());
+					file.delete();
+				}
+				log.info("creating file "+file.getPath());
+				file.createNewFile();
+			}
 			raf = new RandomAccessFile(file, "rw");
 			channel = raf.getChannel();
 			lock = channel.lock();
+			if(adopt) {
+				verifyBlocks();
+				log.info("resuming file "+file.getPath()+" with "+blocks.size()+" blocks written");
+			}
+			// rewrite the manifest with the blocks that are really there
+			manifestOut = new FileOutputStream(manifest);
+			StringBuilder sb = new StringBuilder(md5).append('\n');
+			for(Map.Entry<Long,long[]> block : blocks.entrySet()) {
+				sb.append(block.getKey()).append(' ').append(block.getValue()[0]).append(' ')
+						.append(block.getValue()[1]).append('\n');
+			}
+			manifestOut.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		// read the blocks from the manifest, if it is for the same content
+		private boolean readManifest() {
+			if(!manifest.exists()) return false;
+			try(BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+				if(!md5.equals(reader.readLine())) return false;
+				String line;
+				while((line=reader.readLine())!=null) {
+					String[] fields = line.split(" ");
+					if(fields.length!=3) break; // torn by a crash
+					blocks.put(Long.parseLong(fields[0]),
+							new long[] {Long.parseLong(fields[1]),Long.parseLong(fields[2])});
+				}
+				return true;
+			} catch (IOException | NumberFormatException e) {
+				log.warning("unreadable manifest "+manifest.getPath());
+				blocks.clear();
+				return false;
+			}
+		}
+
+		// drop the blocks whose bytes do not match their crc, e.g. not flushed before a crash
+		private void verifyBlocks() throws IOException {
+			ArrayList<Long> positions = new ArrayList<Long>(blocks.keySet());
+			for(long position : positions) {
+				long[] block = blocks.get(position);
+				ByteBuffer bb = ByteBuffer.allocate((int) block[0]);
+				channel.read(bb, position);
+				if(bb.hasRemaining() || crc(bb.array())!=block[1]) {
+					blocks.remove(position);
+				}
+			}
+		}
+
+		private long crc(byte[] bytes) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			return crc.getValue();
+		}
+
+		// close the loader file and its manifest, keeping them
+		private void close() throws IOException {
+			manifestOut.close();
+			lock.release();
+			channel.close();
+			raf.close();
+		}
+
+		// close and delete the manifest
+		private void dropManifest() throws IOException {
+			manifestOut.close();
+			manifest.delete();
 		}
 
 		public boolean cancel() throws IOException {
+			dropManifest();
 			lock.release();
 			channel.close();
 			raf.close();
@@ -665,12 +1667,8 @@ public class FileSystemManager extends Thread {
 						String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
 						if(currentMd5.equals(md5)) {
 							Path dest = Paths.get(pathName);
-							CopyOption[] options = new CopyOption[]{
-									StandardCopyOption.REPLACE_EXISTING
-							};
-							InputStream is = Channels.newInputStream(channel2);
-							Files.copy(is, dest, options);
-							dest.toFile().setLastModified(lastModified);
+							// a hard link shares the timestamp of the file it links to
+							if(!copyLocal(file,channel2,dest)) dest.toFile().setLastModified(lastModified);
 							success=true;
 							break;
 						}
@@ -685,6 +1683,7 @@ public class FileSystemManager extends Thread {
 				}
 			}
 			if(success) {
+				dropManifest();
 				lock.release();
 				channel.close();
 				raf.close();
@@ -692,13 +1691,37 @@ public class FileSystemManager extends Thread {
 			}
 			return success;
 		}
+		public boolean copyFrom(String source) throws NoSuchAlgorithmException, IOException {
+			RandomAccessFile raf2 = new RandomAccessFile(source, "r");
+			try {
+				FileChannel channel2 = raf2.getChannel();
+				long size = channel2.size();
+				long position = 0;
+				channel.truncate(0);
+				blocks.clear();
+				prefix = 0;
+				while(position<size) {
+					position+=channel.transferFrom(channel2, position, size-position);
+				}
+			} finally {
+				raf2.close();
+			}
+			return checkWriteComplete();
+		}
 		public void writeFile(ByteBuffer src, long position) throws IOException {
 			if(position>length) throw new IOException("trying to write bytes beyond what is expected");
+			byte[] bytes = new byte[src.remaining()];
+			src.duplicate().get(bytes);
 			channel.write(src, position);
+			long crc = crc(bytes);
+			blocks.put(position,new long[] {bytes.length,crc});
+			manifestOut.write((position+" "+bytes.length+" "+crc+"\n").getBytes(StandardCharsets.UTF_8));
 		}
 		public boolean checkWriteComplete() throws NoSuchAlgorithmException, IOException {
+			if(prefix>0) return checkAppendComplete();
 			String currentMd5 = hashFile(file,pathName,0,raf);
 			if(currentMd5.equals(md5)) {
+				dropManifest();
 				lock.release();
 				channel.close();
 				raf.close();
@@ -710,6 +1733,79 @@ public class FileSystemManager extends Thread {
 			}
 			return false;
 		}
+		// hash the bytes after the prefix from the state after it, then append them to the file
+		private boolean checkAppendComplete() throws IOException {
+			File dest = new File(pathName);
+			FileDescriptor existing = watchedFiles.get(pathName);
+			if(existing==null || dest.length()!=prefix || dest.lastModified()!=existing.lastModified) {
+				log.info(pathName+" has changed since appending to it began");
+				return false;
+			}
+			MessageDigest state = copyState(prefixState);
+			ByteBuffer bb = ByteBuffer.allocate(65536);
+			long position = prefix;
+			while(position<length) {
+				bb.clear();
+				bb.limit((int) Math.min(bb.capacity(),length-position));
+				int read = channel.read(bb,position);
+				if(read<0) return false;
+				state.update(bb.array(),0,read);
+				position+=read;
+			}
+			MessageDigest after = copyState(state);
+			if(!toHex(state.digest()).equals(md5)) return false;
+			if(linkCount(dest.toPath())>1) {
+				// the other names of the file would be appended to as well, so the prefix is copied
+				// in front of the appended bytes and the file replaced, as for a modify
+				try(FileChannel in = FileChannel.open(dest.toPath(),StandardOpenOption.READ)) {
+					position = 0;
+					while(position<prefix) {
+						position+=in.transferTo(position,prefix-position,channel.position(position));
+					}
+				}
+				dropManifest();
+				lock.release();
+				channel.close();
+				raf.close();
+				dest.delete();
+				file.renameTo(dest);
+				log.info("replaced linked file "+pathName+" instead of appending to it");
+			} else {
+				try(FileChannel out = FileChannel.open(dest.toPath(),StandardOpenOption.WRITE)) {
+					position = prefix;
+					while(position<length) {
+						position+=channel.transferTo(position,length-position,out.position(position));
+					}
+				}
+				dropManifest();
+				lock.release();
+				channel.close();
+				raf.close();
+				file.delete();
+			}
+			dest.setLastModified(lastModified);
+			// the monitor finds the file already hashed
+			appendedFiles.put(pathName,new FileDescriptor(dest.lastModified(),md5,length));
+			if(length>=appendMinFileSize) hashStates.put(pathName,after);
+			log.info("appended "+(length-prefix)+" bytes to "+pathName);
+			return true;
+		}
+	}
+
+	/**
+	 * A version of a file kept for the peers reading it, see {@link FileSystemManager#readSnapshot(String, long, long)}.
+	 */
+	private class Snapshot {
+		// the copy in the spool directory, or the file that starts with this version
+		private File file;
+		private long length;
+		private boolean spooled;
+		private long lastRead = System.currentTimeMillis();
+		private Snapshot(File file, long length, boolean spooled) {
+			this.file=file;
+			this.length=length;
+			this.spooled=spooled;
+		}
 	}
 
 	private HashSet<String> watchedDirectories;
@@ -719,6 +1815,57 @@ public class FileSystemManager extends Thread {
 	private String root;
 	private String cannonicalRoot;
 	private HashMap<String,FileLoader> loadingFiles;
+	// the file loader loading each content, by md5
+	private HashMap<String,FileLoader> transfers;
+	// entries of every watched directory, with the md5 of files and null for sub directories
+	private HashMap<String,TreeMap<String,String>> directoryEntries;
+	// digests of directories that have not changed since they were last computed
+	private HashMap<String,String> directoryDigests;
+	// changes made through the API on behalf of a peer, not yet seen by the monitor
+	private HashMap<String,String[]> ownWrites;
+	private ArrayDeque<FileSystemEvent> journal;
+	private String journalId;
+	private int journalSize;
+	private long journalSequence;
+	// sequence number of the newest entry dropped from the journal
+	private long journalFloor;
+	// chunks of the contents that have been chunked, by md5
+	private HashMap<String,ArrayList<Chunk>> chunkLists;
+	// a chunk of some local content with each chunk hash
+	private HashMap<String,Chunk> chunkIndex;
+	// contents not chunked yet
+	private ArrayDeque<String> unchunked;
+	// files smaller than this are not chunked
+	private long chunkMinFileSize;
+	// the file key of every watched file and directory, where the file system has them
+	private HashMap<String,Object> fileKeys;
+	// watched files and directories that have disappeared, by file key, found when first needed in a scan
+	private HashMap<Object,String> vanished;
+	// the MD5 state after the whole content of each file of at least appendMinFileSize bytes
+	private HashMap<String,MessageDigest> hashStates;
+	// the files appended to by a file loader, as they were written
+	private HashMap<String,FileDescriptor> appendedFiles;
+	private long appendMinFileSize;
+	// the versions kept for peers reading them, by md5, least recently read first
+	private LinkedHashMap<String,Snapshot> snapshots;
+	private HashSet<String> copying;
+	// where the copies are kept, null if the share directory is not a directory
+	private File spool;
+	private long spooled;
+	private long snapshotMinFileSize;
+	private long snapshotSpoolSize;
+	private long snapshotIdle;
+	// copies files to the spool directories, away from the threads reading for peers
+	private static final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Snapshot copier");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	// how a local file with the content being loaded is copied: copy, link or reflink
+	private String shortcutCopy;
+	private boolean reflinkUnsupported;
 
 
 
@@ -731,7 +1878,9 @@ public class FileSystemManager extends Thread {
 			// check for new/modified files
 			try {
 				synchronized(this) {
+					vanished=null;
 					pathevents.addAll(scanDirectoryTree(root));
+					appendJournal(pathevents);
 				}
 			} catch (NoSuchAlgorithmException e1) {
 				log.severe(e1.getMessage());
@@ -748,24 +1897,50 @@ public class FileSystemManager extends Thread {
 			// check for deleted files
 			pathevents.clear();
 			synchronized(this) {
+				// a directory that has gone with its contents is one event, told before they are dropped
+				ArrayList<String> deletedDirs = new ArrayList<String>();
+				for(String pathname : watchedDirectories) {
+					if(!new File(pathname).exists()) deletedDirs.add(pathname);
+				}
+				HashMap<String,FileSystemEvent> subtrees = new HashMap<String,FileSystemEvent>();
+				for(String pathname : deletedDirs) {
+					File file = new File(pathname);
+					if(!new File(file.getParent()).exists() || directoryEntries.get(pathname).isEmpty()) continue;
+					FileSystemEvent subtree = new FileSystemEvent(file.getParent(),file.getName(),EVENT.SUBTREE_DELETE);
+					subtree.digest=directoryDigest(pathname);
+					subtree.removed=new ArrayList<FileSystemEvent>();
+					subtrees.put(pathname,subtree);
+				}
+
 				ArrayList<String> keys = new ArrayList<String>(watchedFiles.keySet());
 				for(String pathname : keys) {
 					File file = new File(pathname);
 					if(!file.exists()) {
 						FileDescriptor fdes = watchedFiles.get(pathname);
 						dropFile(pathname);
-						pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes));
+						FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes);
+						FileSystemEvent subtree = subtreeOf(subtrees,file.getParent());
+						if(subtree!=null) subtree.removed.add(pe);
+						else pathevents.add(pe);
 					}
 				}
 
 				// check for deleted directories
-				keys = new ArrayList<String>(watchedDirectories);
-				for(String pathname : keys) {
+				for(String pathname : deletedDirs) {
 					File file = new File(pathname);
-					if(!file.exists()) {
-						dropDir(pathname);
-						pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE));
-					}
+					dropDir(pathname);
+					FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE);
+					FileSystemEvent subtree = subtreeOf(subtrees,pathname);
+					if(subtree!=null) subtree.removed.add(pe);
+					else pathevents.add(pe);
+				}
+				for(FileSystemEvent subtree : subtrees.values()) {
+					Collections.sort(subtree.removed,(arg0,arg1) ->
+							{
+								return arg1.path.length()-arg0.path.length();
+							}
+					);
+					pathevents.add(subtree);
 				}
 			}
 			// sort all of the events so they make sense
@@ -774,12 +1949,17 @@ public class FileSystemManager extends Thread {
 						return arg1.path.length()-arg0.path.length();
 					}
 			);
+			synchronized(this) {
+				appendJournal(pathevents);
+			}
 
 			for(FileSystemEvent pathevent : pathevents) {
 				log.info(pathevent.toString());
 				fileSystemObserver.processFileSystemEvent(pathevent);
 			}
 
+			chunkPending();
+
 			try {
 				Thread.sleep(1000);
 			} catch (InterruptedException e) {
@@ -790,6 +1970,69 @@ public class FileSystemManager extends Thread {
 
 	}
 
+	private void appendJournal(ArrayList<FileSystemEvent> pathevents) {
+		for(FileSystemEvent pathevent : pathevents) {
+			pathevent.origin=takeOrigin(pathevent);
+			pathevent.sequence=++journalSequence;
+			journal.addLast(pathevent);
+		}
+		while(journal.size()>journalSize) {
+			journalFloor=journal.removeFirst().sequence;
+		}
+	}
+
+	// complete or cancel the file loaders waiting for the given one
+	private void endTransfer(FileLoader fl, boolean completed) {
+		if(transfers.get(fl.md5)==fl) transfers.remove(fl.md5);
+		if(fl.transfer!=null) fl.transfer.attached.remove(fl);
+		for(FileLoader waiting : fl.attached) {
+			if(loadingFiles.get(waiting.pathName)!=waiting) continue;
+			loadingFiles.remove(waiting.pathName);
+			waiting.transfer=null;
+			try {
+				if(completed && waiting.copyFrom(fl.pathName)) {
+					log.info("copied "+fl.pathName+" to "+waiting.pathName);
+					recordWrite(waiting.pathName,waiting.md5,waiting.origin);
+				} else {
+					log.info("cancelling "+waiting.pathName);
+					waiting.cancel();
+				}
+			} catch (IOException | NoSuchAlgorithmException e) {
+				log.severe(e.getMessage());
+				try {
+					waiting.cancel();
+				} catch (IOException e1) {
+					log.severe(e1.getMessage());
+				}
+			}
+		}
+		fl.attached.clear();
+	}
+
+	// the subtree delete event of the deleted directory that the given one is in, or is
+	private FileSystemEvent subtreeOf(HashMap<String,FileSystemEvent> subtrees, String name) {
+		while(name!=null && name.length()>root.length()) {
+			FileSystemEvent subtree = subtrees.get(name);
+			if(subtree!=null) return subtree;
+			name=new File(name).getParent();
+		}
+		return null;
+	}
+
+	private void recordWrite(String name, String md5, String origin) {
+		if(origin!=null) ownWrites.put(name,new String[] {md5,origin});
+	}
+
+	// the origin of an event, if it is the result of a recorded write with the same content
+	private String takeOrigin(FileSystemEvent pathevent) {
+		String[] write = ownWrites.remove(pathevent.path+FileSystems.getDefault().getSeparator()+pathevent.name);
+		if(write==null) return null;
+		if(write[0]==null || (pathevent.fileDescriptor!=null && write[0].equals(pathevent.fileDescriptor.md5))) {
+			return write[1];
+		}
+		return null;
+	}
+
 	private String hashFile(File file,String name,long lastModified) throws NoSuchAlgorithmException, IOException {
 		log.info("hashing file "+name);
 		if(lastModified!=0 && lastModified==file.lastModified()) {
@@ -810,6 +2053,166 @@ public class FileSystemManager extends Thread {
 		return checksum;
 	}
 
+	// hash a file, and its first prefixLength bytes if it has that many, keeping the state after
+	// the whole file so that bytes appended to it later can be hashed on their own
+	private String[] hashFileWithPrefix(File file,String name,long prefixLength) throws NoSuchAlgorithmException, IOException {
+		log.info("hashing file "+name);
+		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+		String prefixMd5 = null;
+		long read = 0;
+		try(FileInputStream fis = new FileInputStream(file)) {
+			byte[] byteArray = new byte[8192];
+			int bytesCount;
+			while(true) {
+				int max = read<prefixLength ? (int) Math.min(byteArray.length,prefixLength-read) : byteArray.length;
+				if((bytesCount=fis.read(byteArray,0,max))==-1) break;
+				md5Digest.update(byteArray,0,bytesCount);
+				read+=bytesCount;
+				if(read==prefixLength && prefixMd5==null) prefixMd5=toHex(copyState(md5Digest).digest());
+			}
+		}
+		if(read>=appendMinFileSize) hashStates.put(name,copyState(md5Digest));
+		else hashStates.remove(name);
+		return new String[] {toHex(md5Digest.digest()),prefixMd5};
+	}
+
+	// copy a file to the spool directory as the given content, null if it has changed since it was hashed
+	private Snapshot takeSnapshot(String md5, String source) {
+		File copy = new File(spool,md5);
+		long length = 0;
+		try {
+			MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+			if(!spool.isDirectory() && !spool.mkdirs()) return null;
+			try(FileInputStream in = new FileInputStream(source); FileOutputStream out = new FileOutputStream(copy)) {
+				byte[] byteArray = new byte[65536];
+				int bytesCount;
+				while((bytesCount=in.read(byteArray))!=-1) {
+					md5Digest.update(byteArray,0,bytesCount);
+					out.write(byteArray,0,bytesCount);
+					length+=bytesCount;
+				}
+			}
+			if(!toHex(md5Digest.digest()).equals(md5)) {
+				copy.delete();
+				return null;
+			}
+		} catch (IOException | NoSuchAlgorithmException e) {
+			log.warning(e.getMessage());
+			copy.delete();
+			return null;
+		} finally {
+			synchronized(this) {
+				copying.remove(md5);
+			}
+		}
+		synchronized(this) {
+			spooled+=length;
+			Iterator<Snapshot> eldest = snapshots.values().iterator();
+			while(spooled>snapshotSpoolSize && eldest.hasNext()) {
+				Snapshot snapshot = eldest.next();
+				if(!snapshot.spooled) continue;
+				eldest.remove();
+				dropSnapshot(snapshot);
+			}
+			Snapshot snapshot = new Snapshot(copy,length,true);
+			Snapshot replaced = snapshots.put(md5,snapshot);
+			if(replaced!=null) dropSnapshot(replaced);
+			log.info("spooled "+source+", "+spooled+" of "+snapshotSpoolSize+" bytes used");
+			return snapshot;
+		}
+	}
+
+	// copy a local file to dest, by hard link, copy-on-write clone or a copy between channels that does not go
+	// through the heap; returns true if dest is a hard link to the file
+	private boolean copyLocal(File source, FileChannel sourceChannel, Path dest) throws IOException {
+		// replaced rather than overwritten, as it may be linked to another file
+		Files.deleteIfExists(dest);
+		if(shortcutCopy.equals("link")) {
+			try {
+				Files.createLink(dest,source.toPath());
+				return true;
+			} catch (IOException | UnsupportedOperationException e) {
+				log.warning("could not link "+dest+" to "+source+", copying it: "+e.getMessage());
+			}
+		} else if(shortcutCopy.equals("reflink") && !reflinkUnsupported) {
+			if(reflink(source,dest)) return false;
+			Files.deleteIfExists(dest);
+			log.warning("could not clone "+source+", copying files from now on");
+			reflinkUnsupported=true;
+		}
+		try(FileChannel out = FileChannel.open(dest,StandardOpenOption.WRITE,StandardOpenOption.CREATE_NEW)) {
+			long size = sourceChannel.size();
+			long position = 0;
+			while(position<size) {
+				position+=sourceChannel.transferTo(position,size-position,out);
+			}
+		}
+		return false;
+	}
+
+	// the number of names a file has, 1 where the file system cannot tell
+	private static int linkCount(Path path) {
+		try {
+			return (Integer) Files.getAttribute(path,"unix:nlink");
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			return 1;
+		}
+	}
+
+	// Java cannot clone a file, cp does where the file system supports it
+	private boolean reflink(File source, Path dest) {
+		try {
+			Process cp = new ProcessBuilder("cp","--reflink=always",source.getPath(),dest.toString())
+					.redirectErrorStream(true).start();
+			try(InputStream out = cp.getInputStream()) {
+				while(out.read()!=-1);
+			}
+			return cp.waitFor()==0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// remove the versions no peer has read for a while
+	private void expireSnapshots() {
+		long now = System.currentTimeMillis();
+		Iterator<Snapshot> eldest = snapshots.values().iterator();
+		while(eldest.hasNext()) {
+			Snapshot snapshot = eldest.next();
+			if(now-snapshot.lastRead<snapshotIdle) break;
+			eldest.remove();
+			dropSnapshot(snapshot);
+		}
+	}
+
+	private void dropSnapshot(Snapshot snapshot) {
+		if(snapshot.spooled) {
+			spooled-=snapshot.length;
+			snapshot.file.delete();
+		}
+	}
+
+	// forget the versions a file started with, when it no longer does
+	private void dropPrefixes(String name) {
+		Iterator<Snapshot> it = snapshots.values().iterator();
+		while(it.hasNext()) {
+			Snapshot snapshot = it.next();
+			if(!snapshot.spooled && snapshot.file.getPath().equals(name)) it.remove();
+		}
+	}
+
+	private static MessageDigest copyState(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			// the MD5 digests of the JDK can be cloned
+			throw new IllegalStateException(e);
+		}
+	}
+
 	private ArrayList<FileSystemEvent> scanDirectoryTree(String name) throws IOException, NoSuchAlgorithmException {
 		ArrayList<FileSystemEvent> pathEvents = new ArrayList<FileSystemEvent>();
 		if(name.endsWith(loadingSuffix)) return pathEvents;
@@ -819,17 +2222,54 @@ public class FileSystemManager extends Thread {
 			long fileSize = file.length();
 			if(watchedFiles.containsKey(name)) {
 				if(lastModified!=watchedFiles.get(name).lastModified) {
-					String newHash = hashFile(file,name,0);
+					FileDescriptor previous = watchedFiles.get(name);
+					previous = new FileDescriptor(previous.lastModified,previous.md5,previous.fileSize);
+					FileDescriptor appended = appendedFiles.remove(name);
+					String newHash;
+					boolean append;
+					if(appended!=null && appended.lastModified==lastModified && appended.fileSize==fileSize) {
+						// appended to by a file loader, which has hashed it already
+						newHash=appended.md5;
+						append=true;
+					} else {
+						String[] hashes = hashFileWithPrefix(file,name,fileSize>previous.fileSize ? previous.fileSize : 0);
+						newHash=hashes[0];
+						append=previous.md5.equals(hashes[1]);
+					}
 					modifyFile(name,newHash,lastModified,fileSize);
-					FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MODIFY,watchedFiles.get(name));
+					FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),
+							append ? EVENT.FILE_APPEND : EVENT.FILE_MODIFY,watchedFiles.get(name));
+					if(append) {
+						pe.prefix=previous;
+						// peers still loading the former content can read it from the start of the file
+						if(!snapshots.containsKey(previous.md5)) {
+							snapshots.put(previous.md5,new Snapshot(file,previous.fileSize,false));
+						}
+					} else {
+						dropPrefixes(name);
+					}
 					pathEvents.add(pe);
 				} else {
 					// do nothing
 				}
 			} else {
-				String newHash = hashFile(file,name,0);
-				addFile(name,new FileDescriptor(lastModified,newHash,fileSize));
-				FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(name));
+				Object fileKey = fileKey(file);
+				String moved = vanishedFile(fileKey,lastModified,fileSize);
+				if(moved==null) {
+					String newHash = hashFileWithPrefix(file,name,0)[0];
+					moved = vanishedFile(newHash,fileSize);
+					if(moved==null) {
+						addFile(name,new FileDescriptor(lastModified,newHash,fileSize));
+						if(fileKey!=null) fileKeys.put(name,fileKey);
+						FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(name));
+						pathEvents.add(pe);
+						return pathEvents;
+					}
+					watchedFiles.get(moved).lastModified=lastModified;
+				}
+				renameFile(moved,name,fileKey);
+				FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MOVE,watchedFiles.get(name));
+				pe.oldPathName=moved.substring(root.length()+1);
 				pathEvents.add(pe);
 			}
 		} else if(file.isDirectory()) {
@@ -837,8 +2277,18 @@ public class FileSystemManager extends Thread {
 			if(watchedDirectories.contains(name) || name.equals(root)) {
 				// do nothing
 			} else {
-				addDir(name);
-				pathEvents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+				Object fileKey = fileKey(file);
+				String moved = vanishedDirectory(fileKey,name);
+				if(moved==null) {
+					addDir(name);
+					if(fileKey!=null) fileKeys.put(name,fileKey);
+					pathEvents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+				} else {
+					renameDir(moved,name);
+					FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_MOVE);
+					pe.oldPathName=moved.substring(root.length()+1);
+					pathEvents.add(pe);
+				}
 			}
 			DirectoryStream<Path> stream = Files.newDirectoryStream(path);
 			for (Path subpath: stream) {
@@ -850,18 +2300,120 @@ public class FileSystemManager extends Thread {
 	}
 
 	private void removeHash(String name) {
-		HashSet<String> hs = hashMap.get(watchedFiles.get(name).md5);
+		String md5 = watchedFiles.get(name).md5;
+		HashSet<String> hs = hashMap.get(md5);
 		hs.remove(name);
-		if(hs.size()==0) hs.remove(watchedFiles.get(name).md5);
+		if(hs.size()==0) {
+			hashMap.remove(md5);
+			dropChunks(md5);
+		}
 	}
 
 	private void addHash(String md5, String name) {
 		if(!hashMap.containsKey(md5)) {
 			hashMap.put(md5, new HashSet<String>());
+			unchunked.add(md5);
 		}
 		hashMap.get(md5).add(name);
 	}
 
+	private void indexChunks(String md5, ArrayList<Chunk> chunks) {
+		chunkLists.put(md5,chunks);
+		for(Chunk chunk : chunks) {
+			chunk.fileMd5=md5;
+			if(!chunkIndex.containsKey(chunk.hash)) chunkIndex.put(chunk.hash,chunk);
+		}
+	}
+
+	private void dropChunks(String md5) {
+		ArrayList<Chunk> chunks = chunkLists.remove(md5);
+		if(chunks==null) return;
+		for(Chunk chunk : chunks) {
+			if(chunkIndex.get(chunk.hash)==chunk) chunkIndex.remove(chunk.hash);
+		}
+	}
+
+	// chunk the contents not chunked yet, reading the files outside of the lock, a bounded
+	// number of bytes per call so that monitoring carries on
+	private void chunkPending() {
+		long budget = 64L*1024*1024;
+		while(budget>0) {
+			String md5;
+			String name;
+			synchronized(this) {
+				md5=unchunked.poll();
+				if(md5==null) return;
+				if(chunkLists.containsKey(md5) || !hashMap.containsKey(md5)) continue;
+				name=hashMap.get(md5).iterator().next();
+				if(watchedFiles.get(name).fileSize<chunkMinFileSize) continue;
+				budget-=watchedFiles.get(name).fileSize;
+			}
+			try {
+				ArrayList<Chunk> chunks = chunkFile(name,md5);
+				if(chunks==null) continue;
+				synchronized(this) {
+					if(hashMap.containsKey(md5)) indexChunks(md5,chunks);
+				}
+			} catch (IOException | NoSuchAlgorithmException e) {
+				log.warning(e.getMessage());
+			}
+		}
+	}
+
+	// split a file into content-defined chunks, null if it no longer has the given content
+	private ArrayList<Chunk> chunkFile(String name, String md5) throws IOException, NoSuchAlgorithmException {
+		log.info("chunking file "+name);
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		MessageDigest fileDigest = MessageDigest.getInstance("MD5");
+		MessageDigest chunkDigest = MessageDigest.getInstance("MD5");
+		byte[] buffer = new byte[65536];
+		long position=0;
+		long start=0;
+		long hash=0;
+		try(InputStream is = new FileInputStream(name)) {
+			int n;
+			while((n=is.read(buffer))!=-1) {
+				fileDigest.update(buffer,0,n);
+				int from=0;
+				for(int i=0;i<n;i++) {
+					hash=(hash<<1)+GEAR[buffer[i]&0xff];
+					position++;
+					long length=position-start;
+					if((length>=CHUNK_MIN && (hash&CHUNK_MASK)==0) || length>=CHUNK_MAX) {
+						chunkDigest.update(buffer,from,i+1-from);
+						chunks.add(new Chunk(toHex(chunkDigest.digest()),start,length));
+						start=position;
+						from=i+1;
+						hash=0;
+					}
+				}
+				chunkDigest.update(buffer,from,n-from);
+			}
+		}
+		if(position>start) chunks.add(new Chunk(toHex(chunkDigest.digest()),start,position-start));
+		if(!toHex(fileDigest.digest()).equals(md5)) return null;
+		return chunks;
+	}
+
+	// random values of the rolling hash for each byte, the same on every peer
+	private static long[] gearTable() {
+		Random random = new Random(0x626974626f78L);
+		long[] gear = new long[256];
+		for(int i=0;i<gear.length;i++) {
+			gear[i]=random.nextLong();
+		}
+		return gear;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i< bytes.length ;i++)
+		{
+			sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+		}
+		return sb.toString();
+	}
+
 	private void modifyFile(String name, String md5, long lastModified, long fileSize) {
 		log.info("modified file "+name);
 		removeHash(name);
@@ -869,28 +2421,265 @@ public class FileSystemManager extends Thread {
 		watchedFiles.get(name).lastModified=lastModified;
 		watchedFiles.get(name).fileSize=fileSize;
 		addHash(md5,name);
+		putEntry(name,md5);
 	}
 
 	private void dropFile(String name) {
 		log.info("dropping file "+name);
 		removeHash(name);
 		watchedFiles.remove(name);
+		fileKeys.remove(name);
+		hashStates.remove(name);
+		appendedFiles.remove(name);
+		dropPrefixes(name);
+		removeEntry(name);
 	}
 
 	private void addFile(String name, FileDescriptor fileDescriptor) {
 		log.info("adding file "+name);
 		addHash(fileDescriptor.md5,name);
 		watchedFiles.put(name,fileDescriptor);
+		putEntry(name,fileDescriptor.md5);
 	}
 
 	private void dropDir(String name) {
 		log.info("dropping directory "+name);
 		watchedDirectories.remove(name);
+		directoryEntries.remove(name);
+		directoryDigests.remove(name);
+		fileKeys.remove(name);
+		removeEntry(name);
 	}
 
 	private void addDir(String name) {
 		log.info("adding new directory "+name);
 		watchedDirectories.add(name);
+		directoryEntries.put(name,new TreeMap<String,String>());
+		putEntry(name,null);
+	}
+
+	private void renameFile(String from, String to, Object fileKey) {
+		log.info("moving file "+from+" to "+to);
+		FileDescriptor fileDescriptor = watchedFiles.remove(from);
+		hashMap.get(fileDescriptor.md5).remove(from);
+		hashMap.get(fileDescriptor.md5).add(to);
+		removeEntry(from);
+		watchedFiles.put(to,fileDescriptor);
+		putEntry(to,fileDescriptor.md5);
+		Object oldKey = fileKeys.remove(from);
+		if(oldKey!=null && vanished!=null) vanished.remove(oldKey);
+		if(fileKey!=null) fileKeys.put(to,fileKey);
+		MessageDigest state = hashStates.remove(from);
+		if(state!=null) hashStates.put(to,state);
+		dropPrefixes(from);
+	}
+
+	// moves the whole subtree, keeping the digests of the directories in it
+	private void renameDir(String from, String to) {
+		log.info("moving directory "+from+" to "+to);
+		String prefix = from+FileSystems.getDefault().getSeparator();
+		Object oldKey = fileKeys.get(from);
+		if(oldKey!=null && vanished!=null) vanished.remove(oldKey);
+		removeEntry(from);
+		for(String name : new ArrayList<String>(watchedDirectories)) {
+			if(!name.equals(from) && !name.startsWith(prefix)) continue;
+			String newName = to+name.substring(from.length());
+			watchedDirectories.remove(name);
+			watchedDirectories.add(newName);
+			directoryEntries.put(newName,directoryEntries.remove(name));
+			String digest = directoryDigests.remove(name);
+			if(digest!=null) directoryDigests.put(newName,digest);
+			Object fileKey = fileKeys.remove(name);
+			if(fileKey!=null) fileKeys.put(newName,fileKey);
+		}
+		for(String name : new ArrayList<String>(watchedFiles.keySet())) {
+			if(!name.startsWith(prefix)) continue;
+			String newName = to+name.substring(from.length());
+			FileDescriptor fileDescriptor = watchedFiles.remove(name);
+			hashMap.get(fileDescriptor.md5).remove(name);
+			hashMap.get(fileDescriptor.md5).add(newName);
+			watchedFiles.put(newName,fileDescriptor);
+			Object fileKey = fileKeys.remove(name);
+			if(fileKey!=null) fileKeys.put(newName,fileKey);
+			MessageDigest state = hashStates.remove(name);
+			if(state!=null) hashStates.put(newName,state);
+		}
+		// what has disappeared from the old directory may turn up elsewhere, from its new place
+		if(vanished!=null) {
+			for(Map.Entry<Object,String> entry : vanished.entrySet()) {
+				if(entry.getValue().startsWith(prefix)) {
+					entry.setValue(to+entry.getValue().substring(from.length()));
+				}
+			}
+		}
+		putEntry(to,null);
+	}
+
+	private static boolean rename(String from, String to) {
+		try {
+			Files.move(Paths.get(from),Paths.get(to),StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			log.warning(e.getMessage());
+			return false;
+		}
+	}
+
+	private static Object fileKey(File file) {
+		try {
+			return Files.readAttributes(file.toPath(),BasicFileAttributes.class).fileKey();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// the watched files and directories that no longer exist, by file key
+	private HashMap<Object,String> getVanished() {
+		if(vanished==null) {
+			vanished=new HashMap<Object,String>();
+			for(Map.Entry<String,Object> entry : fileKeys.entrySet()) {
+				if(!new File(entry.getKey()).exists()) vanished.put(entry.getValue(),entry.getKey());
+			}
+		}
+		return vanished;
+	}
+
+	// a watched file that has disappeared and is the given file, by its file key, size and timestamp
+	private String vanishedFile(Object fileKey, long lastModified, long fileSize) {
+		if(fileKey==null) return null;
+		String name = getVanished().get(fileKey);
+		if(name==null || new File(name).exists()) return null;
+		FileDescriptor fileDescriptor = watchedFiles.get(name);
+		if(fileDescriptor==null || fileDescriptor.lastModified!=lastModified ||
+				fileDescriptor.fileSize!=fileSize) return null;
+		return name;
+	}
+
+	// a watched file that has disappeared and had the given content
+	private String vanishedFile(String md5, long fileSize) {
+		if(!hashMap.containsKey(md5)) return null;
+		for(String name : hashMap.get(md5)) {
+			if(watchedFiles.get(name).fileSize==fileSize && !new File(name).exists()) return name;
+		}
+		return null;
+	}
+
+	// a watched directory that has disappeared and is the given directory, by its file key
+	private String vanishedDirectory(Object fileKey, String name) {
+		if(fileKey==null) return null;
+		String old = getVanished().get(fileKey);
+		if(old==null || !watchedDirectories.contains(old) || new File(old).exists() ||
+				name.startsWith(old+FileSystems.getDefault().getSeparator())) return null;
+		return old;
+	}
+
+	private void putEntry(String name, String md5) {
+		File file = new File(name);
+		TreeMap<String,String> entries = directoryEntries.get(file.getParent());
+		if(entries!=null) entries.put(file.getName(),md5);
+		invalidateDigest(file.getParent());
+	}
+
+	private void removeEntry(String name) {
+		File file = new File(name);
+		TreeMap<String,String> entries = directoryEntries.get(file.getParent());
+		if(entries!=null) entries.remove(file.getName());
+		invalidateDigest(file.getParent());
+	}
+
+	// a change in a directory changes the digests of all directories above it
+	private void invalidateDigest(String name) {
+		while(name!=null && directoryDigests.remove(name)!=null && !name.equals(root)) {
+			name=new File(name).getParent();
+		}
+	}
+
+	private String directoryDigest(String name) {
+		String digest = directoryDigests.get(name);
+		if(digest!=null) return digest;
+		MessageDigest md5Digest;
+		try {
+			md5Digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			log.severe(e.getMessage());
+			return null;
+		}
+		for(Map.Entry<String,String> entry : directoryEntries.get(name).entrySet()) {
+			String child = entry.getValue();
+			if(child==null) {
+				child = "d"+directoryDigest(name+FileSystems.getDefault().getSeparator()+entry.getKey());
+			} else {
+				child = "f"+child;
+			}
+			md5Digest.update((entry.getKey()+"\0"+child+"\n").getBytes(StandardCharsets.UTF_8));
+		}
+		byte[] bytes = md5Digest.digest();
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i< bytes.length ;i++)
+		{
+			sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+		}
+		digest = sb.toString();
+		directoryDigests.put(name,digest);
+		return digest;
+	}
+
+	// the digest of a directory without the entries deleted through the API and not yet scanned
+	private String subtreeDigest(String name) {
+		boolean pending=false;
+		for(Map.Entry<String,String[]> write : ownWrites.entrySet()) {
+			if(write.getValue()[0]==null && write.getKey().startsWith(name+FileSystems.getDefault().getSeparator())) {
+				pending=true;
+				break;
+			}
+		}
+		if(!pending) return directoryDigest(name);
+		MessageDigest md5Digest;
+		try {
+			md5Digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			log.severe(e.getMessage());
+			return null;
+		}
+		for(Map.Entry<String,String> entry : directoryEntries.get(name).entrySet()) {
+			String childName = name+FileSystems.getDefault().getSeparator()+entry.getKey();
+			String[] write = ownWrites.get(childName);
+			if(write!=null && write[0]==null && !new File(childName).exists()) continue;
+			String child = entry.getValue();
+			if(child==null) {
+				child = "d"+subtreeDigest(childName);
+			} else {
+				child = "f"+child;
+			}
+			md5Digest.update((entry.getKey()+"\0"+child+"\n").getBytes(StandardCharsets.UTF_8));
+		}
+		byte[] bytes = md5Digest.digest();
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i< bytes.length ;i++)
+		{
+			sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+		}
+		return sb.toString();
+	}
+
+	private void collectSubtree(String name, ArrayList<FileSystemEvent> pathevents, ArrayList<String> files) {
+		if(!name.equals(root)) {
+			File file = new File(name);
+			pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+		}
+		for(Map.Entry<String,String> entry : directoryEntries.get(name).entrySet()) {
+			String child = name+FileSystems.getDefault().getSeparator()+entry.getKey();
+			if(entry.getValue()==null) {
+				collectSubtree(child,pathevents,files);
+			} else {
+				files.add(child);
+			}
+		}
+	}
+
+	private String fullDirectoryName(String pathName) {
+		if(pathName==null || pathName.isEmpty()) return root;
+		return root+FileSystems.getDefault().getSeparator()+separatorsToSystem(pathName);
 	}
 
 	private static String getFileChecksum(MessageDigest digest, RandomAccessFile fis) throws IOException
@@ -0,0 +1,127 @@
+package unimelb.bitbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import unimelb.bitbox.protocol.FileBytesRequest;
+import unimelb.bitbox.protocol.FileBytesResponse;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads a file from a peer whose answers for one block fail or arrive corrupted, and checks that only that block
+ * is asked for again, after a delay that grows with each failure.
+ */
+public class BlockRetryTest {
+
+    private static final int FILE_SIZE = 5 * (int) RequestHandler.DEFAULT_BLOCK_SIZE + 123;
+    private static final long POSITION = 2 * RequestHandler.DEFAULT_BLOCK_SIZE; // the block that goes wrong
+    private static final long RETRY_DELAY =
+            Long.parseLong(Configuration.getConfigurationValue("blockRetryDelay", "500"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ArrayList<Long> asked = new ArrayList<>(); // when the block was asked for
+    private int requests; // blocks asked for
+
+    /**
+     * Changes answers for the block that goes wrong.
+     */
+    private interface Spoiler {
+        /**
+         * @param response the answer
+         * @param answer the number of answers for the block before this one
+         * @return the answer to deliver
+         */
+        FileBytesResponse spoil(FileBytesResponse response, int answer);
+    }
+
+    /**
+     * Download the file, letting a transit spoil some answers for the block.
+     * @param content the content of the file
+     * @param spoil changes answers for the block
+     * @return the downloaded content
+     */
+    private byte[] download(byte[] content, Spoiler spoil) throws Exception {
+        File sourceRoot = folder.newFolder();
+        Files.write(new File(sourceRoot, "file").toPath(), content);
+        File downloadRoot = folder.newFolder();
+        try (TestNetwork network = new TestNetwork()) {
+            TestNetwork.Node downloader = network.add("downloader", downloadRoot.getPath());
+            TestNetwork.Node source = network.add("source", sourceRoot.getPath());
+            network.connect(downloader, source);
+            network.setTransit((from, to, protocol) -> {
+                if (protocol instanceof FileBytesRequest) {
+                    requests++;
+                    if (((FileBytesRequest) protocol).position == POSITION) {
+                        asked.add(System.currentTimeMillis());
+                    }
+                }
+                if (protocol instanceof FileBytesResponse && ((FileBytesResponse) protocol).position == POSITION) {
+                    return spoil.spoil((FileBytesResponse) protocol, asked.size() - 1);
+                }
+                return protocol;
+            });
+            FileSystemManager.FileSystemEvent event = source.fileSystemManager.generateSyncEvents().get(0);
+            source.send(downloader, EventHandler.handleEvent(event));
+            assertTrue(network.settle(() -> downloader.fileSystemManager.fileNameExists("file",
+                    event.fileDescriptor.md5), 20000));
+        }
+        return Files.readAllBytes(new File(downloadRoot, "file").toPath());
+    }
+
+    private static byte[] content(long seed) {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    @Test
+    public void failedReadsAreRetriedWithGrowingDelays() throws Exception {
+        byte[] content = content(1);
+        byte[] downloaded = download(content, (response, answer) -> answer < 2 ?
+                new FileBytesResponse(response.fileDescriptor, response.pathname, response.position,
+                        response.length, "", "unsuccessful read") : response);
+        assertArrayEquals(content, downloaded);
+        assertEquals(3, asked.size());
+        // the other blocks are asked for once
+        assertEquals(6 + 2, requests);
+        long first = asked.get(1) - asked.get(0);
+        long second = asked.get(2) - asked.get(1);
+        System.out.println("Block asked for again after " + first + " ms, then after " + second + " ms");
+        assertTrue(first >= RETRY_DELAY);
+        assertTrue(second >= 2 * RETRY_DELAY);
+    }
+
+    @Test
+    public void corruptedBlocksAreAskedForAgain() throws Exception {
+        byte[] content = content(2);
+        byte[] downloaded = download(content, (response, answer) -> {
+            if (answer > 0) {
+                return response;
+            }
+            // one bit flipped on the way, under the checksum of the block that was sent
+            byte[] bytes = Base64.getDecoder().decode(response.content);
+            bytes[bytes.length / 2] ^= 1;
+            FileBytesResponse corrupted = new FileBytesResponse(response.fileDescriptor, response.pathname,
+                    response.position, response.length, Base64.getEncoder().encodeToString(bytes));
+            corrupted.checksum = response.checksum;
+            return corrupted;
+        });
+        assertArrayEquals(content, downloaded);
+        assertEquals(2, asked.size());
+        assertEquals(6 + 1, requests);
+        assertTrue(asked.get(1) - asked.get(0) >= RETRY_DELAY);
+    }
+}
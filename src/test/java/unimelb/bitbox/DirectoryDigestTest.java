@@ -0,0 +1,156 @@
+package unimelb.bitbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import unimelb.bitbox.protocol.DirectoryDigestRequest;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reconciles two shares by comparing directory digests, and compares the cost with dumping the whole share.
+ */
+public class DirectoryDigestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Fill a share with directories of small files.
+     * @param root the share directory
+     * @param directories the number of directories
+     * @param files the number of files in each directory
+     */
+    private static void fill(File root, int directories, int files) throws IOException {
+        for (int d = 0; d < directories; d++) {
+            File dir = new File(root, "dir" + d);
+            assertTrue(new File(dir, "sub").mkdirs());
+            for (int f = 0; f < files; f++) {
+                write(new File(f % 2 == 0 ? dir : new File(dir, "sub"), "file" + f), "content of " + d + "/" + f);
+            }
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Change a file. Files are scanned for changes by their time stamp, which the copy of the file on the other side
+     * may share if both were written within the same millisecond.
+     */
+    private static void change(File file, String content) throws IOException {
+        write(file, content);
+        assertTrue(file.setLastModified(file.lastModified() + 10000));
+    }
+
+    /**
+     * Let a peer send what the other lacks, starting from the digest of its share.
+     */
+    private static void reconcile(TestNetwork network, TestNetwork.Node from, TestNetwork.Node to)
+            throws InterruptedException {
+        from.send(to, new DirectoryDigestRequest("", from.fileSystemManager.getDirectoryDigest("")));
+        network.settle(500);
+    }
+
+    private static boolean converged(TestNetwork.Node a, TestNetwork.Node b) {
+        return converged(a, b, "");
+    }
+
+    private static boolean converged(TestNetwork.Node a, TestNetwork.Node b, String pathName) {
+        return a.fileSystemManager.getDirectoryDigest(pathName).equals(b.fileSystemManager.getDirectoryDigest(pathName));
+    }
+
+    @Test
+    public void sharesConvergeBothWays() throws Exception {
+        File rootA = folder.newFolder("a");
+        File rootB = folder.newFolder("b");
+        fill(rootA, 5, 6);
+        fill(rootB, 5, 6);
+        // changed on one side, missing on either side, and a directory only one side has
+        change(new File(rootA, "dir1/file2"), "changed");
+        assertTrue(new File(rootA, "dir2/sub/file3").delete());
+        assertTrue(new File(rootB, "dir3/file4").delete());
+        assertTrue(new File(rootB, "extra/deeper").mkdirs());
+        write(new File(rootB, "extra/deeper/file"), "only on b");
+
+        try (TestNetwork network = new TestNetwork()) {
+            TestNetwork.Node a = network.add("a", rootA.getPath());
+            TestNetwork.Node b = network.add("b", rootB.getPath());
+            network.connect(a, b);
+            assertFalse(converged(a, b));
+
+            reconcile(network, a, b);
+            // the files written are seen once the file system manager has scanned them
+            assertTrue(network.settle(() -> converged(a, b, "dir1") && converged(a, b, "dir3"), 10000));
+            assertArrayEquals(Files.readAllBytes(new File(rootA, "dir1/file2").toPath()),
+                    Files.readAllBytes(new File(rootB, "dir1/file2").toPath()));
+            assertTrue(new File(rootB, "dir3/file4").exists());
+            // a does not delete what only b has
+            assertTrue(new File(rootB, "extra/deeper/file").exists());
+
+            reconcile(network, b, a);
+            assertTrue(network.settle(() -> converged(a, b), 10000));
+            assertTrue(new File(rootA, "extra/deeper/file").exists());
+            assertTrue(new File(rootA, "dir2/sub/file3").exists());
+        }
+    }
+
+    @Test
+    public void equalSharesNeedOneRoundTrip() throws Exception {
+        File rootA = folder.newFolder("a");
+        File rootB = folder.newFolder("b");
+        fill(rootA, 3, 4);
+        fill(rootB, 3, 4);
+        try (TestNetwork network = new TestNetwork()) {
+            TestNetwork.Node a = network.add("a", rootA.getPath());
+            TestNetwork.Node b = network.add("b", rootB.getPath());
+            network.connect(a, b);
+            assertTrue(converged(a, b));
+            reconcile(network, a, b);
+            assertEquals(2, network.getMessages());
+        }
+    }
+
+    /**
+     * Reconciles shares that differ in one file, and prints the messages and bytes sent next to those of a full
+     * dump of the share.
+     */
+    @Test
+    public void digestsSendLessThanAFullDump() throws Exception {
+        File rootA = folder.newFolder("a");
+        File rootB = folder.newFolder("b");
+        fill(rootA, 100, 40);
+        fill(rootB, 100, 40);
+        change(new File(rootA, "dir57/sub/file13"), "changed");
+
+        try (TestNetwork network = new TestNetwork()) {
+            TestNetwork.Node a = network.add("a", rootA.getPath());
+            TestNetwork.Node b = network.add("b", rootB.getPath());
+            network.connect(a, b);
+            int dumpMessages = 0;
+            long dumpBytes = 0;
+            for (FileSystemManager.FileSystemEvent event : a.fileSystemManager.generateSyncEvents()) {
+                dumpMessages++;
+                dumpBytes += EventHandler.handleEvent(event).toString().length();
+            }
+
+            reconcile(network, a, b);
+            assertTrue(network.settle(() -> converged(a, b), 10000));
+            System.out.println("Shares of " + 100 * 40 + " files in " + 100 * 2 + " directories, one file changed: " +
+                    "full dump " + dumpMessages + " messages, " + dumpBytes + " bytes; digests " +
+                    network.getMessages() + " messages, " + network.getBytes() + " bytes");
+            assertTrue(network.getMessages() < 20);
+            assertTrue(network.getBytes() * 10 < dumpBytes);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package unimelb.bitbox;
+
+import org.junit.Test;
+import unimelb.bitbox.protocol.Fragment;
+import unimelb.bitbox.protocol.FragmentNack;
+import unimelb.bitbox.protocol.ProtocolHelper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests fragmentation, reassembly and forward error correction over a simulated lossy link.
+ */
+public class FragmentManagerTest {
+
+    private static final int FRAGMENT_SIZE = 1024;
+    private static final long MAX_PENDING_BYTES = 16L * 1024 * 1024;
+    private static final int GROUP_SIZE = 8;
+
+    private static FragmentManager manager(int fecGroupSize) {
+        // missing fragments are asked for as soon as a message is idle
+        return new FragmentManager(FRAGMENT_SIZE, MAX_PENDING_BYTES, 0, 60000, fecGroupSize);
+    }
+
+    private static String message(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Carries fragments between two fragment managers, dropping a share of them, and answers the receiver's
+     * negative acknowledgements from the sender.
+     */
+    private static class LossyLink {
+        private final FragmentManager sender;
+        private final FragmentManager receiver;
+        private final double lossRate;
+        private final Random random;
+        private int sent; // fragments sent, including resent ones
+        private int roundTrips; // negative acknowledgements answered
+        private int delayed; // messages that needed at least one round trip
+
+        private LossyLink(int fecGroupSize, double lossRate, long seed) {
+            this.sender = manager(fecGroupSize);
+            this.receiver = manager(fecGroupSize);
+            this.lossRate = lossRate;
+            this.random = new Random(seed);
+        }
+
+        private String deliver(Fragment fragment) {
+            sent++;
+            if (random.nextDouble() < lossRate) {
+                return null;
+            }
+            // through the encoding used on the wire
+            return receiver.receive((Fragment) ProtocolHelper.convertProtocol(fragment.toString()));
+        }
+
+        private String transfer(String message) throws InterruptedException {
+            String received = null;
+            for (Fragment f : sender.split(message.getBytes(StandardCharsets.UTF_8))) {
+                String complete = deliver(f);
+                if (complete != null) {
+                    received = complete;
+                }
+            }
+            if (received == null) {
+                delayed++;
+            }
+            while (received == null) {
+                Thread.sleep(1);
+                for (FragmentNack nack : receiver.scan()) {
+                    roundTrips++;
+                    for (Fragment f : sender.getMissing(nack)) {
+                        String complete = deliver(f);
+                        if (complete != null) {
+                            received = complete;
+                        }
+                    }
+                }
+            }
+            return received;
+        }
+    }
+
+    @Test
+    public void reassemblesFragmentsInAnyOrder() {
+        Random random = new Random(1);
+        String message = message(random, 20 * FRAGMENT_SIZE + 17);
+        FragmentManager sender = manager(0);
+        FragmentManager receiver = manager(0);
+        ArrayList<Fragment> fragments = sender.split(message.getBytes(StandardCharsets.UTF_8));
+        assertEquals(21, fragments.size());
+        Collections.shuffle(fragments, random);
+        String received = null;
+        for (Fragment f : fragments) {
+            assertNull(received);
+            received = receiver.receive(f);
+        }
+        assertTrue(message.equals(received));
+        // a late duplicate is ignored
+        assertNull(receiver.receive(fragments.get(0)));
+    }
+
+    @Test
+    public void parityRebuildsOneLostFragmentPerGroup() {
+        String message = message(new Random(2), 3 * GROUP_SIZE * FRAGMENT_SIZE - 100);
+        FragmentManager sender = manager(GROUP_SIZE);
+        FragmentManager receiver = manager(GROUP_SIZE);
+        ArrayList<Fragment> fragments = sender.split(message.getBytes(StandardCharsets.UTF_8));
+        // one parity fragment per group while no loss has been seen
+        assertEquals(3 * GROUP_SIZE + 3, fragments.size());
+        String received = null;
+        for (Fragment f : fragments) {
+            // lose the first fragment of the first two groups, and the short last fragment of the message
+            if (!f.isParity() && ((f.index % GROUP_SIZE == 0 && f.index < 2 * GROUP_SIZE) || f.index == f.total - 1)) {
+                continue;
+            }
+            String complete = receiver.receive(f);
+            if (complete != null) {
+                received = complete;
+            }
+        }
+        assertTrue(message.equals(received));
+    }
+
+    @Test
+    public void twoLostFragmentsOfOneGroupAreAskedFor() throws InterruptedException {
+        String message = message(new Random(3), GROUP_SIZE * FRAGMENT_SIZE);
+        FragmentManager sender = manager(GROUP_SIZE);
+        FragmentManager receiver = manager(GROUP_SIZE);
+        for (Fragment f : sender.split(message.getBytes(StandardCharsets.UTF_8))) {
+            if (f.index != 2 && f.index != 5) {
+                assertNull(receiver.receive(f));
+            }
+        }
+        Thread.sleep(2);
+        ArrayList<FragmentNack> nacks = receiver.scan();
+        assertEquals(1, nacks.size());
+        assertEquals(Arrays.asList(2L, 5L), nacks.get(0).missing);
+        // the first resent fragment lets the parity rebuild the other one
+        ArrayList<Fragment> resent = sender.getMissing(nacks.get(0));
+        assertEquals(2, resent.size());
+        assertTrue(message.equals(receiver.receive(resent.get(0))));
+        assertNull(receiver.receive(resent.get(1)));
+    }
+
+    @Test
+    public void parityFollowsReportedLoss() throws InterruptedException {
+        FragmentManager sender = manager(GROUP_SIZE);
+        FragmentManager receiver = manager(GROUP_SIZE);
+        byte[] message = message(new Random(4), GROUP_SIZE * FRAGMENT_SIZE).getBytes(StandardCharsets.UTF_8);
+        assertEquals(GROUP_SIZE + 1, sender.split(message).size());
+        // the receiver reports half of the next message missing
+        for (Fragment f : sender.split(message)) {
+            if (f.isParity() || f.index % 2 == 0) {
+                receiver.receive(f);
+            }
+        }
+        Thread.sleep(2);
+        for (FragmentNack nack : receiver.scan()) {
+            sender.getMissing(nack);
+        }
+        assertTrue(sender.getLossRate() > 0.2);
+        assertEquals(GROUP_SIZE + GROUP_SIZE / 2, sender.split(message).size());
+    }
+
+    @Test
+    public void oversizedMessageIsDropped() {
+        FragmentManager receiver = new FragmentManager(FRAGMENT_SIZE, 64 * 1024, 0, 60000, 0);
+        assertNull(receiver.receive(new Fragment(1, 0, 1000, "AAAA")));
+        assertNotNull(new FragmentManager(FRAGMENT_SIZE, 64 * 1024, 0, 60000, 0).receive(new Fragment(1, 0, 1, "AAAA")));
+    }
+
+    /**
+     * Sends the same messages over links with and without forward error correction, and prints how many needed a
+     * round trip to complete.
+     */
+    @Test
+    public void correctionSavesRoundTripsOnLossyLinks() throws InterruptedException {
+        int messages = 200;
+        for (double lossRate : new double[]{0.01, 0.05, 0.1}) {
+            LossyLink plain = new LossyLink(0, lossRate, 5);
+            LossyLink corrected = new LossyLink(GROUP_SIZE, lossRate, 5);
+            Random random = new Random(6);
+            for (int i = 0; i < messages; i++) {
+                String message = message(random, 16 * FRAGMENT_SIZE);
+                assertTrue(message.equals(plain.transfer(message)));
+                assertTrue(message.equals(corrected.transfer(message)));
+            }
+            System.out.println(String.format("Loss %.0f%%: without correction %d of %d messages waited for %d " +
+                            "round trips, %d fragments sent; with correction %d waited for %d round trips, " +
+                            "%d fragments sent, parity for %.1f%% loss", lossRate * 100, plain.delayed, messages,
+                    plain.roundTrips, plain.sent, corrected.delayed, corrected.roundTrips, corrected.sent,
+                    corrected.sender.getLossRate() * 100));
+            assertTrue(corrected.delayed < plain.delayed);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package unimelb.bitbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import unimelb.bitbox.protocol.FileBytesRequest;
+import unimelb.bitbox.protocol.FileBytesResponse;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Serves files to a peer over a link with latency, and counts the blocks that had been read ahead when the peer
+ * asked for them.
+ */
+public class ReadAheadTest {
+
+    private static final int FILE_SIZE = 2 * 1024 * 1024;
+    private static final long LATENCY = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int requests; // blocks asked for
+    private int ready; // blocks in the block cache, or being read into it, when asked for
+
+    private void count(TestNetwork network, boolean responses) {
+        network.setTransit((from, to, protocol) -> {
+            if (protocol instanceof FileBytesRequest) {
+                FileBytesRequest request = (FileBytesRequest) protocol;
+                requests++;
+                if (BlockCache.isCached(request.fileDescriptor.getString("md5"), request.position, request.length)) {
+                    ready++;
+                }
+            }
+            return responses || !(protocol instanceof FileBytesResponse) ? protocol : null;
+        });
+    }
+
+    private File source(byte[] content, long seed) throws Exception {
+        new Random(seed).nextBytes(content);
+        File root = folder.newFolder();
+        Files.write(new File(root, "file").toPath(), content);
+        return root;
+    }
+
+    @Test
+    public void sequentialBlocksAreReadAhead() throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        File sourceRoot = source(content, 1);
+        File downloadRoot = folder.newFolder();
+        try (TestNetwork network = new TestNetwork()) {
+            TestNetwork.Node downloader = network.add("downloader", downloadRoot.getPath());
+            TestNetwork.Node source = network.add("source", sourceRoot.getPath());
+            network.connect(downloader, source);
+            network.setLatency(LATENCY);
+            count(network, true);
+            FileSystemManager.FileSystemEvent event = source.fileSystemManager.generateSyncEvents().get(0);
+            source.send(downloader, EventHandler.handleEvent(event));
+            assertTrue(network.settle(() -> downloader.fileSystemManager.fileNameExists("file",
+                    event.fileDescriptor.md5), 30000));
+            assertArrayEquals(content, Files.readAllBytes(new File(downloadRoot, "file").toPath()));
+            System.out.println("Sequential download: " + ready + " of " + requests +
+                    " blocks read ahead when asked for");
+            // the first block is read when asked for, and reading ahead starts with the second
+            assertTrue(ready >= requests - 2);
+        }
+    }
+
+    @Test
+    public void blocksAskedForOutOfOrderAreNotReadAhead() throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        File sourceRoot = source(content, 2);
+        try (TestNetwork network = new TestNetwork()) {
+            TestNetwork.Node reader = network.add("reader", folder.newFolder().getPath());
+            TestNetwork.Node source = network.add("source", sourceRoot.getPath());
+            network.connect(reader, source);
+            network.setLatency(LATENCY);
+            count(network, false);
+            FileSystemManager.FileSystemEvent event = source.fileSystemManager.generateSyncEvents().get(0);
+            long blockSize = RequestHandler.DEFAULT_BLOCK_SIZE;
+            ArrayList<Long> positions = new ArrayList<>();
+            for (long position = 0; position < FILE_SIZE; position += blockSize) {
+                positions.add(position);
+            }
+            Collections.shuffle(positions, new Random(3));
+            for (long position : positions) {
+                reader.send(source, new FileBytesRequest(event.fileDescriptor.toDoc(), "file", position,
+                        Math.min(blockSize, FILE_SIZE - position)));
+                network.settle(0);
+            }
+            System.out.println("Blocks in random order: " + ready + " of " + requests +
+                    " blocks read ahead when asked for");
+            assertTrue(ready <= requests / 10);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package unimelb.bitbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import unimelb.bitbox.protocol.FileDeleteRequest;
+import unimelb.bitbox.protocol.SubtreeDeleteResponse;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Deletes a directory with its contents on a peer where part of it has changed.
+ */
+public class SubtreeDeleteTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String md5(String content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static File fill(File root) throws IOException {
+        File dir = new File(root, "dir");
+        assertTrue(new File(dir, "sub").mkdirs());
+        write(new File(dir, "deleted"), "deleted");
+        write(new File(dir, "changed"), "changed");
+        write(new File(dir, "sub/file"), "file");
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void aPartlyKeptDirectoryIsDeletedOneByOne() throws Exception {
+        File dirA = fill(folder.newFolder("a"));
+        File dirB = fill(folder.newFolder("b"));
+        try (TestNetwork network = new TestNetwork()) {
+            TestNetwork.Node a = network.add("a", dirA.getParent());
+            TestNetwork.Node b = network.add("b", dirB.getParent());
+            network.connect(a, b);
+            String digest = a.fileSystemManager.getSubtreeDigest("dir");
+            assertEquals(digest, b.fileSystemManager.getSubtreeDigest("dir"));
+            ArrayList<SubtreeDeleteResponse> failed = new ArrayList<>(); // subtree deletes that were refused
+            ArrayList<FileDeleteRequest> deletes = new ArrayList<>(); // files deleted one by one, held back
+            network.setTransit((from, to, protocol) -> {
+                if (protocol instanceof SubtreeDeleteResponse && !((SubtreeDeleteResponse) protocol).status) {
+                    failed.add((SubtreeDeleteResponse) protocol);
+                }
+                if (protocol instanceof FileDeleteRequest) {
+                    deletes.add((FileDeleteRequest) protocol);
+                    return null;
+                }
+                return protocol;
+            });
+
+            // all at once, so that a does not scan it half deleted
+            synchronized (a.fileSystemManager) {
+                delete(dirA);
+            }
+            FileSystemManager.FileSystemEvent event = null;
+            for (int i = 0; i < 100 && event == null; i++) {
+                Thread.sleep(100);
+                event = a.fileSystemManager.findSubtreeDelete("dir", digest);
+            }
+            assertNotNull(event);
+
+            // changed on b before b has scanned it, so the digests still agree
+            File changed = new File(dirB, "changed");
+            synchronized (b.fileSystemManager) {
+                write(changed, "changed on b");
+                assertTrue(changed.setLastModified(changed.lastModified() + 10000));
+                a.send(b, EventHandler.handleEvent(event));
+                network.settle(500);
+            }
+            assertEquals(1, failed.size());
+            assertTrue(changed.exists());
+            assertFalse(new File(dirB, "deleted").exists());
+            assertFalse(new File(dirB, "sub").exists());
+            // the peer falls back to deleting what it had one by one
+            assertEquals(3, deletes.size());
+
+            // which leaves the changed file alone once b has seen the change
+            String md5 = md5("changed on b");
+            assertTrue(network.settle(() -> b.fileSystemManager.fileNameExists("dir/changed", md5), 10000));
+            network.setTransit((from, to, protocol) -> protocol);
+            for (FileDeleteRequest delete : deletes) {
+                a.send(b, delete);
+            }
+            network.settle(500);
+            assertTrue(changed.exists());
+            assertTrue(b.fileSystemManager.dirNameExists("dir"));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package unimelb.bitbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import unimelb.bitbox.protocol.FileBytesResponse;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads a file from several peers holding the same content.
+ */
+public class SwarmTest {
+
+    private static final int FILE_SIZE = 1024 * 1024 + 123;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final HashMap<String, Long> served = new HashMap<>(); // bytes each source has sent
+    private File downloaded; // the file downloaded
+
+    /**
+     * Create a downloading peer and sources that hold the same file, connected to it.
+     * @param network the network
+     * @param content the content of the file
+     * @param sources the number of sources
+     * @return the downloading peer followed by the sources
+     */
+    private ArrayList<TestNetwork.Node> peers(TestNetwork network, byte[] content, int sources) throws Exception {
+        ArrayList<TestNetwork.Node> peers = new ArrayList<>();
+        File downloadRoot = folder.newFolder();
+        downloaded = new File(downloadRoot, "file");
+        peers.add(network.add("downloader", downloadRoot.getPath()));
+        for (int i = 0; i < sources; i++) {
+            File root = folder.newFolder();
+            Files.write(new File(root, "file").toPath(), content);
+            TestNetwork.Node source = network.add("source", root.getPath());
+            network.connect(peers.get(0), source);
+            peers.add(source);
+        }
+        return peers;
+    }
+
+    /**
+     * Let every source offer its files to the downloading peer, and wait until the file has been downloaded.
+     */
+    private static boolean offer(TestNetwork network, ArrayList<TestNetwork.Node> peers) throws Exception {
+        TestNetwork.Node downloader = peers.get(0);
+        String md5 = null;
+        for (TestNetwork.Node source : peers.subList(1, peers.size())) {
+            for (FileSystemManager.FileSystemEvent event : source.fileSystemManager.generateSyncEvents()) {
+                md5 = event.fileDescriptor.md5;
+                source.send(downloader, EventHandler.handleEvent(event));
+            }
+        }
+        String expected = md5;
+        return network.settle(() -> downloader.fileSystemManager.fileNameExists("file", expected), 20000);
+    }
+
+    private void count(TestNetwork network) {
+        network.setTransit((from, to, protocol) -> {
+            if (protocol instanceof FileBytesResponse && ((FileBytesResponse) protocol).status) {
+                served.merge(from.name, ((FileBytesResponse) protocol).length, Long::sum);
+            }
+            return protocol;
+        });
+    }
+
+    @Test
+    public void everySourceServesPartOfTheFile() throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        try (TestNetwork network = new TestNetwork()) {
+            ArrayList<TestNetwork.Node> peers = peers(network, content, 3);
+            count(network);
+            assertTrue(offer(network, peers));
+            assertArrayEquals(content, Files.readAllBytes(downloaded.toPath()));
+            System.out.println("Downloaded " + FILE_SIZE + " bytes from " + served);
+            assertEquals(3, served.size());
+            long total = 0;
+            for (long bytes : served.values()) {
+                total += bytes;
+                // the sources answer in turn, so each serves about a third
+                assertTrue(bytes > FILE_SIZE / 6);
+            }
+            assertEquals(FILE_SIZE, total);
+        }
+    }
+
+    @Test
+    public void blocksOfASourceThatLeavesGoToTheOthers() throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(2).nextBytes(content);
+        try (TestNetwork network = new TestNetwork()) {
+            ArrayList<TestNetwork.Node> peers = peers(network, content, 3);
+            TestNetwork.Node leaving = peers.get(2);
+            network.setTransit((from, to, protocol) -> {
+                if (protocol instanceof FileBytesResponse && ((FileBytesResponse) protocol).status) {
+                    if (from == leaving && served.getOrDefault(from.name, 0L) >= FILE_SIZE / 10) {
+                        // the source disconnects with a block outstanding
+                        Swarm.unregister(leaving.name);
+                        return null;
+                    }
+                    served.merge(from.name, ((FileBytesResponse) protocol).length, Long::sum);
+                }
+                return protocol;
+            });
+            assertTrue(offer(network, peers));
+            assertArrayEquals(content, Files.readAllBytes(downloaded.toPath()));
+            System.out.println("Downloaded " + FILE_SIZE + " bytes from " + served);
+            assertTrue(served.get(leaving.name) < FILE_SIZE / 5);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package unimelb.bitbox;
+
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolHelper;
+import unimelb.bitbox.util.FileSystemManager;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Connects peers within one process. Each peer is a file system manager with a request handler for every peer it is
+ * connected to; messages are carried in their wire encoding through one queue and handled one at a time. Peers are
+ * registered with the {@link Swarm} by name, as a process has only one swarm, so names are made unique and a peer
+ * connected to several others is sent to by the one connected last.
+ */
+public class TestNetwork implements AutoCloseable {
+
+    private static final AtomicInteger names = new AtomicInteger();
+
+    /**
+     * Changes or drops messages as they arrive.
+     */
+    public interface Transit {
+        /**
+         * @param from the sending peer
+         * @param to the receiving peer
+         * @param protocol the message
+         * @return the message to deliver, null to drop it
+         */
+        Protocol carry(Node from, Node to, Protocol protocol);
+    }
+
+    /**
+     * A peer of the network.
+     */
+    public class Node {
+        public final String name;
+        public final FileSystemManager fileSystemManager;
+        private final HashMap<String, RequestHandler> handlers = new HashMap<>(); // by the name of the sending peer
+
+        private Node(String name, FileSystemManager fileSystemManager) {
+            this.name = name;
+            this.fileSystemManager = fileSystemManager;
+        }
+
+        /**
+         * Send a message to a connected peer.
+         * @param to the peer
+         * @param protocol the message
+         */
+        public void send(Node to, Protocol protocol) {
+            TestNetwork.this.send(this, to, protocol);
+        }
+    }
+
+    private static class Message {
+        private final Node from;
+        private final Node to;
+        private final Protocol protocol;
+
+        private Message(Node from, Node to, Protocol protocol) {
+            this.from = from;
+            this.to = to;
+            this.protocol = protocol;
+        }
+    }
+
+    private final ArrayList<Node> nodes = new ArrayList<>();
+    private final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+    private volatile Transit transit = (from, to, protocol) -> protocol;
+    private long latency; // milliseconds each message takes
+    private int messages; // messages delivered
+    private long bytes; // bytes delivered
+
+    /**
+     * Add a peer sharing a directory.
+     * @param name the name of the peer, made unique
+     * @param root the share directory
+     * @return the peer
+     */
+    public Node add(String name, String root) throws IOException, NoSuchAlgorithmException {
+        Node node = new Node(name + "-" + names.incrementAndGet(), new FileSystemManager(root, event -> { }));
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Connect two peers, so that each can download from the other.
+     * @param a a peer
+     * @param b another peer
+     */
+    public void connect(Node a, Node b) {
+        a.handlers.put(b.name, new RequestHandler(a.fileSystemManager, b.name));
+        b.handlers.put(a.name, new RequestHandler(b.fileSystemManager, a.name));
+        Swarm.register(b.name, protocol -> send(a, b, protocol), false, RequestHandler.DEFAULT_BLOCK_SIZE);
+        Swarm.register(a.name, protocol -> send(b, a, protocol), false, RequestHandler.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Set what happens to messages on their way.
+     * @param transit the transit
+     */
+    public void setTransit(Transit transit) {
+        this.transit = transit;
+    }
+
+    /**
+     * Set the time each message takes to arrive.
+     * @param latency the latency in milliseconds
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    private void send(Node from, Node to, Protocol protocol) {
+        queue.add(new Message(from, to, protocol));
+    }
+
+    /**
+     * Deliver messages, and the messages they lead to, until none has been sent for a while.
+     * @param idle milliseconds without a message after which the network is settled
+     */
+    public void settle(long idle) throws InterruptedException {
+        Message message;
+        while ((message = queue.poll(idle, TimeUnit.MILLISECONDS)) != null) {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            Protocol protocol = transit.carry(message.from, message.to, message.protocol);
+            if (protocol == null) {
+                continue;
+            }
+            String str = protocol.toString();
+            messages++;
+            bytes += str.length();
+            if (ProtocolHelper.convertProtocol(str) == null) {
+                throw new IllegalStateException("undecodable message " + str);
+            }
+            for (Protocol response : message.to.handlers.get(message.from.name).handleRequest(str)) {
+                send(message.to, message.from, response);
+            }
+        }
+    }
+
+    /**
+     * Deliver messages until a condition holds.
+     * @param condition the condition
+     * @param timeout milliseconds to wait at most
+     * @return true if the condition holds
+     */
+    public boolean settle(BooleanSupplier condition, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            settle(50);
+        }
+        return true;
+    }
+
+    /**
+     * Disconnect every peer.
+     */
+    @Override
+    public void close() {
+        for (Node node : nodes) {
+            Swarm.unregister(node.name);
+        }
+    }
+
+    /**
+     * @return the number of messages delivered
+     */
+    public int getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the number of bytes delivered
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
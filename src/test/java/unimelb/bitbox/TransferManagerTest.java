@@ -0,0 +1,82 @@
+package unimelb.bitbox;
+
+import org.junit.Test;
+import unimelb.bitbox.util.Configuration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Admits, queues and ends transfers without loading any file.
+ */
+public class TransferManagerTest {
+
+    private static final Runnable NOTHING = () -> { };
+
+    /**
+     * Admit a request that starts downloading.
+     */
+    private static void download(String pathName, String md5) {
+        assertEquals(1, TransferManager.admit(pathName, md5, 10, null, NOTHING));
+        TransferManager.settle(pathName, true);
+    }
+
+    @Test
+    public void waitingTransfersHoldTheirSlotUntilTheTransferTheyWaitForEnds() {
+        int before = TransferManager.getActive();
+        download("waiting/source", "md5-waiting");
+        assertEquals(1, TransferManager.admit("waiting/copy", "md5-waiting", 10, null, NOTHING));
+        TransferManager.attach("waiting/copy");
+        TransferManager.settle("waiting/copy", false);
+        assertEquals(before + 2, TransferManager.getActive());
+        TransferManager.end("waiting/source");
+        assertEquals(before, TransferManager.getActive());
+    }
+
+    @Test
+    public void transfersWithNothingToWaitForGiveUpTheirSlot() {
+        int before = TransferManager.getActive();
+        assertEquals(1, TransferManager.admit("ended/copy", "md5-ended", 10, null, NOTHING));
+        TransferManager.attach("ended/copy");
+        TransferManager.settle("ended/copy", false);
+        assertEquals(before, TransferManager.getActive());
+    }
+
+    @Test
+    public void aSlowQueuedRequestDoesNotHoldUpTheOthers() throws InterruptedException {
+        int slots = Integer.parseInt(Configuration.getConfigurationValue("maxTransfers", "16")) -
+                TransferManager.getActive();
+        for (int i = 0; i < slots; i++) {
+            download("full/" + i, "md5-full-" + i);
+        }
+        CountDownLatch slowStarted = new CountDownLatch(1);
+        CountDownLatch slowRelease = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(1);
+        // smaller files are handled first
+        assertEquals(0, TransferManager.admit("queued/slow", "md5-slow", 1, null, () -> {
+            slowStarted.countDown();
+            try {
+                slowRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertEquals(0, TransferManager.admit("queued/fast", "md5-fast", 2, null, fastDone::countDown));
+        try {
+            TransferManager.end("full/0");
+            assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+            assertFalse(fastDone.await(200, TimeUnit.MILLISECONDS));
+            TransferManager.end("full/1");
+            assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+        } finally {
+            slowRelease.countDown();
+            for (int i = 0; i < slots; i++) {
+                TransferManager.end("full/" + i);
+            }
+        }
+    }
+}
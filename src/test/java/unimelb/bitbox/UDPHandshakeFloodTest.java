@@ -0,0 +1,179 @@
+package unimelb.bitbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import unimelb.bitbox.protocol.ConnectionRefused;
+import unimelb.bitbox.protocol.HandshakeCookie;
+import unimelb.bitbox.protocol.HandshakeRequest;
+import unimelb.bitbox.protocol.HandshakeResponse;
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolHelper;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.TestConfiguration;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Floods a UDP peer with datagrams from many source ports that never complete a handshake, and measures the threads
+ * it starts for them. Each test prints its numbers.
+ */
+public class UDPHandshakeFloodTest {
+
+    private static final int SOURCES = 200;
+    private static final int ROUNDS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Start a UDP peer on a free port.
+     * @param legacy whether peers without cookie support may connect
+     * @return the address of the peer
+     */
+    private InetSocketAddress start(boolean legacy) throws Exception {
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        TestConfiguration.set("udpPort", String.valueOf(port));
+        TestConfiguration.set("advertisedName", "localhost");
+        TestConfiguration.set("udpLegacyHandshake", String.valueOf(legacy));
+        FileSystemManager fileSystemManager = new FileSystemManager(folder.newFolder().getPath(), event -> { });
+        new UDPCommunicationModule(fileSystemManager);
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Send datagrams from SOURCES source ports, ROUNDS times each, and wait for the peer to handle them.
+     * @param target the peer
+     * @param messages the datagrams each source sends every round
+     * @return the number of threads started meanwhile
+     */
+    private int flood(InetSocketAddress target, String... messages) throws Exception {
+        ArrayList<DatagramSocket> sources = new ArrayList<>();
+        for (int i = 0; i < SOURCES; i++) {
+            sources.add(new DatagramSocket(0, InetAddress.getLoopbackAddress()));
+        }
+        long before = threads.getTotalStartedThreadCount();
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (DatagramSocket source : sources) {
+                for (String message : messages) {
+                    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                    source.send(new DatagramPacket(bytes, bytes.length, target));
+                }
+            }
+        }
+        // the peer has got through the flood once it answers a handshake sent after it, which may be dropped too
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            Protocol answer = null;
+            for (int i = 0; i < 30 && answer == null; i++) {
+                answer = exchange(probe, target, handshake(probe, null));
+            }
+            assertTrue(answer instanceof HandshakeCookie);
+        }
+        Thread.sleep(500);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        int started = (int) (threads.getTotalStartedThreadCount() - before);
+        for (DatagramSocket source : sources) {
+            source.close();
+        }
+        System.out.println("Flood of " + SOURCES * ROUNDS * messages.length + " datagrams from " + SOURCES +
+                " source ports: " + elapsed + " ms, " + started + " threads started, " + threads.getThreadCount() +
+                " threads running");
+        return started;
+    }
+
+    /**
+     * Create a handshake request from a socket, advertising cookie support.
+     * @param socket the socket
+     * @param cookie the cookie, null if none
+     * @return the encoded request
+     */
+    private String handshake(DatagramSocket socket, String cookie) {
+        return new HandshakeRequest(new ConnectedPeer("localhost", socket.getLocalPort()),
+                new ArrayList<>(Collections.singletonList("cookie")), cookie).toString();
+    }
+
+    /**
+     * Send a datagram and wait for the answer.
+     * @param socket the socket to use
+     * @param target the peer
+     * @param message the datagram
+     * @return the answer, null if none came within a second
+     */
+    private Protocol exchange(DatagramSocket socket, InetSocketAddress target, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(bytes, bytes.length, target));
+        socket.setSoTimeout(1000);
+        byte[] buf = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        return ProtocolHelper.convertProtocol(new String(buf, 0, packet.getLength(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void unverifiedSendersStartNoThreads() throws Exception {
+        InetSocketAddress target = start(false);
+        String legacy = new HandshakeRequest(new ConnectedPeer("localhost", 1)).toString();
+        String noCookie = new HandshakeRequest(new ConnectedPeer("localhost", 1),
+                new ArrayList<>(Collections.singletonList("cookie"))).toString();
+        String forged = new HandshakeRequest(new ConnectedPeer("localhost", 1),
+                new ArrayList<>(Collections.singletonList("cookie")), "AAAA").toString();
+        int started = flood(target, "junk", "{\"command\":\"FILE_BYTES_REQUEST\"}", legacy, noCookie, forged);
+        assertEquals(0, started);
+    }
+
+    @Test
+    public void legacySendersStartThreadsOnlyWhenAllowed() throws Exception {
+        InetSocketAddress target = start(true);
+        int started = flood(target, new HandshakeRequest(new ConnectedPeer("localhost", 1)).toString());
+        // the first sources take every incoming connection, each with its retry and process threads
+        int maxIncoming = Integer.parseInt(Configuration.getConfigurationValue("maximumIncommingConnections"));
+        assertTrue("threads started: " + started, started >= 2 * maxIncoming);
+    }
+
+    @Test
+    public void cookieHandshakeConnects() throws Exception {
+        InetSocketAddress target = start(false);
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            Protocol cookie = exchange(socket, target, handshake(socket, null));
+            assertTrue(cookie instanceof HandshakeCookie);
+            Protocol response = exchange(socket, target, handshake(socket, ((HandshakeCookie) cookie).cookie));
+            assertTrue(response instanceof HandshakeResponse);
+        }
+    }
+
+    @Test
+    public void legacyHandshakeIsRefusedWithTheReason() throws Exception {
+        InetSocketAddress target = start(false);
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            Protocol answer = exchange(socket, target,
+                    new HandshakeRequest(new ConnectedPeer("localhost", socket.getLocalPort())).toString());
+            assertTrue(answer instanceof ConnectionRefused);
+            assertEquals("handshake cookie required", ((ConnectionRefused) answer).message);
+            assertTrue(((ConnectionRefused) answer).peers.isEmpty());
+        }
+    }
+}
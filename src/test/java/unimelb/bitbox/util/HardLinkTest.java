@@ -0,0 +1,113 @@
+package unimelb.bitbox.util;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Changes files that are hard links to other files of the share, and checks that the other names keep their content.
+ */
+public class HardLinkTest {
+
+    private static final int SIZE = 100 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void restore() {
+        TestConfiguration.remove("shortcutCopy");
+    }
+
+    private static byte[] content(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static String md5(byte[] content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static int links(File file) throws Exception {
+        return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+    }
+
+    private static void await(FileSystemManager fileSystemManager, String pathName, String md5)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (!fileSystemManager.fileNameExists(pathName, md5)) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void appendingToALinkedFileLeavesItsTwinAlone() throws Exception {
+        TestConfiguration.set("shortcutCopy", "link");
+        File root = folder.newFolder();
+        byte[] prefix = content(SIZE, 1);
+        File original = new File(root, "original");
+        Files.write(original.toPath(), prefix);
+        FileSystemManager fileSystemManager = new FileSystemManager(root.getPath(), event -> { });
+        String prefixMd5 = md5(prefix);
+        long lastModified = original.lastModified();
+
+        // loaded by linking to the file with the same content
+        assertTrue(fileSystemManager.createFileLoader("twin", prefixMd5, SIZE, lastModified));
+        assertTrue(fileSystemManager.checkShortcut("twin"));
+        File twin = new File(root, "twin");
+        assertEquals(2, links(twin));
+        await(fileSystemManager, "twin", prefixMd5);
+
+        byte[] appended = Arrays.copyOf(prefix, SIZE + 1000);
+        System.arraycopy(content(1000, 2), 0, appended, SIZE, 1000);
+        assertTrue(fileSystemManager.appendFileLoader("twin", md5(appended), appended.length,
+                lastModified + 10000, prefixMd5, SIZE, null));
+        assertTrue(fileSystemManager.writeFile("twin", ByteBuffer.wrap(appended, SIZE, 1000), SIZE));
+        assertTrue(fileSystemManager.checkWriteComplete("twin"));
+
+        assertArrayEquals(appended, Files.readAllBytes(twin.toPath()));
+        assertArrayEquals(prefix, Files.readAllBytes(original.toPath()));
+        assertEquals(1, links(original));
+        assertEquals(1, links(twin));
+    }
+
+    @Test
+    public void aShortcutReplacesALinkedFile() throws Exception {
+        File root = folder.newFolder();
+        byte[] content = content(SIZE, 3);
+        byte[] other = content(SIZE, 4);
+        File original = new File(root, "original");
+        Files.write(original.toPath(), content);
+        Path twin = new File(root, "twin").toPath();
+        Files.createLink(twin, original.toPath());
+        Files.write(new File(root, "other").toPath(), other);
+        FileSystemManager fileSystemManager = new FileSystemManager(root.getPath(), event -> { });
+
+        // the twin is changed to content another file has, and copied from it
+        assertTrue(fileSystemManager.modifyFileLoader("twin", md5(other), original.lastModified() + 10000));
+        assertTrue(fileSystemManager.checkShortcut("twin"));
+
+        assertArrayEquals(other, Files.readAllBytes(twin));
+        assertArrayEquals(content, Files.readAllBytes(original.toPath()));
+        assertEquals(1, links(original));
+    }
+}
@@ -0,0 +1,170 @@
+package unimelb.bitbox.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads files for peers through snapshots, and changes them while they are being read.
+ */
+public class SnapshotTest {
+
+    private static final int MIN_FILE_SIZE = 64 * 1024;
+    private static final int SPOOL_SIZE = 4 * 1024 * 1024;
+    private static final int BLOCK = 8192;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File spool; // the spool directory of the share of the test
+
+    @Before
+    public void configure() {
+        TestConfiguration.set("snapshotMinFileSize", String.valueOf(MIN_FILE_SIZE));
+        TestConfiguration.set("snapshotSpoolSize", String.valueOf(SPOOL_SIZE));
+    }
+
+    @After
+    public void restore() {
+        TestConfiguration.remove("snapshotMinFileSize");
+        TestConfiguration.remove("snapshotSpoolSize");
+        if (spool != null) {
+            File[] copies = spool.listFiles();
+            if (copies != null) {
+                for (File copy : copies) {
+                    copy.delete();
+                }
+            }
+            spool.delete();
+        }
+    }
+
+    private FileSystemManager share(File root) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md5.digest(root.getCanonicalPath().getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        spool = new File(System.getProperty("java.io.tmpdir"), "bitbox-snapshots-" + hex);
+        return new FileSystemManager(root.getPath(), event -> { });
+    }
+
+    private static byte[] write(File file, int size, long seed) throws Exception {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        Files.write(file.toPath(), content);
+        return content;
+    }
+
+    private static String md5(FileSystemManager fileSystemManager) {
+        return fileSystemManager.generateSyncEvents().get(0).fileDescriptor.md5;
+    }
+
+    private static byte[] read(FileSystemManager fileSystemManager, String md5, long position) throws Exception {
+        ByteBuffer bytes = fileSystemManager.readSnapshot(md5, position, BLOCK);
+        return bytes == null ? null : bytes.array();
+    }
+
+    /**
+     * Change a file so that the file system manager sees it, and wait until it has.
+     */
+    private static void change(FileSystemManager fileSystemManager, File file, String md5) throws Exception {
+        write(file, (int) file.length(), 99);
+        assertTrue(file.setLastModified(file.lastModified() + 10000));
+        long end = System.currentTimeMillis() + 10000;
+        while (fileSystemManager.readFile(md5, 0, BLOCK) != null) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(50);
+        }
+    }
+
+    private void awaitCopy(String md5, long length) throws InterruptedException {
+        File copy = new File(spool, md5);
+        long end = System.currentTimeMillis() + 10000;
+        while (copy.length() < length) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(20);
+        }
+        // kept once it has been checked against its md5
+        Thread.sleep(200);
+    }
+
+    private static String[] sortedNames(File directory) {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void theSpoolIsKeptOutsideTheShare() throws Exception {
+        File root = folder.newFolder();
+        // names the spool once had inside the share
+        File directory = new File(root, "snapshots(bitbox)");
+        assertTrue(directory.mkdir());
+        File kept = new File(directory, "kept");
+        write(kept, 10, 1);
+        write(new File(root, "snapshots"), MIN_FILE_SIZE, 2);
+        FileSystemManager fileSystemManager = share(root);
+        String md5 = md5(fileSystemManager);
+        read(fileSystemManager, md5, 0);
+        awaitCopy(md5, MIN_FILE_SIZE);
+        assertTrue(kept.exists());
+        assertEquals(Arrays.asList("snapshots", "snapshots(bitbox)"), Arrays.asList(sortedNames(root)));
+        assertFalse(spool.getCanonicalPath().startsWith(root.getCanonicalPath()));
+    }
+
+    @Test
+    public void aChangedFileIsStillReadAsItWas() throws Exception {
+        File root = folder.newFolder();
+        File file = new File(root, "file");
+        int size = 2 * 1024 * 1024;
+        byte[] content = write(file, size, 3);
+        FileSystemManager fileSystemManager = share(root);
+        String md5 = md5(fileSystemManager);
+        // served from the file while it is copied
+        assertArrayEquals(Arrays.copyOfRange(content, 0, BLOCK), read(fileSystemManager, md5, 0));
+        awaitCopy(md5, size);
+        change(fileSystemManager, file, md5);
+        for (long position = 0; position + BLOCK <= size; position += 64 * BLOCK) {
+            assertArrayEquals(Arrays.copyOfRange(content, (int) position, (int) position + BLOCK),
+                    read(fileSystemManager, md5, position));
+        }
+    }
+
+    @Test
+    public void filesLargerThanTheSpoolAreReadFromTheFile() throws Exception {
+        File root = folder.newFolder();
+        File file = new File(root, "file");
+        int size = 3 * SPOOL_SIZE;
+        byte[] content = write(file, size, 4);
+        FileSystemManager fileSystemManager = share(root);
+        String md5 = md5(fileSystemManager);
+        long start = System.currentTimeMillis();
+        for (long position = 0; position + BLOCK <= size; position += 16 * BLOCK) {
+            assertArrayEquals(Arrays.copyOfRange(content, (int) position, (int) position + BLOCK),
+                    read(fileSystemManager, md5, position));
+        }
+        System.out.println("Read " + size / (16 * BLOCK) + " blocks of a " + size + " byte file in " +
+                (System.currentTimeMillis() - start) + " ms");
+        assertFalse(new File(spool, md5).exists());
+        // the changed content is not served as the old one
+        change(fileSystemManager, file, md5);
+        assertNull(read(fileSystemManager, md5, 0));
+    }
+}
@@ -0,0 +1,42 @@
+package unimelb.bitbox.util;
+
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+/**
+ * Changes configuration values for tests. Values read into static fields are only seen by classes loaded
+ * afterwards, and values read by constructors only by objects created afterwards.
+ */
+public class TestConfiguration {
+
+    /**
+     * Set a configuration value.
+     * @param key the key
+     * @param value the value
+     */
+    public static void set(String key, String value) {
+        properties().setProperty(key, value);
+    }
+
+    /**
+     * Remove a configuration value, so that its default is used.
+     * @param key the key
+     */
+    public static void remove(String key) {
+        properties().remove(key);
+    }
+
+    private static Properties properties() {
+        try {
+            Field field = Configuration.class.getDeclaredField("properties");
+            field.setAccessible(true);
+            return (Properties) field.get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // private constructor to prevent initialization
+    private TestConfiguration() {
+    }
+}